@@ -0,0 +1,93 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An open Connection for a benchmark to send over, along with the
+ * TransportRuntime that transfers it on a plain JVM.  Listeners are called
+ * on the I/O threads, since there is no UI thread.
+ */
+final class ConnectionFixture {
+
+    /**
+     * A MemoryConnection transferred by a TransferManager.
+     */
+    static final String MEMORY = "memory";
+
+    /**
+     * A TcpIpConnection to a LoopbackServer, transferred by a TransferManager.
+     */
+    static final String TCP = "tcp";
+
+    /**
+     * A TcpIpConnection to a LoopbackServer, transferred by a SelectorEngine.
+     */
+    static final String TCP_NIO = "tcp-nio";
+
+    private final DefaultScheduler mScheduler;
+    private final TransportRuntime mRuntime;
+    private final LoopbackServer mServer;
+    private final Connection mConnection;
+
+    /**
+     * Opens a connection of the given kind.
+     * @param kind MEMORY, TCP or TCP_NIO.
+     * @param echo Whether data sent comes back as received data, or is discarded.
+     */
+    ConnectionFixture(String kind, boolean echo) throws IOException, InterruptedException {
+        mScheduler = new DefaultScheduler(Connection.IO_THREAD);
+        mRuntime = new TransportRuntime(mScheduler);
+        mRuntime.setConnector(MemoryConnection.TYPE_MEMORY, MemoryConnection.CONNECTOR);
+        Connection.setTransport(mRuntime);
+        if (MEMORY.equals(kind)) {
+            mServer = null;
+            mConnection = new MemoryConnection("memory", echo);
+        } else if (TCP.equals(kind) || TCP_NIO.equals(kind)) {
+            if (TCP_NIO.equals(kind)) {
+                mRuntime.setTcpIpEventLoops(1);
+            }
+            mServer = new LoopbackServer(echo);
+            mConnection = new TcpIpConnection("tcp", LoopbackServer.HOST, mServer.getPort());
+        } else {
+            throw new IllegalArgumentException("Unknown connection kind " + kind + "!");
+        }
+        mConnection.setReceiveExecutor(Connection.IO_THREAD);
+        connectAndWait(mConnection);
+    }
+
+    /**
+     * Connects the given connection and waits until its OnConnectListeners
+     * have been told, by which time it is ready to send.
+     */
+    private static void connectAndWait(Connection connection) throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        connection.addOnConnectListener(new Connection.OnConnectListener() {
+            @Override
+            public void onConnect(Connection connection) {
+                connected.countDown();
+            }
+        });
+        connection.connect();
+        if (!connected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timed out connecting " + connection + "!");
+        }
+    }
+
+    Connection getConnection() {
+        return mConnection;
+    }
+
+    void close() throws IOException {
+        mConnection.disconnect();
+        if (mServer != null) {
+            mServer.close();
+        }
+        mRuntime.shutdown();
+        mScheduler.shutdown();
+        if (Connection.getTransport() == mRuntime) {
+            Connection.setTransport(null);
+        }
+    }
+}
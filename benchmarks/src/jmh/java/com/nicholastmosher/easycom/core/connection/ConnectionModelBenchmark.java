@@ -0,0 +1,69 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ConnectionModel lookups and updates with a given number of
+ * Connections already in the model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConnectionModelBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    private ConnectionModel mModel;
+    private Connection[] mConnections;
+    private String[] mUUIDStrings;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mModel = new ConnectionModel();
+        mConnections = new Connection[entries];
+        mUUIDStrings = new String[entries];
+        mModel.beginBatch();
+        for (int i = 0; i < entries; i++) {
+            Connection connection = new TcpIpConnection("connection" + i,
+                    "10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 8000);
+            mConnections[i] = connection;
+            mUUIDStrings[i] = connection.getUUID();
+            mModel.put(connection.mUUID, connection);
+        }
+        mModel.endBatch();
+    }
+
+    private int next() {
+        int next = mNext;
+        mNext = next + 1 == entries ? 0 : next + 1;
+        return next;
+    }
+
+    @Benchmark
+    public Connection getByUUID() {
+        return mModel.get(mConnections[next()].mUUID);
+    }
+
+    @Benchmark
+    public Connection getByUUIDString() {
+        return mModel.get(mUUIDStrings[next()]);
+    }
+
+    @Benchmark
+    public Connection put() {
+        Connection connection = mConnections[next()];
+        return mModel.put(connection.mUUID, connection);
+    }
+}
@@ -0,0 +1,81 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what it costs to hand one received read to a Connection's
+ * listeners, with the listeners called directly on the reading thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+    /**
+     * OnDataReceivedListeners, which are each given a copy of the data.
+     */
+    static final String ARRAY = "array";
+
+    /**
+     * OnBufferReceivedListeners, which all share the pooled buffer.
+     */
+    static final String BUFFER = "buffer";
+
+    @Param({ARRAY, BUFFER})
+    public String listener;
+
+    @Param({"1", "4", "16"})
+    public int listeners;
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private final BufferPool mPool = new BufferPool();
+    private Connection mConnection;
+    private long mSeen;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mConnection = new TcpIpConnection("dispatch", "10.0.0.1", 8000);
+        mConnection.setReceiveExecutor(Connection.IO_THREAD);
+        for (int i = 0; i < listeners; i++) {
+            if (ARRAY.equals(listener)) {
+                mConnection.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+                    @Override
+                    public void onDataReceived(Connection connection, byte[] data) {
+                        mSeen += data.length;
+                    }
+                });
+            } else {
+                mConnection.addOnBufferReceivedListener(new Connection.OnBufferReceivedListener() {
+                    @Override
+                    public void onBufferReceived(Connection connection, PooledBuffer buffer) {
+                        mSeen += buffer.length();
+                    }
+                });
+            }
+        }
+    }
+
+    @Benchmark
+    public long dispatch() {
+        PooledBuffer buffer = mPool.acquire(size);
+        try {
+            buffer.setLength(size);
+            mConnection.dispatchReceived(buffer, Connection.IO_THREAD);
+        } finally {
+            buffer.release();
+        }
+        return mSeen;
+    }
+}
@@ -0,0 +1,88 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A TCP server on the loopback interface for TcpIpConnections to connect to.
+ * It either echoes everything it receives back to the sender, or discards it.
+ */
+final class LoopbackServer {
+
+    static final String HOST = "127.0.0.1";
+
+    private final ServerSocket mServerSocket;
+    private final boolean mEcho;
+    private final List<Socket> mClients = new ArrayList<>();
+
+    LoopbackServer(boolean echo) throws IOException {
+        mEcho = echo;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Loopback Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+        synchronized (mClients) {
+            for (Socket client : mClients) {
+                client.close();
+            }
+            mClients.clear();
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket client = mServerSocket.accept();
+                client.setTcpNoDelay(true);
+                synchronized (mClients) {
+                    mClients.add(client);
+                }
+                Thread handler = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                }, "Loopback Client");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch (IOException e) {
+            //The server socket was closed.
+        }
+    }
+
+    private void serve(Socket client) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            InputStream input = client.getInputStream();
+            OutputStream output = client.getOutputStream();
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (mEcho) {
+                    output.write(buffer, 0, read);
+                }
+            }
+        } catch (IOException e) {
+            //The client went away.
+        }
+    }
+}
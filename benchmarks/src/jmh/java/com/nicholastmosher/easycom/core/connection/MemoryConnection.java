@@ -0,0 +1,85 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A Connection over in-memory streams, so the send and receive paths can be
+ * measured without any network in the way.  In loopback mode everything
+ * sent comes straight back as received data.  Otherwise sent data is
+ * discarded and nothing is ever received.
+ */
+final class MemoryConnection extends Connection {
+
+    static final String TYPE_MEMORY = "connection_type_memory";
+
+    private static final int PIPE_CAPACITY = 256 * 1024;
+
+    /**
+     * Opens and closes MemoryConnections for a TransportRuntime.
+     */
+    static final TransportRuntime.Connector CONNECTOR = new TransportRuntime.Connector() {
+        @Override
+        public void open(Connection connection) throws IOException {
+            ((MemoryConnection) connection).open();
+        }
+
+        @Override
+        public void close(Connection connection) throws IOException {
+            ((MemoryConnection) connection).close();
+        }
+    };
+
+    private final boolean mLoopback;
+    private MemoryPipe mInbound;
+    private OutputStream mOutput;
+
+    MemoryConnection(String name, boolean loopback) {
+        super(name);
+        mLoopback = loopback;
+    }
+
+    /**
+     * Creates fresh streams for a new connect.
+     */
+    void open() {
+        mInbound = new MemoryPipe(PIPE_CAPACITY);
+        mOutput = mLoopback ? mInbound.getOutputStream() : new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    void close() {
+        if (mInbound != null) {
+            mInbound.close();
+        }
+    }
+
+    @Override
+    public String getConnectionType() {
+        return TYPE_MEMORY;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IllegalStateException {
+        if (mInbound == null) {
+            throw new IllegalStateException("MemoryConnection is not open!");
+        }
+        return mInbound.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IllegalStateException {
+        if (mOutput == null) {
+            throw new IllegalStateException("MemoryConnection is not open!");
+        }
+        return mOutput;
+    }
+}
@@ -0,0 +1,121 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bounded in-memory byte pipe.  Unlike PipedInputStream, any thread may
+ * write to it, which the shared writer pool needs.  Reads block until data
+ * arrives and writes block while the pipe is full.  Closing either end ends
+ * the stream for both.
+ */
+final class MemoryPipe {
+
+    private final byte[] mBuffer;
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+
+    private final InputStream mInput = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MemoryPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MemoryPipe.this) {
+                return mCount;
+            }
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutput = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MemoryPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    MemoryPipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return mInput;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        while (mCount == 0) {
+            if (mClosed) {
+                return -1;
+            }
+            await();
+        }
+        int count = Math.min(Math.min(len, mCount), mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, b, off, count);
+        mHead = (mHead + count) % mBuffer.length;
+        mCount -= count;
+        notifyAll();
+        return count;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (mClosed) {
+                throw new IOException("Pipe is closed!");
+            }
+            if (mCount == mBuffer.length) {
+                await();
+                continue;
+            }
+            int tail = (mHead + mCount) % mBuffer.length;
+            int count = Math.min(Math.min(len, mBuffer.length - mCount), mBuffer.length - tail);
+            System.arraycopy(b, off, mBuffer, tail, count);
+            mCount += count;
+            off += count;
+            len -= count;
+            notifyAll();
+        }
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        }
+    }
+}
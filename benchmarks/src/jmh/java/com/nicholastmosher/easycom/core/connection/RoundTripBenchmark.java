@@ -0,0 +1,70 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the time from Connection.send() until the echoed data reaches an
+ * OnDataReceivedListener, over a connection whose remote sends everything
+ * straight back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripBenchmark {
+
+    @Param({ConnectionFixture.MEMORY, ConnectionFixture.TCP, ConnectionFixture.TCP_NIO})
+    public String transport;
+
+    @Param({"16", "4096"})
+    public int size;
+
+    private ConnectionFixture mFixture;
+    private Connection mConnection;
+    private byte[] mPayload;
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private long mExpected;
+    private volatile Thread mWaiter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mFixture = new ConnectionFixture(transport, true);
+        mConnection = mFixture.getConnection();
+        mPayload = new byte[size];
+        mConnection.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+            @Override
+            public void onDataReceived(Connection connection, byte[] data) {
+                mReceived.addAndGet(data.length);
+                LockSupport.unpark(mWaiter);
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mFixture.close();
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        mWaiter = Thread.currentThread();
+        mExpected += size;
+        mConnection.send(mPayload);
+        while (mReceived.get() < mExpected) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
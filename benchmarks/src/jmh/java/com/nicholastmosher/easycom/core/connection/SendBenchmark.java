@@ -0,0 +1,55 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how many sends per second make it through Connection.send() and
+ * out to the remote.  Each invocation queues a burst of sends and waits for
+ * the last one to be written, so queued data never piles up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class SendBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({ConnectionFixture.MEMORY, ConnectionFixture.TCP, ConnectionFixture.TCP_NIO})
+    public String transport;
+
+    @Param({"16", "256", "4096"})
+    public int size;
+
+    private ConnectionFixture mFixture;
+    private Connection mConnection;
+    private byte[] mPayload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mFixture = new ConnectionFixture(transport, false);
+        mConnection = mFixture.getConnection();
+        mPayload = new byte[size];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mFixture.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void send() throws Exception {
+        for (int i = 1; i < BURST; i++) {
+            mConnection.send(mPayload);
+        }
+        mConnection.sendAsync(mPayload).get();
+    }
+}
@@ -0,0 +1,175 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A TransportTracer that records Flight Recorder events, for JDK 11 and up.
+ * Install it once at startup:
+ * <pre>
+ * Connection.setTracer(new JfrTracer());
+ * </pre>
+ * The events are recorded by any recording, such as one started with
+ * -XX:StartFlightRecording, and show up under "Easycom" in JDK Mission
+ * Control.  A recording's settings can turn each of them off or give it a
+ * threshold.  While no recording wants an event, tracing it costs no more
+ * than checking that.
+ */
+public final class JfrTracer implements TransportTracer {
+
+    @Override
+    public Object beginConnect(Connection connection, int attempt) {
+        ConnectEvent event = new ConnectEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.uuid = connection.getUUID();
+        event.connectionType = connection.getConnectionType();
+        event.remoteAddress = connection.getRemoteAddress();
+        event.attempt = attempt;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endConnect(Object span, boolean success) {
+        ConnectEvent event = (ConnectEvent) span;
+        event.success = success;
+        event.commit();
+    }
+
+    @Override
+    public Object beginWrite(Connection connection) {
+        WriteEvent event = new WriteEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.uuid = connection.getUUID();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endWrite(Object span, long bytes, int sends) {
+        WriteEvent event = (WriteEvent) span;
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.sends = sends;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginRead(Connection connection) {
+        ReadEvent event = new ReadEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.uuid = connection.getUUID();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endRead(Object span, int bytes) {
+        ReadEvent event = (ReadEvent) span;
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginDispatch(Connection connection, Object listener, int bytes) {
+        DispatchEvent event = new DispatchEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.uuid = connection.getUUID();
+        event.listener = listener.getClass().getName();
+        event.bytes = bytes;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endDispatch(Object span) {
+        ((DispatchEvent) span).commit();
+    }
+
+    @Name("easycom.Connect")
+    @Label("Connect Attempt")
+    @Description("A single attempt to open a Connection")
+    @Category({"Easycom", "Connection"})
+    static final class ConnectEvent extends Event {
+        @Label("Connection UUID")
+        String uuid;
+
+        @Label("Connection Type")
+        String connectionType;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Attempt")
+        int attempt;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("easycom.Write")
+    @Label("Connection Write")
+    @Description("A single write of queued sends to a Connection")
+    @Category({"Easycom", "Connection"})
+    @StackTrace(false)
+    static final class WriteEvent extends Event {
+        @Label("Connection UUID")
+        String uuid;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+
+        @Label("Sends Completed")
+        int sends;
+    }
+
+    @Name("easycom.Read")
+    @Label("Connection Read")
+    @Description("A single read from a Connection, including any time spent waiting for data")
+    @Category({"Easycom", "Connection"})
+    @StackTrace(false)
+    static final class ReadEvent extends Event {
+        @Label("Connection UUID")
+        String uuid;
+
+        @Label("Bytes Read")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("easycom.Dispatch")
+    @Label("Listener Dispatch")
+    @Description("A call to a single listener with data received over a Connection")
+    @Category({"Easycom", "Connection"})
+    @StackTrace(false)
+    static final class DispatchEvent extends Event {
+        @Label("Connection UUID")
+        String uuid;
+
+        @Label("Listener")
+        String listener;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+}
@@ -53,30 +53,18 @@ public class BluetoothConnection extends Connection {
     }
 
     /**
-     * Tells whether this BluetoothConnection is actively connected.
-     * @return True if connected, false otherwise.
+     * Constructs a BluetoothConnection with a known unique identifier, such
+     * as when restoring a saved Connection.
+     * @param name    The name of this BluetoothConnection.
+     * @param address The MAC Address of the remote device to connect to.
+     * @param uuid    The unique identifier of this BluetoothConnection.
      */
-    @Override
-    public Status getStatus() {
-
-        //If we know we're trying to connect to something.
-        if (mStatus.equals(Status.Connecting)) return Status.Connecting;
-
-        //If not in the process of connecting, verify active connections.
-        if (mBluetoothSocket != null) {
-            if (!mBluetoothSocket.isConnected()) {
-                try {
-                    //Closing a socket really "should" never throw an error.
-                    mBluetoothSocket.close();
-                } catch (IOException e) {
-                    System.out.println("Bluetooth socket not connected; error closing socket!");
-                    e.printStackTrace();
-                }
-            }
-            return mBluetoothSocket.isConnected() ?
-                    Status.Connected : Status.Disconnected;
+    public BluetoothConnection(String name, String address, UUID uuid) {
+        super(name, uuid);
+        if (address == null) {
+            throw new NullPointerException("Bluetooth address is null!");
         }
-        return Status.Disconnected;
+        mAddress = address;
     }
 
     /**
@@ -136,6 +124,7 @@ public class BluetoothConnection extends Connection {
         if (address != null) {
             if (BluetoothAdapter.checkBluetoothAddress(address)) {
                 mAddress = address;
+                notifyMetadataChanged();
             } else {
                 new IllegalArgumentException("Bluetooth address is not valid!")
                         .printStackTrace();
@@ -163,6 +152,15 @@ public class BluetoothConnection extends Connection {
         return mAddress;
     }
 
+    /**
+     * Returns the Bluetooth MAC Address of the remote device.
+     * @return A Bluetooth MAC Address.
+     */
+    @Override
+    public String getRemoteAddress() {
+        return mAddress;
+    }
+
     /**
      * Assigns the BluetoothSocket for this BluetoothConnection.
      * @param socket New BluetoothSocket.
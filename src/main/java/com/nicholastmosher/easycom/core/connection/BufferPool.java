@@ -0,0 +1,101 @@
+package com.nicholastmosher.easycom.core.connection;
+
+/**
+ * Recycles receive buffers so that streaming data does not allocate a new
+ * array for every read.  Buffers come in power-of-two size classes from
+ * MIN_BUFFER_SIZE to MAX_BUFFER_SIZE, and each class keeps up to a fixed
+ * number of free buffers.  Larger requests get a buffer that is simply
+ * dropped when released.
+ */
+final class BufferPool {
+
+    static final int MIN_BUFFER_SIZE = 256;
+    static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The most free buffers kept in each size class.
+     */
+    static final int MAX_FREE_PER_CLASS = 32;
+
+    private static final int MIN_SHIFT = 8;
+
+    private final FreeList[] mClasses;
+
+    BufferPool() {
+        int count = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SHIFT + 1;
+        mClasses = new FreeList[count];
+        for (int i = 0; i < count; i++) {
+            mClasses[i] = new FreeList(MIN_BUFFER_SIZE << i);
+        }
+    }
+
+    /**
+     * Returns a buffer that can hold at least the given number of bytes, with
+     * a reference count of one.
+     * @param size The number of bytes needed.
+     * @return A buffer from the pool, or a new one if none was free.
+     */
+    PooledBuffer acquire(int size) {
+        int index = classOf(size);
+        PooledBuffer buffer;
+        if (index < 0) {
+            buffer = new PooledBuffer(null, size);
+        } else {
+            buffer = mClasses[index].pop();
+            if (buffer == null) {
+                buffer = new PooledBuffer(this, mClasses[index].mBufferSize);
+            }
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Takes back a buffer whose reference count reached zero.
+     */
+    void recycle(PooledBuffer buffer) {
+        int index = classOf(buffer.capacity());
+        if (index >= 0) {
+            mClasses[index].push(buffer);
+        }
+    }
+
+    private static int classOf(int size) {
+        if (size > MAX_BUFFER_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * A bounded stack of free buffers of one size.  Pushing and popping never
+     * allocate.
+     */
+    private static final class FreeList {
+        private final int mBufferSize;
+        private final PooledBuffer[] mFree = new PooledBuffer[MAX_FREE_PER_CLASS];
+        private int mCount;
+
+        FreeList(int bufferSize) {
+            mBufferSize = bufferSize;
+        }
+
+        synchronized PooledBuffer pop() {
+            if (mCount == 0) {
+                return null;
+            }
+            PooledBuffer buffer = mFree[--mCount];
+            mFree[mCount] = null;
+            return buffer;
+        }
+
+        synchronized void push(PooledBuffer buffer) {
+            if (mCount < mFree.length) {
+                mFree[mCount++] = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free byte queue between exactly one producer thread and exactly one
+ * consumer thread.  The producer and consumer each own one counter and only
+ * ever read the other's, so neither takes a lock and neither allocates.
+ * When the ring is full the producer waits, and when it is empty the
+ * consumer waits, in the way chosen by the WaitStrategy.  Either side stops
+ * waiting once the ring is closed or its thread is interrupted.
+ * <p/>
+ * The ring is a plain array, so that a producer reading from an InputStream
+ * can read straight into its free space.  A direct buffer would need an
+ * extra copy, since streams only read into arrays.
+ */
+final class ByteRingBuffer {
+
+    private final int mCapacity;
+    private final int mMask;
+    private final Connection.WaitStrategy mWaitStrategy;
+
+    private final byte[] mMemory;
+
+    /**
+     * The total number of bytes ever read and written.  Only the consumer
+     * advances mHead and only the producer advances mTail.  Each side
+     * publishes its counter before checking whether the other side is
+     * parked, and a parking side announces itself before checking the
+     * counters, so a wakeup is never missed.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile Thread mParkedProducer;
+    private volatile Thread mParkedConsumer;
+    private volatile boolean mClosed;
+
+    /**
+     * Creates a ring that holds at least the given number of bytes.
+     * @param capacity     The minimum capacity, rounded up to a power of two.
+     * @param waitStrategy How to wait when the ring is full or empty.
+     */
+    ByteRingBuffer(int capacity, Connection.WaitStrategy waitStrategy) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Ring capacity must be between 1 and 2^30!");
+        }
+        if (waitStrategy == null) {
+            throw new NullPointerException("WaitStrategy is null!");
+        }
+        int rounded = 1;
+        while (rounded < capacity) {
+            rounded <<= 1;
+        }
+        mCapacity = rounded;
+        mMask = mCapacity - 1;
+        mWaitStrategy = waitStrategy;
+        mMemory = new byte[mCapacity];
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Waits until the ring has free space.  Only the producer thread may call
+     * this, before reading into that space with write(InputStream, int).
+     * @param maxLength The most bytes the producer wants to write.
+     * @return The number of bytes that can be written in one piece, up to
+     * maxLength, or 0 if the ring was closed or the thread interrupted.
+     */
+    int awaitSpace(int maxLength) {
+        long tail = mTail.get();
+        int idles = 0;
+        int free;
+        while ((free = (int) (mCapacity - (tail - mHead.get()))) == 0) {
+            if (isStopped()) {
+                return 0;
+            }
+            idle(idles++, true);
+        }
+        if (isStopped()) {
+            return 0;
+        }
+        return Math.min(Math.min(free, maxLength), mCapacity - ((int) tail & mMask));
+    }
+
+    /**
+     * Reads from the stream straight into the ring's free space, without
+     * waiting for more space.  Only the producer thread may call this.
+     * @param input  The stream to read from.
+     * @param length The most bytes to read, no more than awaitSpace() returned.
+     * @return The number of bytes read, or -1 if the stream has ended.
+     */
+    int write(InputStream input, int length) throws IOException {
+        long tail = mTail.get();
+        int read = input.read(mMemory, (int) tail & mMask, length);
+        if (read > 0) {
+            mTail.set(tail + read);
+            wake(mParkedConsumer);
+        }
+        return read;
+    }
+
+    /**
+     * Copies up to the given number of bytes out of the ring, waiting until
+     * at least one is available.  Only the consumer thread may call this.
+     * @return The number of bytes read, or -1 if the ring is closed and
+     * empty, or empty when the thread is interrupted.
+     */
+    int read(byte[] destination, int offset, int length) {
+        long head = mHead.get();
+        int idles = 0;
+        int available;
+        while ((available = (int) (mTail.get() - head)) == 0) {
+            if (isStopped()) {
+                //Writes that raced with close() may still have landed.
+                if (mTail.get() == head) {
+                    return -1;
+                }
+                continue;
+            }
+            idle(idles++, false);
+        }
+        int index = (int) head & mMask;
+        int count = Math.min(Math.min(available, length), mCapacity - index);
+        System.arraycopy(mMemory, index, destination, offset, count);
+        mHead.set(head + count);
+        wake(mParkedProducer);
+        return count;
+    }
+
+    /**
+     * Stops the ring.  The producer gives up, and the consumer drains what is
+     * left before seeing the end.  May be called from any thread.
+     */
+    void close() {
+        mClosed = true;
+        wake(mParkedProducer);
+        wake(mParkedConsumer);
+    }
+
+    /**
+     * Tells whether the calling side should give up waiting.
+     */
+    private boolean isStopped() {
+        return mClosed || Thread.currentThread().isInterrupted();
+    }
+
+    private void idle(int idles, boolean producer) {
+        switch (mWaitStrategy) {
+            case BusySpin:
+                break;
+            case Yield:
+                Thread.yield();
+                break;
+            default:
+                //Spin briefly before sleeping, since the other side is usually close behind.
+                if (idles < 100) {
+                    break;
+                }
+                if (producer) {
+                    mParkedProducer = Thread.currentThread();
+                    if (mTail.get() - mHead.get() == mCapacity && !isStopped()) {
+                        LockSupport.park(this);
+                    }
+                    mParkedProducer = null;
+                } else {
+                    mParkedConsumer = Thread.currentThread();
+                    if (mTail.get() == mHead.get() && !isStopped()) {
+                        LockSupport.park(this);
+                    }
+                    mParkedConsumer = null;
+                }
+                break;
+        }
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
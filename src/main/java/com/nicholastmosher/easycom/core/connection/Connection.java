@@ -2,9 +2,12 @@ package com.nicholastmosher.easycom.core.connection;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by Nick Mosher on 3/3/2015.
@@ -19,6 +22,64 @@ public abstract class Connection {
     public static final String TYPE_TCPIP = "connection_type_tcpip";
     public static final String TYPE_USB = "connection_type_usb";
 
+    /**
+     * The default maximum number of bytes delivered to OnDataReceivedListeners
+     * in a single callback.
+     */
+    public static final int DEFAULT_RECEIVE_CHUNK_SIZE = 4096;
+
+    /**
+     * The default maximum number of bytes coalesced into a single write.
+     */
+    public static final int DEFAULT_SEND_BATCH_SIZE = 8192;
+
+    /**
+     * The default time, in milliseconds, that a send waits for more sends to
+     * be coalesced with it.
+     */
+    public static final long DEFAULT_SEND_LINGER_MILLIS = 0;
+
+    /**
+     * The default number of queued outbound bytes at which a Connection stops
+     * being writable.
+     */
+    public static final int DEFAULT_SEND_HIGH_WATERMARK = 64 * 1024;
+
+    /**
+     * The default number of queued outbound bytes at which a Connection that
+     * stopped being writable becomes writable again.
+     */
+    public static final int DEFAULT_SEND_LOW_WATERMARK = 32 * 1024;
+
+    /**
+     * The default time, in milliseconds, that a single connect attempt may
+     * take before it is abandoned.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Pass to setReceiveExecutor() or addOnDataReceivedListener() to have
+     * OnDataReceivedListeners called directly on the thread that read the
+     * data, without any hand-off.  Such listeners must not block or touch
+     * the UI.
+     */
+    public static final Executor IO_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Opens, closes and writes to every Connection.
+     */
+    private static volatile Transport sTransport;
+
+    /**
+     * Traces the work done for every Connection, or null if nothing does.
+     */
+    private static volatile TransportTracer sTracer;
+
     public enum Status {
         Connected,
         Disconnected,
@@ -28,6 +89,45 @@ public abstract class Connection {
         MetadataChanged
     }
 
+    /**
+     * Determines how the ConnectionService watches this Connection for
+     * incoming data.
+     */
+    public enum ReceiveMode {
+        /**
+         * A dedicated thread blocks on the InputStream and delivers data as
+         * soon as it arrives.
+         */
+        Blocking,
+        /**
+         * A background task periodically checks the InputStream for available
+         * data.
+         */
+        Polling
+    }
+
+    /**
+     * Determines how a thread waits on a receive ring that is full or empty.
+     * See setReceiveRingSize().
+     */
+    public enum WaitStrategy {
+        /**
+         * Spin without pausing.  The lowest latency, at the cost of a whole
+         * CPU core per waiting thread.  Only suitable for devices with cores
+         * to spare.
+         */
+        BusySpin,
+        /**
+         * Spin, yielding the CPU to other threads on every check.
+         */
+        Yield,
+        /**
+         * Spin briefly, then sleep until woken.  Costs almost nothing while
+         * idle.
+         */
+        Park
+    }
+
     /**
      * The name of this Connection.
      */
@@ -40,9 +140,93 @@ public abstract class Connection {
     protected final UUID mUUID;
 
     /**
-     * Keeps track of the status of the connectivity.
+     * The canonical String form of mUUID, built once so that getUUID() and
+     * lookups by String never allocate.
+     */
+    private final String mUUIDString;
+
+    /**
+     * Keeps track of the status of the connectivity.  The status is only
+     * changed through compareAndSetStatus() and the notify methods, as the
+     * ConnectionService observes connects, disconnects and I/O failures, so
+     * reading it never touches the underlying socket.
+     */
+    private final AtomicReference<Status> mStatus = new AtomicReference<>(Status.Disconnected);
+
+    /**
+     * The maximum number of bytes the receiver reads and delivers at once.
+     */
+    private volatile int mReceiveChunkSize = DEFAULT_RECEIVE_CHUNK_SIZE;
+
+    /**
+     * How incoming data is watched for once this Connection is connected.
+     */
+    private volatile ReceiveMode mReceiveMode = ReceiveMode.Blocking;
+
+    /**
+     * The maximum number of bytes written to the remote in a single write.
+     */
+    private volatile int mSendBatchSize = DEFAULT_SEND_BATCH_SIZE;
+
+    /**
+     * How long a send waits for further sends to be coalesced with it.
+     */
+    private volatile long mSendLingerMillis = DEFAULT_SEND_LINGER_MILLIS;
+
+    /**
+     * The number of bytes that have been queued for sending but not yet
+     * written to the remote.
+     */
+    private final AtomicLong mQueuedSendBytes = new AtomicLong();
+    private final AtomicBoolean mWritable = new AtomicBoolean(true);
+    private volatile int mSendHighWatermark = DEFAULT_SEND_HIGH_WATERMARK;
+    private volatile int mSendLowWatermark = DEFAULT_SEND_LOW_WATERMARK;
+
+    /**
+     * How long a single connect attempt may take.
+     */
+    private volatile int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    /**
+     * How failed connect attempts are retried.
+     */
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+    /**
+     * The size of the ring that decouples reading from dispatching, or 0 if
+     * the reading thread dispatches received data itself.
+     */
+    private volatile int mReceiveRingSize = 0;
+    private volatile WaitStrategy mReceiveWaitStrategy = WaitStrategy.Park;
+
+    /**
+     * Where OnDataReceivedListeners without their own Executor are called,
+     * or null for the UI thread.
+     */
+    private volatile Executor mReceiveExecutor;
+
+    /**
+     * The stages that this Connection's data passes through.
      */
-    protected Status mStatus = Status.Disconnected;
+    private final ConnectionPipeline mPipeline = new ConnectionPipeline(this);
+
+    /**
+     * Splits incoming data into frames, or null if frames are not decoded.
+     */
+    private volatile FrameDecoder mFrameDecoder;
+
+    /**
+     * What has gone over this Connection, and how quickly.
+     */
+    private final ConnectionStats mStats = new ConnectionStats(this);
+
+    /**
+     * Estimates this Connection's round trip time, as measured by mRttProbe
+     * or the app.
+     */
+    private final RttEstimator mRttEstimator = new RttEstimator();
+    private final Object mRttProbeLock = new Object();
+    private volatile RttProbe mRttProbe;
 
     /**
      * Constructs a Connection using a given name.  Addresses or
@@ -50,13 +234,27 @@ public abstract class Connection {
      * @param name The name of the Connection.
      */
     public Connection(String name) {
+        this(name, UUID.randomUUID());
+    }
+
+    /**
+     * Constructs a Connection with a known unique identifier, such as when
+     * restoring a saved Connection.
+     * @param name The name of the Connection.
+     * @param uuid The unique identifier of the Connection.
+     */
+    protected Connection(String name, UUID uuid) {
+        if (uuid == null) {
+            throw new NullPointerException("Connection UUID is null!");
+        }
         if (name == null) {
             System.out.println("Connection has no name!");
             mName = "";
         } else {
             mName = name;
         }
-        mUUID = UUID.randomUUID();
+        mUUID = uuid;
+        mUUIDString = uuid.toString();
     }
 
     /**
@@ -85,40 +283,548 @@ public abstract class Connection {
      * @return The unique identifier of this Connection.
      */
     public String getUUID() {
-        return mUUID.toString();
+        return mUUIDString;
     }
 
     /**
-     * Send connect request to ConnectionService to open a Connection
-     * using this object's data.
+     * Places a ring buffer of the given size between the thread that reads
+     * from this Connection and a second thread that dispatches what was read
+     * to the listeners.  Reads then never wait on slow listeners until the
+     * ring fills, and handing data across costs no allocation.  Only applies
+     * to the Blocking ReceiveMode, and takes effect on the next connect.  A
+     * size of 0, the default, dispatches straight from the reading thread.
+     * @param size The ring size in bytes, rounded up to a power of two, or 0.
      */
-    public void connect() {
-        if (!(getStatus().equals(Status.Connected))) {
+    public void setReceiveRingSize(int size) {
+        if (size < 0 || size > 1 << 30) {
+            new IllegalArgumentException("Receive ring size must be between 0 and 2^30!").printStackTrace();
+            return;
+        }
+        mReceiveRingSize = size;
+    }
 
-            ConnectionService.getInstance().connect(this);
+    /**
+     * Returns the size of the receive ring.
+     * @return The receive ring size in bytes, or 0 if there is none.
+     */
+    public int getReceiveRingSize() {
+        return mReceiveRingSize;
+    }
 
-            //Indicate that this connection's status is now "connecting".
-            mStatus = Status.Connecting;
+    /**
+     * Sets how the reading and dispatching threads wait on the receive ring
+     * when it is full or empty.  Park is the default.
+     * @param waitStrategy The WaitStrategy to use.
+     */
+    public void setReceiveWaitStrategy(WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            new NullPointerException("WaitStrategy is null!").printStackTrace();
+            return;
+        }
+        mReceiveWaitStrategy = waitStrategy;
+    }
+
+    /**
+     * Returns how threads wait on the receive ring.
+     * @return The receive WaitStrategy.
+     */
+    public WaitStrategy getReceiveWaitStrategy() {
+        return mReceiveWaitStrategy;
+    }
+
+    /**
+     * Returns the pipeline of stages that this Connection's incoming and
+     * outgoing data passes through.  The pipeline is empty to begin with.
+     * @return This Connection's pipeline.
+     */
+    public ConnectionPipeline getPipeline() {
+        return mPipeline;
+    }
+
+    /**
+     * Sets the FrameDecoder that splits this Connection's incoming data into
+     * frames for its OnFrameReceivedListeners.  A decoder keeps partial frames
+     * between reads, so it should be set before connecting and must not be
+     * shared with another Connection.
+     * @param decoder The FrameDecoder to use, or null to stop decoding frames.
+     */
+    public void setFrameDecoder(FrameDecoder decoder) {
+        mFrameDecoder = decoder;
+    }
+
+    /**
+     * Returns the FrameDecoder for this Connection's incoming data.
+     * @return The FrameDecoder, or null if frames are not decoded.
+     */
+    public FrameDecoder getFrameDecoder() {
+        return mFrameDecoder;
+    }
+
+    /**
+     * Chooses where this Connection's OnDataReceivedListeners are called,
+     * unless they were added with an Executor of their own.  By default, or
+     * when given null, they are called on the UI thread.  IO_THREAD calls
+     * them on the receiving thread itself, and any other Executor is given
+     * one task per received chunk.  Either way, chunks are delivered in the
+     * order they were received.
+     * @param executor The Executor to deliver received data on, or null for the UI thread.
+     */
+    public void setReceiveExecutor(Executor executor) {
+        mReceiveExecutor = executor == null || executor == IO_THREAD ? executor : new SerialExecutor(executor);
+    }
+
+    /**
+     * Sets the maximum number of bytes that will be delivered to this
+     * Connection's OnDataReceivedListeners in a single callback. Whatever
+     * data is available is read in chunks of up to this size. A chunk size
+     * of 1 delivers each byte individually.
+     * @param chunkSize The maximum chunk size in bytes.
+     */
+    public void setReceiveChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            new IllegalArgumentException("Receive chunk size must be positive!").printStackTrace();
+            return;
+        }
+        mReceiveChunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the maximum number of bytes delivered in a single callback.
+     * @return The maximum receive chunk size in bytes.
+     */
+    public int getReceiveChunkSize() {
+        return mReceiveChunkSize;
+    }
+
+    /**
+     * Sets how incoming data is watched for. Takes effect the next time this
+     * Connection is connected.
+     * @param mode The ReceiveMode to use.
+     */
+    public void setReceiveMode(ReceiveMode mode) {
+        if (mode == null) {
+            new NullPointerException("Receive mode is null!").printStackTrace();
+            return;
+        }
+        mReceiveMode = mode;
+    }
+
+    /**
+     * Returns how incoming data is watched for.
+     * @return The ReceiveMode of this Connection.
+     */
+    public ReceiveMode getReceiveMode() {
+        return mReceiveMode;
+    }
+
+    /**
+     * Sets the maximum number of bytes that queued sends are coalesced into
+     * before being written to the remote.  Data larger than this is written
+     * on its own.
+     * @param batchSize The maximum batch size in bytes.
+     */
+    public void setSendBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            new IllegalArgumentException("Send batch size must be positive!").printStackTrace();
+            return;
+        }
+        mSendBatchSize = batchSize;
+    }
+
+    /**
+     * Returns the maximum number of bytes coalesced into a single write.
+     * @return The maximum send batch size in bytes.
+     */
+    public int getSendBatchSize() {
+        return mSendBatchSize;
+    }
+
+    /**
+     * Sets how long a send may wait for further sends to be coalesced with it
+     * before it is written.  A linger of 0 writes as soon as possible, still
+     * coalescing whatever has queued up in the meantime.
+     * @param lingerMillis The maximum linger time in milliseconds.
+     */
+    public void setSendLingerMillis(long lingerMillis) {
+        if (lingerMillis < 0) {
+            new IllegalArgumentException("Send linger must not be negative!").printStackTrace();
+            return;
+        }
+        mSendLingerMillis = lingerMillis;
+    }
+
+    /**
+     * Returns how long a send may wait to be coalesced with further sends.
+     * @return The send linger time in milliseconds.
+     */
+    public long getSendLingerMillis() {
+        return mSendLingerMillis;
+    }
+
+    /**
+     * Sets the outbound queue watermarks of this Connection.  Once the number
+     * of queued bytes reaches the high watermark, the Connection stops being
+     * writable and trySend() rejects data that would exceed it.  When enough
+     * data has been written for the queue to fall to the low watermark, the
+     * Connection becomes writable again.
+     * @param lowWatermark  The queued byte count at which writing resumes.
+     * @param highWatermark The queued byte count at which writing is throttled.
+     */
+    public void setSendWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark < 1 || lowWatermark > highWatermark) {
+            new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high!").printStackTrace();
+            return;
+        }
+        mSendLowWatermark = lowWatermark;
+        mSendHighWatermark = highWatermark;
+        updateWritability(mQueuedSendBytes.get());
+    }
+
+    /**
+     * Returns the queued byte count at which this Connection stops being writable.
+     * @return The high watermark in bytes.
+     */
+    public int getSendHighWatermark() {
+        return mSendHighWatermark;
+    }
+
+    /**
+     * Returns the queued byte count at which this Connection becomes writable again.
+     * @return The low watermark in bytes.
+     */
+    public int getSendLowWatermark() {
+        return mSendLowWatermark;
+    }
+
+    /**
+     * Returns the number of bytes queued for sending that have not yet been
+     * written to the remote.
+     * @return The number of queued outbound bytes.
+     */
+    public long getQueuedSendBytes() {
+        return mQueuedSendBytes.get();
+    }
+
+    /**
+     * Tells whether this Connection's outbound queue is below its high
+     * watermark.  Producers should stop sending while this is false and wait
+     * for an OnWritabilityChangedListener to report that it is writable again.
+     * @return True if more data can be queued without exceeding the high watermark.
+     */
+    public boolean isWritable() {
+        return mWritable.get();
+    }
+
+    /**
+     * Returns the counters and latency histograms of this Connection.  They
+     * are updated as it is used, and can be reset with ConnectionStats.reset().
+     * @return The stats of this Connection.
+     */
+    public ConnectionStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Returns the estimate of this Connection's round trip time, which an
+     * RttProbe keeps up to date.  Useful for sizing timeouts and choosing
+     * between connections.
+     * @return The RttEstimator of this Connection.
+     */
+    public RttEstimator getRttEstimator() {
+        return mRttEstimator;
+    }
+
+    /**
+     * Sets the probe that measures this Connection's round trip time,
+     * replacing and stopping any previous one.  A probe can only measure one
+     * Connection at a time.
+     * @param probe The RttProbe to use, or null to stop probing.
+     */
+    public void setRttProbe(RttProbe probe) {
+        synchronized (mRttProbeLock) {
+            if (probe != null && probe.getConnection() != null && probe.getConnection() != this) {
+                new IllegalArgumentException("RttProbe is already probing another Connection!").printStackTrace();
+                return;
+            }
+            if (mRttProbe == probe) {
+                return;
+            }
+            if (mRttProbe != null) {
+                mRttProbe.detach();
+            }
+            mRttProbe = probe;
+            if (probe != null) {
+                probe.attach(this);
+            }
         }
     }
 
     /**
-     * Send disconnect request to ConnectionService to close a Connection
+     * Returns the probe that measures this Connection's round trip time.
+     * @return The RttProbe, or null if there is none.
+     */
+    public RttProbe getRttProbe() {
+        return mRttProbe;
+    }
+
+    /**
+     * Sets how long a single connect attempt may take before it is abandoned
+     * and, if the RetryPolicy allows, retried.
+     * @param timeoutMillis The connect timeout in milliseconds.
+     */
+    public void setConnectTimeoutMillis(int timeoutMillis) {
+        if (timeoutMillis < 1) {
+            new IllegalArgumentException("Connect timeout must be positive!").printStackTrace();
+            return;
+        }
+        mConnectTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns how long a single connect attempt may take.
+     * @return The connect timeout in milliseconds.
+     */
+    public int getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    /**
+     * Sets how failed connect attempts are retried.
+     * @param retryPolicy The RetryPolicy to use.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            new NullPointerException("Retry policy is null!").printStackTrace();
+            return;
+        }
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns how failed connect attempts are retried.
+     * @return The RetryPolicy of this Connection.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Returns the address of the remote device in a form that identifies it
+     * among Connections of the same type, such as "host:port" or a MAC address.
+     * @return The remote address, or null if this Connection has none.
+     */
+    public String getRemoteAddress() {
+        return null;
+    }
+
+    /**
+     * Installs the Transport that opens, closes and writes to every
+     * Connection.  The ConnectionService installs itself when it is created,
+     * so this only needs to be called to run Connections without it.
+     * @param transport The Transport to use, or null to remove it.
+     */
+    public static void setTransport(Transport transport) {
+        sTransport = transport;
+    }
+
+    /**
+     * Returns the Transport that opens, closes and writes to every Connection.
+     * @return The installed Transport, or null if there is none.
+     */
+    public static Transport getTransport() {
+        return sTransport;
+    }
+
+    /**
+     * Installs a TransportTracer to trace connect attempts, writes, reads and
+     * listener calls for every Connection.
+     * @param tracer The TransportTracer to use, or null to stop tracing.
+     */
+    public static void setTracer(TransportTracer tracer) {
+        sTracer = tracer;
+    }
+
+    /**
+     * Returns the TransportTracer tracing every Connection.
+     * @return The installed TransportTracer, or null if there is none.
+     */
+    public static TransportTracer getTracer() {
+        return sTracer;
+    }
+
+    /**
+     * Returns the installed Transport, reporting if there is none.
+     */
+    private static Transport transport() {
+        Transport transport = sTransport;
+        if (transport == null) {
+            new IllegalStateException("No Transport is installed! Is the ConnectionService running?").printStackTrace();
+        }
+        return transport;
+    }
+
+    /**
+     * Send connect request to the Transport to open a Connection
      * using this object's data.
      */
+    public void connect() {
+        Transport transport = transport();
+        if (transport == null) {
+            return;
+        }
+        Status status = getStatus();
+        if (status == Status.Connected || status == Status.Connecting) {
+            return;
+        }
+
+        //Indicate that this connection's status is now "connecting".
+        if (compareAndSetStatus(status, Status.Connecting)) {
+            mStats.onConnectStarted();
+            transport.connect(this);
+        }
+    }
+
+    /**
+     * Send disconnect request to the Transport to close a Connection
+     * using this object's data.  A Connection that is still connecting has
+     * its connect canceled.
+     */
     public void disconnect() {
-        if (getStatus().equals(Status.Connected)) {
-            ConnectionService.getInstance().disconnect(this);
+        Transport transport = transport();
+        if (transport == null) {
+            return;
+        }
+        Status status = getStatus();
+        if (status == Status.Connected
+                || (status == Status.Connecting && compareAndSetStatus(status, Status.ConnectCanceled))) {
+            transport.disconnect(this);
         }
     }
 
     /**
-     * Sends an intent to ConnectionService with data that should be sent over
-     * this connection.
+     * Queues data to be sent over this connection, passing it through the
+     * outbound stages of the pipeline first.
      * @param data    The data to send.
      */
     public void send(byte[] data) {
-        ConnectionService.getInstance().send(this, data);
+        if (data != null && mPipeline.hasOutboundHandlers()) {
+            mPipeline.send(data);
+            return;
+        }
+        offer(data, false, null);
+    }
+
+    /**
+     * Sends data over this connection without blocking, returning a future
+     * that completes once the data has been written to the remote, or fails
+     * with the reason it could not be.  With outbound pipeline stages, the
+     * future fails with the exception of a stage that threw, and has already
+     * succeeded if the stages held on to the data instead of sending it on.
+     * @param data The data to send.
+     * @return A SendFuture tracking the send.
+     */
+    public SendFuture sendAsync(byte[] data) {
+        if (data != null && mPipeline.hasOutboundHandlers()) {
+            return mPipeline.send(data);
+        }
+        SendFuture future = new SendFuture(this, data == null ? 0 : data.length);
+        offer(data, false, future);
+        return future;
+    }
+
+    /**
+     * Sends data over this connection only if doing so would not take the
+     * outbound queue past its high watermark.  Data larger than the high
+     * watermark is accepted when nothing else is queued.
+     * @param data The data to send.
+     * @return True if the data was queued, false if it was rejected.
+     */
+    public boolean trySend(byte[] data) {
+        if (data != null && mPipeline.hasOutboundHandlers()) {
+            //The stages decide how much reaches the queue, so check the watermark up front.
+            if (!isWritable()) {
+                return false;
+            }
+            mPipeline.send(data);
+            return true;
+        }
+        return offer(data, true, null);
+    }
+
+    /**
+     * Sends data that has passed through the outbound pipeline stages out
+     * over the wire.
+     * @param data The data to send.
+     * @return A SendFuture that completes when the data is written or fails.
+     */
+    SendFuture transmit(byte[] data) {
+        SendFuture future = new SendFuture(this, data.length);
+        offer(data, false, future);
+        return future;
+    }
+
+    /**
+     * Hands data to the Transport, failing the future if there is none.
+     */
+    private boolean offer(byte[] data, boolean bounded, SendFuture future) {
+        Transport transport = transport();
+        if (transport == null) {
+            if (future != null) {
+                future.fail(new IllegalStateException("No Transport is installed!"));
+            }
+            return false;
+        }
+        return transport.offer(this, data, bounded, future);
+    }
+
+    /**
+     * Accounts for data about to be queued for sending.
+     * @param length  The number of bytes being queued.
+     * @param bounded Whether to reject the data if it would exceed the high watermark.
+     * @return True if the data may be queued, false if it was rejected.
+     */
+    boolean offerSendBytes(int length, boolean bounded) {
+        long queued;
+        if (bounded) {
+            long current;
+            do {
+                current = mQueuedSendBytes.get();
+                if (current > 0 && current + length > mSendHighWatermark) {
+                    if (mWritable.compareAndSet(true, false)) {
+                        notifyWritabilityChanged(false);
+                    }
+                    return false;
+                }
+            } while (!mQueuedSendBytes.compareAndSet(current, current + length));
+            queued = current + length;
+        } else {
+            queued = mQueuedSendBytes.addAndGet(length);
+        }
+        mStats.onSendQueued();
+        updateWritability(queued);
+        return true;
+    }
+
+    /**
+     * Accounts for queued data that has been written or dropped.
+     * @param length The number of bytes leaving the queue.
+     */
+    void releaseSendBytes(long length) {
+        if (length > 0) {
+            updateWritability(mQueuedSendBytes.addAndGet(-length));
+        }
+    }
+
+    private void updateWritability(long queued) {
+        if (queued >= mSendHighWatermark) {
+            if (mWritable.compareAndSet(true, false)) {
+                notifyWritabilityChanged(false);
+            }
+        } else if (queued <= mSendLowWatermark) {
+            if (mWritable.compareAndSet(false, true)) {
+                notifyWritabilityChanged(true);
+            }
+        }
     }
 
     /**
@@ -131,7 +837,39 @@ public abstract class Connection {
      * Connect Canceled
      * @return Status of connection.
      */
-    public abstract Status getStatus();
+    public Status getStatus() {
+        return mStatus.get();
+    }
+
+    /**
+     * Atomically changes the status of this connection, but only if it is
+     * currently the expected status.
+     * @param expect The status this connection must currently have.
+     * @param update The status to change to.
+     * @return True if the status was changed.
+     */
+    protected final boolean compareAndSetStatus(Status expect, Status update) {
+        if (mStatus.compareAndSet(expect, update)) {
+            if (expect != update) {
+                notifyStatusChanged(expect, update);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Unconditionally changes the status of this connection.
+     * @param update The status to change to.
+     * @return The status this connection had before.
+     */
+    private Status setStatus(Status update) {
+        Status previous = mStatus.getAndSet(update);
+        if (previous != update) {
+            notifyStatusChanged(previous, update);
+        }
+        return previous;
+    }
 
     /**
      * Convenience method for use with intent extra "CONNECTION_TYPE".
@@ -166,7 +904,7 @@ public abstract class Connection {
      * @return True if connections are the same, false otherwise.
      */
     public boolean isVersionOf(Connection c) {
-        return c.getUUID().equals(this.getUUID());
+        return c == this || c.mUUID.equals(mUUID);
     }
 
     /*
@@ -176,13 +914,16 @@ public abstract class Connection {
     public interface OnMetadataChangedListener {
         void onMetadataChanged(Connection connection);
     }
-    private Set<OnMetadataChangedListener> mOnMetadataChangedListeners = new HashSet<>();
+    private final ListenerRegistry<OnMetadataChangedListener> mOnMetadataChangedListeners = new ListenerRegistry<>();
     public void addOnMetadataChangedListener(OnMetadataChangedListener listener) {
         mOnMetadataChangedListeners.add(listener);
     }
-    private void notifyMetadataChanged() {
-        for(OnMetadataChangedListener listener : mOnMetadataChangedListeners) {
-            listener.onMetadataChanged(this);
+    public void removeOnMetadataChangedListener(OnMetadataChangedListener listener) {
+        mOnMetadataChangedListeners.remove(listener);
+    }
+    protected void notifyMetadataChanged() {
+        for(Object listener : mOnMetadataChangedListeners.snapshot()) {
+            ((OnMetadataChangedListener) listener).onMetadataChanged(this);
         }
     }
 
@@ -193,17 +934,28 @@ public abstract class Connection {
     public interface OnConnectListener {
         void onConnect(Connection connection);
     }
-    private Set<OnConnectListener> mOnConnectListeners = new HashSet<>();
+    private final ListenerRegistry<OnConnectListener> mOnConnectListeners = new ListenerRegistry<>();
     public void addOnConnectListener(OnConnectListener listener) {
         mOnConnectListeners.add(listener);
     }
+    public void removeOnConnectListener(OnConnectListener listener) {
+        mOnConnectListeners.remove(listener);
+    }
     public void notifyConnect() {
-        mStatus = Status.Connected;
-        for(OnConnectListener listener : mOnConnectListeners) {
-            listener.onConnect(this);
+        setStatus(Status.Connected);
+        mStats.onConnected();
+        for(Object listener : mOnConnectListeners.snapshot()) {
+            ((OnConnectListener) listener).onConnect(this);
         }
     }
 
+    /**
+     * Records that an attempt to connect has been given up on.
+     */
+    void notifyConnectFailed() {
+        compareAndSetStatus(Status.Connecting, Status.ConnectFailed);
+    }
+
     /*
      * A listener setup for notifying listening parties about a successfully
      * established connection.
@@ -211,14 +963,61 @@ public abstract class Connection {
     public interface OnDisconnectListener {
         void onDisconnect(Connection connection);
     }
-    private Set<OnDisconnectListener> mOnDisconnectListeners = new HashSet<>();
+    private final ListenerRegistry<OnDisconnectListener> mOnDisconnectListeners = new ListenerRegistry<>();
     public void addOnDisconnectListener(OnDisconnectListener listener) {
         mOnDisconnectListeners.add(listener);
     }
+    public void removeOnDisconnectListener(OnDisconnectListener listener) {
+        mOnDisconnectListeners.remove(listener);
+    }
     public void notifyDisconnect() {
-        mStatus = Status.Disconnected;
-        for(OnDisconnectListener listener : mOnDisconnectListeners) {
-            listener.onDisconnect(this);
+        if (setStatus(Status.Disconnected) != Status.Connected) {
+            return;
+        }
+        for(Object listener : mOnDisconnectListeners.snapshot()) {
+            ((OnDisconnectListener) listener).onDisconnect(this);
+        }
+    }
+
+    /*
+     * A listener setup for notifying listening parties about every change in
+     * this connection's status.  Listeners are called on whichever thread
+     * made the change.
+     */
+    public interface OnStatusChangedListener {
+        void onStatusChanged(Connection connection, Status oldStatus, Status newStatus);
+    }
+    private final ListenerRegistry<OnStatusChangedListener> mOnStatusChangedListeners = new ListenerRegistry<>();
+    public void addOnStatusChangedListener(OnStatusChangedListener listener) {
+        mOnStatusChangedListeners.add(listener);
+    }
+    public void removeOnStatusChangedListener(OnStatusChangedListener listener) {
+        mOnStatusChangedListeners.remove(listener);
+    }
+    private void notifyStatusChanged(Status oldStatus, Status newStatus) {
+        for(Object listener : mOnStatusChangedListeners.snapshot()) {
+            ((OnStatusChangedListener) listener).onStatusChanged(this, oldStatus, newStatus);
+        }
+    }
+
+    /*
+     * A listener setup for notifying listening parties that this connection's
+     * outbound queue has crossed one of its watermarks.  Listeners are called
+     * on whichever thread caused the crossing.
+     */
+    public interface OnWritabilityChangedListener {
+        void onWritabilityChanged(Connection connection, boolean writable);
+    }
+    private final ListenerRegistry<OnWritabilityChangedListener> mOnWritabilityChangedListeners = new ListenerRegistry<>();
+    public void addOnWritabilityChangedListener(OnWritabilityChangedListener listener) {
+        mOnWritabilityChangedListeners.add(listener);
+    }
+    public void removeOnWritabilityChangedListener(OnWritabilityChangedListener listener) {
+        mOnWritabilityChangedListeners.remove(listener);
+    }
+    private void notifyWritabilityChanged(boolean writable) {
+        for(Object listener : mOnWritabilityChangedListeners.snapshot()) {
+            ((OnWritabilityChangedListener) listener).onWritabilityChanged(this, writable);
         }
     }
 
@@ -229,13 +1028,267 @@ public abstract class Connection {
     public interface OnDataReceivedListener {
         void onDataReceived(Connection connection, byte[] data);
     }
-    private Set<OnDataReceivedListener> mOnDataReceivedListeners = new HashSet<>();
+    private final ListenerRegistry<OnDataReceivedListener> mOnDataReceivedListeners = new ListenerRegistry<>();
+    private final ListenerRegistry<DataReceivedDelivery> mDataReceivedDeliveries = new ListenerRegistry<>();
     public void addOnDataReceivedListener(OnDataReceivedListener listener) {
+        mDataReceivedDeliveries.remove(new DataReceivedDelivery(listener, null));
         mOnDataReceivedListeners.add(listener);
     }
+
+    /**
+     * Adds an OnDataReceivedListener that is called on the given Executor,
+     * whatever this Connection's receive executor is.  The listener receives
+     * chunks in order even if the Executor is multi-threaded.
+     * @param listener The listener to add.
+     * @param executor The Executor to call it on, or IO_THREAD.
+     */
+    public void addOnDataReceivedListener(OnDataReceivedListener listener, Executor executor) {
+        if (listener == null || executor == null) {
+            new NullPointerException("Listener or Executor is null!").printStackTrace();
+            return;
+        }
+        mOnDataReceivedListeners.remove(listener);
+        DataReceivedDelivery delivery = new DataReceivedDelivery(listener,
+                executor == IO_THREAD ? executor : new SerialExecutor(executor));
+        mDataReceivedDeliveries.remove(delivery);
+        mDataReceivedDeliveries.add(delivery);
+    }
+    public void removeOnDataReceivedListener(OnDataReceivedListener listener) {
+        mOnDataReceivedListeners.remove(listener);
+        mDataReceivedDeliveries.remove(new DataReceivedDelivery(listener, null));
+    }
     public void notifyDataReceived(byte[] data) {
-        for(OnDataReceivedListener listener : mOnDataReceivedListeners) {
-            listener.onDataReceived(this, data);
+        TransportTracer tracer = sTracer;
+        for(Object listener : mOnDataReceivedListeners.snapshot()) {
+            Object span = tracer == null ? null : tracer.beginDispatch(this, listener, data.length);
+            try {
+                ((OnDataReceivedListener) listener).onDataReceived(this, data);
+            } finally {
+                if (span != null) {
+                    tracer.endDispatch(span);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands freshly received data to every OnDataReceivedListener on the
+     * Executor it was configured with.  Called on the receiving thread.
+     * @param data     The data received.
+     * @param uiThread An Executor for the UI thread, used unless another was chosen.
+     */
+    void dispatchDataReceived(final byte[] data, Executor uiThread) {
+        if (!mOnDataReceivedListeners.isEmpty()) {
+            Executor executor = mReceiveExecutor;
+            (executor == null ? uiThread : executor).execute(new Runnable() {
+                @Override
+                public void run() {
+                    notifyDataReceived(data);
+                }
+            });
+        }
+        for (Object delivery : mDataReceivedDeliveries.snapshot()) {
+            ((DataReceivedDelivery) delivery).deliver(this, data);
+        }
+    }
+
+    /**
+     * Receives incoming data without copying it.  The PooledBuffer is only
+     * valid during the callback unless it is retained.  These listeners are
+     * called on the same Executor as OnDataReceivedListeners that were added
+     * without one of their own.
+     */
+    public interface OnBufferReceivedListener {
+        void onBufferReceived(Connection connection, PooledBuffer buffer);
+    }
+    private final ListenerRegistry<OnBufferReceivedListener> mOnBufferReceivedListeners = new ListenerRegistry<>();
+    public void addOnBufferReceivedListener(OnBufferReceivedListener listener) {
+        mOnBufferReceivedListeners.add(listener);
+    }
+    public void removeOnBufferReceivedListener(OnBufferReceivedListener listener) {
+        mOnBufferReceivedListeners.remove(listener);
+    }
+    private void notifyBufferReceived(PooledBuffer buffer) {
+        TransportTracer tracer = sTracer;
+        for(Object listener : mOnBufferReceivedListeners.snapshot()) {
+            Object span = tracer == null ? null : tracer.beginDispatch(this, listener, buffer.length());
+            try {
+                ((OnBufferReceivedListener) listener).onBufferReceived(this, buffer);
+            } finally {
+                if (span != null) {
+                    tracer.endDispatch(span);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands a freshly received buffer to every listener.  Listeners that
+     * take arrays get a copy; OnBufferReceivedListeners get the buffer
+     * itself, which is held until they have all returned.  The caller keeps
+     * its own reference and releases it afterwards.  Called on the receiving
+     * thread.
+     * @param buffer   The data received.
+     * @param uiThread An Executor for the UI thread, used unless another was chosen.
+     */
+    void dispatchReceived(final PooledBuffer buffer, Executor uiThread) {
+        mStats.onReceived(buffer.length());
+        if (mPipeline.hasInboundHandlers()) {
+            //The stages run in order on the receive executor, and then hand their output to deliverReceived().
+            Executor executor = mReceiveExecutor;
+            if (executor == IO_THREAD) {
+                mPipeline.receive(buffer.dispatchView());
+                return;
+            }
+            buffer.retain();
+            (executor == null ? uiThread : executor).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mPipeline.receive(buffer.dispatchView());
+                    } finally {
+                        buffer.release();
+                    }
+                }
+            });
+            return;
+        }
+        if (!mOnDataReceivedListeners.isEmpty() || !mDataReceivedDeliveries.isEmpty()) {
+            dispatchDataReceived(buffer.toByteArray(), uiThread);
+        }
+        if (!mOnBufferReceivedListeners.isEmpty() || mFrameDecoder != null) {
+            Executor executor = mReceiveExecutor;
+            if (executor == IO_THREAD) {
+                notifyBufferReceived(buffer);
+                decodeFrames(buffer);
+                return;
+            }
+            buffer.retain();
+            (executor == null ? uiThread : executor).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        notifyBufferReceived(buffer);
+                        decodeFrames(buffer);
+                    } finally {
+                        buffer.release();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands data that has passed through the pipeline's inbound stages to
+     * every listener, on the thread the last stage passed it on from.
+     * @param data The data received.
+     */
+    void deliverReceived(ByteBuffer data) {
+        if (!mOnDataReceivedListeners.isEmpty() || !mDataReceivedDeliveries.isEmpty()) {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            notifyDataReceived(bytes);
+            for (Object delivery : mDataReceivedDeliveries.snapshot()) {
+                ((DataReceivedDelivery) delivery).deliver(this, bytes);
+            }
+        }
+        if (!mOnBufferReceivedListeners.isEmpty()) {
+            PooledBuffer buffer = PooledBuffer.copyOf(data);
+            try {
+                notifyBufferReceived(buffer);
+            } finally {
+                buffer.release();
+            }
+        }
+        FrameDecoder decoder = mFrameDecoder;
+        if (decoder != null) {
+            decoder.decode(data.duplicate(), mFrameNotifier);
+        }
+    }
+
+    /**
+     * Receives whole frames, as split out of the incoming data by this
+     * Connection's FrameDecoder.  The frame is a read-only view that is only
+     * valid during the callback.  These listeners are called on the same
+     * Executor as OnDataReceivedListeners that were added without one of
+     * their own.
+     */
+    public interface OnFrameReceivedListener {
+        void onFrameReceived(Connection connection, ByteBuffer frame);
+    }
+    private final ListenerRegistry<OnFrameReceivedListener> mOnFrameReceivedListeners = new ListenerRegistry<>();
+    public void addOnFrameReceivedListener(OnFrameReceivedListener listener) {
+        mOnFrameReceivedListeners.add(listener);
+    }
+    public void removeOnFrameReceivedListener(OnFrameReceivedListener listener) {
+        mOnFrameReceivedListeners.remove(listener);
+    }
+    private final FrameDecoder.OnFrameDecodedListener mFrameNotifier = new FrameDecoder.OnFrameDecodedListener() {
+        @Override
+        public void onFrameDecoded(ByteBuffer frame) {
+            Object[] listeners = mOnFrameReceivedListeners.snapshot();
+            TransportTracer tracer = sTracer;
+            int length = frame.remaining();
+            for (int i = 0; i < listeners.length; i++) {
+                Object span = tracer == null ? null : tracer.beginDispatch(Connection.this, listeners[i], length);
+                try {
+                    //Each listener gets its own position to read from.
+                    ((OnFrameReceivedListener) listeners[i]).onFrameReceived(Connection.this,
+                            i == 0 ? frame : frame.duplicate());
+                } finally {
+                    if (span != null) {
+                        tracer.endDispatch(span);
+                    }
+                }
+            }
+        }
+    };
+
+    private void decodeFrames(PooledBuffer buffer) {
+        FrameDecoder decoder = mFrameDecoder;
+        if (decoder != null) {
+            decoder.decode(buffer.dispatchView(), mFrameNotifier);
+        }
+    }
+
+    /**
+     * An OnDataReceivedListener paired with the Executor it is called on.
+     * Equal to any other delivery for the same listener.
+     */
+    private static final class DataReceivedDelivery {
+        private final OnDataReceivedListener mListener;
+        private final Executor mExecutor;
+
+        DataReceivedDelivery(OnDataReceivedListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void deliver(final Connection connection, final byte[] data) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    TransportTracer tracer = sTracer;
+                    Object span = tracer == null ? null : tracer.beginDispatch(connection, mListener, data.length);
+                    try {
+                        mListener.onDataReceived(connection, data);
+                    } finally {
+                        if (span != null) {
+                            tracer.endDispatch(span);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DataReceivedDelivery && ((DataReceivedDelivery) o).mListener.equals(mListener);
+        }
+
+        @Override
+        public int hashCode() {
+            return mListener.hashCode();
         }
     }
 }
\ No newline at end of file
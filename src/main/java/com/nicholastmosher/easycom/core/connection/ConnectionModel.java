@@ -1,27 +1,173 @@
 package com.nicholastmosher.easycom.core.connection;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Nick Mosher on 9/24/15.
  * A class for handling Connection data, including
  * checking for version duplicates and handling observable interactions.
+ * <p/>
+ * The model is safe to use from any thread.  Connections are keyed by their
+ * UUID, so finding the existing version of a connection is a single lookup.
+ * Connections are also indexed by connection type, remote address and
+ * current Status, and those indexes are kept up to date as connections
+ * change.  Lookups never block; every change, including those made through
+ * the ConcurrentMap methods, is serialized so the indexes stay consistent.
+ * The key, value and entry views are read-only.
+ * <p/>
+ * Changes are reported to OnModelChangedListeners as ModelChangeSets.
+ * Changes made between beginBatch() and endBatch(), or within the coalescing
+ * window, are merged and delivered together.
  *
  * @author Nick Mosher, nicholastmosher@gmail.com, https://github.com/nicholastmosher
  */
-public class ConnectionModel extends HashMap<UUID, Connection> {
+public class ConnectionModel extends AbstractMap<UUID, Connection> implements ConcurrentMap<UUID, Connection> {
 
     private static ConnectionModel SINGLETON;
 
+    /**
+     * Every connection, keyed by its UUID.  Only changed while holding
+     * mWriteLock, and only by the methods that also update the indexes.
+     */
+    private final Map<UUID, Connection> mConnections = new ConcurrentHashMap<>();
+
+    /**
+     * Connections grouped by Connection.getConnectionType().
+     */
+    private final Map<String, Set<Connection>> mByType = new ConcurrentHashMap<>();
+
+    /**
+     * Connections grouped by Connection.getRemoteAddress().
+     */
+    private final Map<String, Set<Connection>> mByAddress = new ConcurrentHashMap<>();
+
+    /**
+     * Connections grouped by Connection.getStatus().
+     */
+    private final Map<Connection.Status, Set<Connection>> mByStatus = new EnumMap<>(Connection.Status.class);
+
+    /**
+     * The remote address each connection was indexed under, so it can be
+     * found again if the address changes.
+     */
+    private final Map<UUID, String> mIndexedAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * Connections keyed by the canonical String form of their UUID, so that
+     * get(String) is a plain hash lookup.
+     */
+    private final Map<String, Connection> mByUUIDString = new ConcurrentHashMap<>();
+
+    private final Object mWriteLock = new Object();
+
+    /**
+     * By default, listeners are notified on the thread that changed the model.
+     */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Waits out coalescing windows for every model.  Created on first use.
+     */
+    private static ScheduledExecutorService sScheduler;
+
+    private static final int CHANGE_ADDED = 0;
+    private static final int CHANGE_REMOVED = 1;
+    private static final int CHANGE_CHANGED = 2;
+
+    /**
+     * A change that has not been delivered yet, merged with any earlier
+     * undelivered change to the same connection.
+     */
+    private static final class PendingChange {
+        int mKind;
+        Connection mConnection;
+
+        PendingChange(int kind, Connection connection) {
+            mKind = kind;
+            mConnection = connection;
+        }
+    }
+
+    /**
+     * Undelivered changes in the order their connections were first touched.
+     * Guarded by mWriteLock, as are mBatchDepth and mDeliveryScheduled.
+     */
+    private final Map<UUID, PendingChange> mPendingChanges = new LinkedHashMap<>();
+    private int mBatchDepth;
+    private boolean mDeliveryScheduled;
+
+    private volatile long mCoalesceWindowMillis = 0;
+    private volatile Executor mNotificationExecutor = new SerialExecutor(DIRECT_EXECUTOR);
+
+    private final Runnable mDeliverTask = new Runnable() {
+        @Override
+        public void run() {
+            deliverChanges();
+        }
+    };
+
+    /**
+     * Moves connections between status indexes as their status changes.
+     */
+    private final Connection.OnStatusChangedListener mStatusIndexer = new Connection.OnStatusChangedListener() {
+        @Override
+        public void onStatusChanged(Connection connection, Connection.Status oldStatus, Connection.Status newStatus) {
+            synchronized (mWriteLock) {
+                if (get(connection.mUUID) == connection) {
+                    indexStatus(connection);
+                }
+            }
+        }
+    };
+
+    /**
+     * Re-indexes connections whose remote address changes.
+     */
+    private final Connection.OnMetadataChangedListener mAddressIndexer = new Connection.OnMetadataChangedListener() {
+        @Override
+        public void onMetadataChanged(Connection connection) {
+            synchronized (mWriteLock) {
+                if (get(connection.mUUID) == connection) {
+                    unindexAddress(connection);
+                    indexAddress(connection);
+                }
+            }
+        }
+    };
+
+    public ConnectionModel() {
+        for (Connection.Status status : Connection.Status.values()) {
+            mByStatus.put(status, newIndexSet());
+        }
+    }
+
     /**
      * A convenience method to provide singleton access to a ConnectionModel
      * while still allowing full object-oriented instance freedom.
      * @return A singleton instance of the ConnectionModel.
      */
-    public static ConnectionModel getModel() {
+    public static synchronized ConnectionModel getModel() {
         if(SINGLETON == null) {
             SINGLETON = new ConnectionModel();
         }
@@ -32,70 +178,591 @@ public class ConnectionModel extends HashMap<UUID, Connection> {
      * Adds the given device to this model.  If no version of the
      * device already exists, it is added as a new entry.  If a
      * previous version of the device does exist, replace it.
+     * Connections are always stored under their own UUID.
      *
      * @param newConnection The device to add or update.
      * @return The version of the connection that was replaced.
      */
     @Override
     public Connection put(UUID key, Connection newConnection) {
+        if(newConnection == null) {
+            throw new NullPointerException("Connection is null!");
+        }
 
-        //Iterate over all existing connections to check for duplicate versions.
-        for(Connection connection : values()) {
+        Connection replaced;
+        synchronized (mWriteLock) {
+            replaced = putLocked(newConnection);
+        }
+        changesRecorded();
+        return replaced;
+    }
 
-            //If the connection is a version of an existing one, replace it.
-            if(newConnection.isVersionOf(connection)) {
+    /**
+     * Adds the given connection unless a version of it is already in this
+     * model.
+     * @param key           The connection's UUID.
+     * @param newConnection The connection to add.
+     * @return The version of the connection already in this model, or null
+     * if the connection was added.
+     */
+    @Override
+    public Connection putIfAbsent(UUID key, Connection newConnection) {
+        if(newConnection == null) {
+            throw new NullPointerException("Connection is null!");
+        }
+        checkKey(key, newConnection);
 
-                super.put(key, newConnection);
-                notifyModelUpdated();
-                return connection;
+        synchronized (mWriteLock) {
+            Connection existing = mConnections.get(newConnection.mUUID);
+            if(existing != null) {
+                return existing;
             }
+            putLocked(newConnection);
         }
-
-        //If the new connection was not already in the model, add it now.
-        super.put(key, newConnection);
-        notifyModelUpdated();
+        changesRecorded();
         return null;
     }
 
+    /**
+     * Replaces the version of the given connection in this model, if there
+     * is one.
+     * @param key           The connection's UUID.
+     * @param newConnection The new version of the connection.
+     * @return The version of the connection that was replaced, or null if
+     * there was none and nothing was changed.
+     */
+    @Override
+    public Connection replace(UUID key, Connection newConnection) {
+        if(newConnection == null) {
+            throw new NullPointerException("Connection is null!");
+        }
+        checkKey(key, newConnection);
+
+        Connection replaced;
+        synchronized (mWriteLock) {
+            if(!mConnections.containsKey(newConnection.mUUID)) {
+                return null;
+            }
+            replaced = putLocked(newConnection);
+        }
+        changesRecorded();
+        return replaced;
+    }
+
+    /**
+     * Replaces the given version of a connection in this model.
+     * @param key           The connection's UUID.
+     * @param oldConnection The version expected to be in this model.
+     * @param newConnection The new version of the connection.
+     * @return True if the connection was replaced.
+     */
+    @Override
+    public boolean replace(UUID key, Connection oldConnection, Connection newConnection) {
+        if(oldConnection == null || newConnection == null) {
+            throw new NullPointerException("Connection is null!");
+        }
+        checkKey(key, newConnection);
+
+        synchronized (mWriteLock) {
+            if(!oldConnection.equals(mConnections.get(newConnection.mUUID))) {
+                return false;
+            }
+            putLocked(newConnection);
+        }
+        changesRecorded();
+        return true;
+    }
+
+    /**
+     * Unlike put(), which files a connection under its own UUID whatever key
+     * it is given, the ConcurrentMap methods compare against what is stored
+     * under the key, so it has to be the one the connection would be stored
+     * under.
+     */
+    private static void checkKey(UUID key, Connection connection) {
+        if(key != null && !key.equals(connection.mUUID)) {
+            throw new IllegalArgumentException("Key is not the connection's UUID!");
+        }
+    }
+
+    /**
+     * Stores and indexes a connection under its own UUID, unindexing the
+     * version it replaces.  Must hold mWriteLock.
+     * @return The version of the connection that was replaced.
+     */
+    private Connection putLocked(Connection newConnection) {
+        Connection replaced = mConnections.put(newConnection.mUUID, newConnection);
+        if(replaced != null) {
+            unindex(replaced);
+        }
+        index(newConnection);
+        recordChange(newConnection.mUUID, replaced == null ? CHANGE_ADDED : CHANGE_CHANGED, newConnection);
+        return replaced;
+    }
+
+    /**
+     * Adds each of the given connections to this model.
+     * @param connections The connections to add or update.
+     */
+    @Override
+    public void putAll(Map<? extends UUID, ? extends Connection> connections) {
+        for(Map.Entry<? extends UUID, ? extends Connection> entry : connections.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
     /**
      * Returns a connection from this model with the given UUID key.
      * @param key The UUID of the connection in String form.
      * @return The connection with the given UUID.
      */
     public Connection get(String key) {
-        return super.get(UUID.fromString(key));
+        Connection connection = mByUUIDString.get(key);
+        if(connection != null || isCanonical(key)) {
+            return connection;
+        }
+        //Connections are indexed under the canonical form, so only keys written another way, such as upper case, need parsing.
+        return mConnections.get(UUID.fromString(key));
+    }
+
+    /**
+     * Tells whether a String is a UUID in the form UUID.toString() writes,
+     * lower case hex digits in groups of 8-4-4-4-12.
+     */
+    private static boolean isCanonical(String key) {
+        if(key.length() != 36) {
+            return false;
+        }
+        for(int i = 0; i < 36; i++) {
+            char c = key.charAt(i);
+            if(i == 8 || i == 13 || i == 18 || i == 23) {
+                if(c != '-') {
+                    return false;
+                }
+            } else if((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Connection get(Object key) {
+        return key == null ? null : mConnections.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && mConnections.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return value != null && mConnections.containsValue(value);
+    }
+
+    @Override
+    public int size() {
+        return mConnections.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mConnections.isEmpty();
+    }
+
+    /**
+     * Returns the UUIDs of the connections in this model.
+     * @return A live, unmodifiable view of the UUIDs.
+     */
+    @Override
+    public Set<UUID> keySet() {
+        return Collections.unmodifiableSet(mConnections.keySet());
+    }
+
+    /**
+     * Returns the connections in this model.
+     * @return A live, unmodifiable view of the connections.
+     */
+    @Override
+    public Collection<Connection> values() {
+        return Collections.unmodifiableCollection(mConnections.values());
+    }
+
+    /**
+     * Returns the entries of this model.
+     * @return A live, unmodifiable view of the entries.
+     */
+    @Override
+    public Set<Entry<UUID, Connection>> entrySet() {
+        return Collections.unmodifiableSet(mConnections.entrySet());
     }
 
     /**
      * Checks if the object given matches a version of a Device
      * in this list.  If so, it removes it from the model.
      *
-     * @param key The object to check against this list.
+     * @param key The connection, or UUID of the connection, to remove.
      * @return The connection previously associated with the key, or null if there was none.
      */
+    @Override
     public Connection remove(Object key) {
-        if(!(key instanceof Connection)) {
+        UUID uuid = uuidOf(key);
+        if(uuid == null) {
             return null;
         }
-        Connection connection = (Connection) key;
-        for(Connection c : values()) {
-            if(connection.isVersionOf(c)) {
-                Connection removed = super.remove(connection);
-                if(removed != null) notifyModelUpdated();
-                return removed;
+
+        Connection removed;
+        synchronized (mWriteLock) {
+            removed = removeLocked(uuid);
+        }
+        if(removed != null) changesRecorded();
+        return removed;
+    }
+
+    /**
+     * Removes a connection from this model if it is the given version.
+     * @param key        The connection, or UUID of the connection, to remove.
+     * @param connection The version expected to be in this model.
+     * @return True if the connection was removed.
+     */
+    @Override
+    public boolean remove(Object key, Object connection) {
+        UUID uuid = uuidOf(key);
+        if(uuid == null || connection == null) {
+            return false;
+        }
+
+        synchronized (mWriteLock) {
+            if(!connection.equals(mConnections.get(uuid))) {
+                return false;
             }
+            removeLocked(uuid);
+        }
+        changesRecorded();
+        return true;
+    }
+
+    private static UUID uuidOf(Object key) {
+        if(key instanceof Connection) {
+            return ((Connection) key).mUUID;
+        } else if(key instanceof UUID) {
+            return (UUID) key;
         }
         return null;
     }
 
+    /**
+     * Removes and unindexes the connection with the given UUID.  Must hold
+     * mWriteLock.
+     * @return The connection removed, or null if there was none.
+     */
+    private Connection removeLocked(UUID uuid) {
+        Connection removed = mConnections.remove(uuid);
+        if(removed != null) {
+            unindex(removed);
+            recordChange(uuid, CHANGE_REMOVED, removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every connection from this model.
+     */
+    @Override
+    public void clear() {
+        synchronized (mWriteLock) {
+            for(Connection connection : mConnections.values()) {
+                unindex(connection);
+                recordChange(connection.mUUID, CHANGE_REMOVED, connection);
+            }
+            mConnections.clear();
+        }
+        changesRecorded();
+    }
+
+    /**
+     * Starts a batch of changes.  Until the matching endBatch(), changes are
+     * collected rather than delivered, and are then delivered to listeners
+     * as a single ModelChangeSet.  Batches may be nested.
+     */
+    public void beginBatch() {
+        synchronized (mWriteLock) {
+            mBatchDepth++;
+        }
+    }
+
+    /**
+     * Ends a batch started by beginBatch().  When the outermost batch ends,
+     * the changes made during it are delivered at once.
+     */
+    public void endBatch() {
+        synchronized (mWriteLock) {
+            if(mBatchDepth == 0) {
+                new IllegalStateException("endBatch() called without beginBatch()!").printStackTrace();
+                return;
+            }
+            if(--mBatchDepth > 0) {
+                return;
+            }
+        }
+        deliverChanges();
+    }
+
+    /**
+     * Sets how long changes are collected before being delivered.  The first
+     * change after a delivery opens a window of this length, and everything
+     * changed within it is delivered together when it closes.  With a window
+     * of 0, the default, each change outside a batch is delivered straight away.
+     * @param windowMillis The coalescing window in milliseconds.
+     */
+    public void setCoalesceWindowMillis(long windowMillis) {
+        if(windowMillis < 0) {
+            new IllegalArgumentException("Coalesce window must not be negative!").printStackTrace();
+            return;
+        }
+        mCoalesceWindowMillis = windowMillis;
+    }
+
+    /**
+     * Returns how long changes are collected before being delivered.
+     * @return The coalescing window in milliseconds.
+     */
+    public long getCoalesceWindowMillis() {
+        return mCoalesceWindowMillis;
+    }
+
+    /**
+     * Sets the Executor that model listeners are notified on, such as one
+     * that posts to the UI thread.  Deliveries keep their order even if the
+     * Executor runs tasks concurrently.  By default listeners are notified on
+     * whichever thread delivers the changes.
+     * @param executor The Executor to notify listeners on.
+     */
+    public void setNotificationExecutor(Executor executor) {
+        if(executor == null) {
+            new NullPointerException("Executor is null!").printStackTrace();
+            return;
+        }
+        mNotificationExecutor = new SerialExecutor(executor);
+    }
+
+    /**
+     * Merges a change into the pending changes.  Must hold mWriteLock.
+     */
+    private void recordChange(UUID uuid, int kind, Connection connection) {
+        PendingChange pending = mPendingChanges.get(uuid);
+        if(pending == null) {
+            mPendingChanges.put(uuid, new PendingChange(kind, connection));
+            return;
+        }
+        if(pending.mKind == CHANGE_ADDED && kind == CHANGE_REMOVED) {
+            mPendingChanges.remove(uuid);
+            return;
+        }
+        if(pending.mKind == CHANGE_REMOVED) {
+            pending.mKind = CHANGE_CHANGED;
+        } else if(kind == CHANGE_REMOVED) {
+            pending.mKind = CHANGE_REMOVED;
+        }
+        pending.mConnection = connection;
+    }
+
+    /**
+     * Delivers or schedules delivery of the pending changes, unless a batch
+     * is open.
+     */
+    private void changesRecorded() {
+        long window = mCoalesceWindowMillis;
+        synchronized (mWriteLock) {
+            if(mBatchDepth > 0 || mDeliveryScheduled) {
+                return;
+            }
+            if(window > 0) {
+                mDeliveryScheduled = true;
+            }
+        }
+        if(window > 0) {
+            getScheduler().schedule(mDeliverTask, window, TimeUnit.MILLISECONDS);
+        } else {
+            deliverChanges();
+        }
+    }
+
+    private void deliverChanges() {
+        final ModelChangeSet changes;
+        synchronized (mWriteLock) {
+            mDeliveryScheduled = false;
+            if(mBatchDepth > 0 || mPendingChanges.isEmpty()) {
+                return;
+            }
+            List<Connection> added = new ArrayList<>();
+            List<Connection> removed = new ArrayList<>();
+            List<Connection> changed = new ArrayList<>();
+            for(PendingChange pending : mPendingChanges.values()) {
+                switch (pending.mKind) {
+                    case CHANGE_ADDED: added.add(pending.mConnection); break;
+                    case CHANGE_REMOVED: removed.add(pending.mConnection); break;
+                    default: changed.add(pending.mConnection); break;
+                }
+            }
+            mPendingChanges.clear();
+            changes = new ModelChangeSet(added, removed, changed);
+        }
+        mNotificationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                notifyModelChanged(changes);
+                notifyModelUpdated();
+            }
+        });
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if(sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ConnectionModel Notifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sScheduler;
+    }
+
+    /**
+     * Returns the connections of the given type, such as Connection.TYPE_TCPIP.
+     * @param type The connection type.
+     * @return A live, unmodifiable view of the connections of that type.
+     */
+    public Set<Connection> getByType(String type) {
+        return view(mByType.get(type));
+    }
+
+    /**
+     * Returns the connections to the given remote address.
+     * @param address The remote address, as given by Connection.getRemoteAddress().
+     * @return A live, unmodifiable view of the connections to that address.
+     */
+    public Set<Connection> getByAddress(String address) {
+        return view(mByAddress.get(address));
+    }
+
+    /**
+     * Returns the connections that currently have the given status.
+     * @param status The status to look up.
+     * @return A live, unmodifiable view of the connections with that status.
+     */
+    public Set<Connection> getByStatus(Connection.Status status) {
+        return view(mByStatus.get(status));
+    }
+
+    private static Set<Connection> view(Set<Connection> index) {
+        return index == null ? Collections.<Connection>emptySet() : Collections.unmodifiableSet(index);
+    }
+
+    private static Set<Connection> newIndexSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    }
+
+    private void index(Connection connection) {
+        mByUUIDString.put(connection.getUUID(), connection);
+        Set<Connection> byType = mByType.get(connection.getConnectionType());
+        if(byType == null) {
+            byType = newIndexSet();
+            mByType.put(connection.getConnectionType(), byType);
+        }
+        byType.add(connection);
+        indexAddress(connection);
+        connection.addOnStatusChangedListener(mStatusIndexer);
+        connection.addOnMetadataChangedListener(mAddressIndexer);
+        indexStatus(connection);
+    }
+
+    private void unindex(Connection connection) {
+        connection.removeOnStatusChangedListener(mStatusIndexer);
+        connection.removeOnMetadataChangedListener(mAddressIndexer);
+        mByUUIDString.remove(connection.getUUID());
+        Set<Connection> byType = mByType.get(connection.getConnectionType());
+        if(byType != null) {
+            byType.remove(connection);
+        }
+        unindexAddress(connection);
+        for(Set<Connection> byStatus : mByStatus.values()) {
+            byStatus.remove(connection);
+        }
+    }
+
+    private void indexAddress(Connection connection) {
+        String address = connection.getRemoteAddress();
+        if(address == null) {
+            return;
+        }
+        Set<Connection> byAddress = mByAddress.get(address);
+        if(byAddress == null) {
+            byAddress = newIndexSet();
+            mByAddress.put(address, byAddress);
+        }
+        byAddress.add(connection);
+        mIndexedAddresses.put(connection.mUUID, address);
+    }
+
+    private void unindexAddress(Connection connection) {
+        String address = mIndexedAddresses.remove(connection.mUUID);
+        if(address == null) {
+            return;
+        }
+        Set<Connection> byAddress = mByAddress.get(address);
+        if(byAddress != null) {
+            byAddress.remove(connection);
+            if(byAddress.isEmpty()) {
+                mByAddress.remove(address);
+            }
+        }
+    }
+
+    /**
+     * Files the connection under its current status only.  Reading the
+     * current status, rather than trusting the order of status events, keeps
+     * the index right even when transitions race.
+     */
+    private void indexStatus(Connection connection) {
+        Connection.Status current = connection.getStatus();
+        for(Map.Entry<Connection.Status, Set<Connection>> entry : mByStatus.entrySet()) {
+            if(entry.getKey() == current) {
+                entry.getValue().add(connection);
+            } else {
+                entry.getValue().remove(connection);
+            }
+        }
+    }
+
     public interface OnModelUpdatedListener { void onModelUpdated(ConnectionModel model); }
-    private Set<OnModelUpdatedListener> mOnModelUpdatedListeners = new HashSet<>();
+    private final ListenerRegistry<OnModelUpdatedListener> mOnModelUpdatedListeners = new ListenerRegistry<>();
     public void addOnModelUpdatedListener(OnModelUpdatedListener listener) {
         mOnModelUpdatedListeners.add(listener);
     }
+    public void removeOnModelUpdatedListener(OnModelUpdatedListener listener) {
+        mOnModelUpdatedListeners.remove(listener);
+    }
     private void notifyModelUpdated() {
-        for(OnModelUpdatedListener listener : mOnModelUpdatedListeners)
-            listener.onModelUpdated(this);
+        for(Object listener : mOnModelUpdatedListeners.snapshot())
+            ((OnModelUpdatedListener) listener).onModelUpdated(this);
+    }
+
+    public interface OnModelChangedListener { void onModelChanged(ConnectionModel model, ModelChangeSet changes); }
+    private final ListenerRegistry<OnModelChangedListener> mOnModelChangedListeners = new ListenerRegistry<>();
+    public void addOnModelChangedListener(OnModelChangedListener listener) {
+        mOnModelChangedListeners.add(listener);
+    }
+    public void removeOnModelChangedListener(OnModelChangedListener listener) {
+        mOnModelChangedListeners.remove(listener);
+    }
+    private void notifyModelChanged(ModelChangeSet changes) {
+        for(Object listener : mOnModelChangedListeners.snapshot())
+            ((OnModelChangedListener) listener).onModelChanged(this, changes);
     }
 
     /**
@@ -107,7 +774,7 @@ public class ConnectionModel extends HashMap<UUID, Connection> {
     public String toString() {
         StringBuilder string = new StringBuilder();
         for(Entry<UUID, Connection> entry : entrySet()) {
-            string.append(entry.getKey().toString()).append(" : ").append(entry.getValue().toString()).append("\n");
+            string.append(entry.getValue().getUUID()).append(" : ").append(entry.getValue().toString()).append("\n");
         }
         return string.toString();
     }
@@ -0,0 +1,333 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An ordered chain of stages that a Connection's incoming and outgoing data
+ * passes through, such as framing, compression, checksums or metrics.
+ * <p/>
+ * The first stage is nearest the wire.  Received data passes from the
+ * first stage to the last and then on to the Connection's listeners.  Sent
+ * data passes from the last stage to the first and then out over the wire.
+ * A stage may be an InboundHandler, an OutboundHandler or both, and is
+ * skipped in the direction it does not handle.
+ * <p/>
+ * Each stage decides what to pass on through its StageContext: the same
+ * buffer, a slice of it, a new buffer, several buffers or nothing at all.
+ * Nothing is copied between stages.  A buffer is only valid until the call
+ * that delivered it returns, so a stage that holds on to data must copy it.
+ * <p/>
+ * Stages may be added and removed at any time, from any thread.  Data
+ * already on its way through the pipeline finishes its trip through the
+ * stages that were present when it entered.
+ */
+public final class ConnectionPipeline {
+
+    /**
+     * A stage that handles received data.
+     */
+    public interface InboundHandler {
+        /**
+         * Called with data received from the wire, or from the stage before.
+         * Call context.fireReceived() to pass data on towards the listeners.
+         */
+        void onReceived(StageContext context, ByteBuffer data);
+    }
+
+    /**
+     * A stage that handles data being sent.
+     */
+    public interface OutboundHandler {
+        /**
+         * Called with data being sent, or from the stage after.  Call
+         * context.send() to pass data on towards the wire.
+         */
+        void onSend(StageContext context, ByteBuffer data);
+    }
+
+    /**
+     * A stage's place in the pipeline, through which it passes data on.
+     */
+    public final class StageContext {
+        private final String mName;
+        private final InboundHandler mInbound;
+        private final OutboundHandler mOutbound;
+        private volatile StageContext mPrev;
+        private volatile StageContext mNext;
+
+        private StageContext(String name, Object handler) {
+            mName = name;
+            mInbound = handler instanceof InboundHandler ? (InboundHandler) handler : null;
+            mOutbound = handler instanceof OutboundHandler ? (OutboundHandler) handler : null;
+        }
+
+        /**
+         * Returns the name this stage was added under.
+         * @return The name of this stage.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the Connection this pipeline belongs to.
+         * @return The Connection.
+         */
+        public Connection getConnection() {
+            return mConnection;
+        }
+
+        /**
+         * Passes received data to the next inbound stage, or to the
+         * Connection's listeners after the last stage.
+         * @param data The data to pass on.
+         */
+        public void fireReceived(ByteBuffer data) {
+            receive(mNext, data);
+        }
+
+        /**
+         * Passes outgoing data to the previous outbound stage, or out over
+         * the wire after the first stage.
+         * @param data The data to pass on.
+         */
+        public void send(ByteBuffer data) {
+            ConnectionPipeline.this.send(mPrev, data);
+        }
+
+        private Object getHandler() {
+            return mInbound != null ? mInbound : mOutbound;
+        }
+    }
+
+    private final Connection mConnection;
+    private final StageContext mHead = new StageContext("head", null);
+    private final StageContext mTail = new StageContext("tail", null);
+    private volatile int mInboundCount;
+    private volatile int mOutboundCount;
+
+    /**
+     * Held while a send passes through the outbound stages, so that sends
+     * reach the stages, and the wire, in order.  The last buffer sent on to
+     * the wire, and the first exception a stage threw, are collected under
+     * it for the send in progress.
+     */
+    private final Object mOutboundLock = new Object();
+    private SendFuture mLastSend;
+    private RuntimeException mSendFailure;
+
+    ConnectionPipeline(Connection connection) {
+        mConnection = connection;
+        mHead.mNext = mTail;
+        mTail.mPrev = mHead;
+    }
+
+    /**
+     * Adds a stage nearest the wire.
+     * @param name    A name for the stage, unique within this pipeline.
+     * @param handler An InboundHandler, an OutboundHandler, or both.
+     */
+    public synchronized void addFirst(String name, Object handler) {
+        insertAfter(mHead, name, handler);
+    }
+
+    /**
+     * Adds a stage nearest the Connection's listeners.
+     * @param name    A name for the stage, unique within this pipeline.
+     * @param handler An InboundHandler, an OutboundHandler, or both.
+     */
+    public synchronized void addLast(String name, Object handler) {
+        insertAfter(mTail.mPrev, name, handler);
+    }
+
+    /**
+     * Adds a stage just before an existing one, nearer the wire.
+     * @param baseName The name of the existing stage.
+     * @param name     A name for the stage, unique within this pipeline.
+     * @param handler  An InboundHandler, an OutboundHandler, or both.
+     */
+    public synchronized void addBefore(String baseName, String name, Object handler) {
+        insertAfter(find(baseName).mPrev, name, handler);
+    }
+
+    /**
+     * Adds a stage just after an existing one, nearer the listeners.
+     * @param baseName The name of the existing stage.
+     * @param name     A name for the stage, unique within this pipeline.
+     * @param handler  An InboundHandler, an OutboundHandler, or both.
+     */
+    public synchronized void addAfter(String baseName, String name, Object handler) {
+        insertAfter(find(baseName), name, handler);
+    }
+
+    /**
+     * Removes a stage.
+     * @param name The name of the stage to remove.
+     * @return The stage's handler, or null if there was no such stage.
+     */
+    public synchronized Object remove(String name) {
+        StageContext context = lookup(name);
+        if (context == null) {
+            return null;
+        }
+        //Leave the removed stage's own links alone, so data passing through it continues on.
+        context.mPrev.mNext = context.mNext;
+        context.mNext.mPrev = context.mPrev;
+        if (context.mInbound != null) mInboundCount--;
+        if (context.mOutbound != null) mOutboundCount--;
+        return context.getHandler();
+    }
+
+    /**
+     * Returns the handler of a stage.
+     * @param name The name of the stage.
+     * @return The stage's handler, or null if there is no such stage.
+     */
+    public synchronized Object get(String name) {
+        StageContext context = lookup(name);
+        return context == null ? null : context.getHandler();
+    }
+
+    /**
+     * Returns the names of the stages, starting nearest the wire.
+     * @return The stage names in order.
+     */
+    public synchronized List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (StageContext context = mHead.mNext; context != mTail; context = context.mNext) {
+            names.add(context.mName);
+        }
+        return names;
+    }
+
+    boolean hasInboundHandlers() {
+        return mInboundCount > 0;
+    }
+
+    boolean hasOutboundHandlers() {
+        return mOutboundCount > 0;
+    }
+
+    /**
+     * Passes received data through the inbound stages.
+     */
+    void receive(ByteBuffer data) {
+        receive(mHead.mNext, data);
+    }
+
+    /**
+     * Passes data through the outbound stages and out over the wire.
+     * @return A future for the last buffer the first stage sent on.  If a
+     * stage threw, the future has failed with its exception.  If the stages
+     * returned without sending anything on, having deliberately held on to
+     * the data or dropped it, the future has already succeeded.
+     */
+    SendFuture send(byte[] data) {
+        SendFuture future;
+        RuntimeException failure;
+        synchronized (mOutboundLock) {
+            mLastSend = null;
+            mSendFailure = null;
+            send(mTail.mPrev, ByteBuffer.wrap(data));
+            future = mLastSend;
+            failure = mSendFailure;
+            mLastSend = null;
+            mSendFailure = null;
+        }
+        if (failure != null) {
+            mConnection.getStats().onSendsFailed(1);
+            future = new SendFuture(mConnection, data.length);
+            future.fail(failure);
+        } else if (future == null) {
+            future = new SendFuture(mConnection, data.length);
+            future.succeed();
+        }
+        return future;
+    }
+
+    private void receive(StageContext from, ByteBuffer data) {
+        for (StageContext context = from; context != mTail; context = context.mNext) {
+            if (context.mInbound != null) {
+                try {
+                    context.mInbound.onReceived(context, data);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+        }
+        mConnection.deliverReceived(data);
+    }
+
+    private void send(StageContext from, ByteBuffer data) {
+        for (StageContext context = from; context != mHead; context = context.mPrev) {
+            if (context.mOutbound != null) {
+                try {
+                    context.mOutbound.onSend(context, data);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    if (Thread.holdsLock(mOutboundLock) && mSendFailure == null) {
+                        mSendFailure = e;
+                    }
+                }
+                return;
+            }
+        }
+        SendFuture future = mConnection.transmit(toArray(data));
+        if (Thread.holdsLock(mOutboundLock)) {
+            mLastSend = future;
+        }
+    }
+
+    /**
+     * Returns the buffer's bytes, without copying if the buffer wraps a
+     * whole array.
+     */
+    private static byte[] toArray(ByteBuffer data) {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+                && data.remaining() == data.array().length) {
+            return data.array();
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private void insertAfter(StageContext previous, String name, Object handler) {
+        if (name == null || handler == null) {
+            throw new NullPointerException("Stage name or handler is null!");
+        }
+        if (!(handler instanceof InboundHandler) && !(handler instanceof OutboundHandler)) {
+            throw new IllegalArgumentException("Handler must be an InboundHandler or an OutboundHandler!");
+        }
+        if (lookup(name) != null) {
+            throw new IllegalArgumentException("A stage named " + name + " already exists!");
+        }
+        StageContext context = new StageContext(name, handler);
+        context.mPrev = previous;
+        context.mNext = previous.mNext;
+        previous.mNext.mPrev = context;
+        previous.mNext = context;
+        if (context.mInbound != null) mInboundCount++;
+        if (context.mOutbound != null) mOutboundCount++;
+    }
+
+    private StageContext find(String name) {
+        StageContext context = lookup(name);
+        if (context == null) {
+            throw new IllegalArgumentException("No stage named " + name + "!");
+        }
+        return context;
+    }
+
+    private StageContext lookup(String name) {
+        for (StageContext context = mHead.mNext; context != mTail; context = context.mNext) {
+            if (context.mName.equals(name)) {
+                return context;
+            }
+        }
+        return null;
+    }
+}
@@ -9,20 +9,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
-import android.os.AsyncTask;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Created by Nick Mosher on 4/23/15.
@@ -39,17 +33,21 @@ import java.util.Map;
  * SendIntent, and ReceiveIntent, respectively).
  * @author Nick Mosher, nicholastmosher@gmail.com, https://github.com/nicholastmosher
  */
-public class ConnectionService extends Service {
+public class ConnectionService extends Service implements Transport {
+
+    private static final String TAG = "ConnectionService";
 
     /**
-     * Allows for one task per connection to be active.  For example, a DisconnectTask
-     * issued while a ConnectTask is executing on a connection will need to first
-     * interrupt the ConnectTask before it can be active.  If the active Task finishes,
-     * it removes itself from this Map.
+     * The default number of connections that may be connecting or
+     * disconnecting at the same time.
      */
-    private final Map<Connection, AsyncTask<Connection, Void, Boolean>> mTasks = new HashMap<>();
+    public static final int DEFAULT_LIFECYCLE_PARALLELISM = DefaultScheduler.DEFAULT_LIFECYCLE_PARALLELISM;
 
-    private static final String TAG = "ConnectionService";
+    /**
+     * The number of threads shared by every connection for writing outbound
+     * data, however many connections are open.
+     */
+    public static final int WRITER_THREADS = DefaultScheduler.WRITER_THREADS;
 
     private static boolean launched = false;
 
@@ -59,7 +57,29 @@ public class ConnectionService extends Service {
      */
     private static ConnectionService SINGLETON;
 
-    private UsbManager mUsbManager;
+    /**
+     * Posts to the UI thread, for connect timeouts and for the executor below.
+     */
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Passes runnables to the UI thread, where connection listeners expect to
+     * be notified.
+     */
+    private static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            MAIN_HANDLER.post(runnable);
+        }
+    };
+
+    /**
+     * Does the actual connecting, sending and receiving, reporting back on
+     * the UI thread.  This service only adds what needs Android: Bluetooth,
+     * USB and the Service lifecycle.
+     */
+    private final DefaultScheduler mScheduler = new DefaultScheduler(MAIN_THREAD_EXECUTOR);
+    private final TransportRuntime mRuntime = new TransportRuntime(mScheduler);
 
     /**
      * Launches the ConnectionService if it is not already active.
@@ -89,7 +109,8 @@ public class ConnectionService extends Service {
     public void onCreate() {
         SINGLETON = this;
         launched = true;
-        mUsbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
+        mRuntime.setConnector(Connection.TYPE_BLUETOOTH, new BluetoothConnector());
+        Connection.setTransport(this);
     }
 
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -131,12 +152,78 @@ public class ConnectionService extends Service {
 
     public void onDestroy() {
         launched = false;
+        if(Connection.getTransport() == this) {
+            Connection.setTransport(null);
+        }
+        mRuntime.shutdown();
+        mScheduler.shutdown();
+    }
+
+    /**
+     * Returns the plain Java runtime that does this service's work.
+     * @return The TransportRuntime.
+     */
+    public TransportRuntime getRuntime() {
+        return mRuntime;
+    }
+
+    /**
+     * Adds up the stats of every connection this service has connected that
+     * is still in use.  Each connection's own stats are available from
+     * Connection.getStats().
+     * @return A copy of the combined stats.
+     */
+    public ConnectionStats getAggregateStats() {
+        return mRuntime.getAggregateStats();
+    }
+
+    /**
+     * Sets how many connections may be connecting or disconnecting at the
+     * same time.  Tasks for any single connection still run one at a time.
+     * @param parallelism The number of lifecycle threads.
+     */
+    public void setLifecycleParallelism(int parallelism) {
+        if(parallelism < 1) {
+            Log.w(TAG, "Lifecycle parallelism must be positive.");
+            return;
+        }
+        mScheduler.setLifecycleParallelism(parallelism);
+    }
+
+    /**
+     * Returns how many connections may be connecting or disconnecting at the
+     * same time.
+     * @return The number of lifecycle threads.
+     */
+    public int getLifecycleParallelism() {
+        return mScheduler.getLifecycleParallelism();
+    }
+
+    /**
+     * Chooses how TcpIpConnections are serviced.  With a positive count, every
+     * TcpIpConnection connected afterwards is multiplexed over that many shared
+     * NIO event loop threads rather than getting its own receiver and send
+     * thread.  A count of 0 restores the per-connection threads.  Connections
+     * open on a previous engine are closed.
+     * @param eventLoops The number of event loop threads, or 0 to disable.
+     */
+    public void setTcpIpEventLoops(int eventLoops) {
+        if(eventLoops < 0) {
+            Log.w(TAG, "Event loop count must not be negative.");
+            return;
+        }
+        try {
+            mRuntime.setTcpIpEventLoops(eventLoops);
+        } catch(IOException e) {
+            Log.e(TAG, "Unable to start TCP/IP event loops.", e);
+        }
     }
 
     /**
      * Queues the given connection to be connected.
      * @param connection The connection to connect.
      */
+    @Override
     public void connect(Connection connection) {
 
         if(connection == null) {
@@ -146,10 +233,8 @@ public class ConnectionService extends Service {
 
         switch(connection.getConnectionType()) {
             case Connection.TYPE_BLUETOOTH:
-                setTask(connection, new ConnectBluetoothTask());
-                break;
             case Connection.TYPE_TCPIP:
-                setTask(connection, new ConnectTcpIpTask());
+                mRuntime.connect(connection);
                 break;
             case Connection.TYPE_USB:
                 Log.i(TAG, "Usb not implemented yet.");
@@ -163,6 +248,7 @@ public class ConnectionService extends Service {
      * Queues the given connection to be disconnected.
      * @param connection The connection to be disconnected.
      */
+    @Override
     public void disconnect(Connection connection) {
 
         if(connection == null) {
@@ -172,10 +258,8 @@ public class ConnectionService extends Service {
 
         switch(connection.getConnectionType()) {
             case Connection.TYPE_BLUETOOTH:
-                setTask(connection, new DisconnectBluetoothTask());
-                break;
             case Connection.TYPE_TCPIP:
-                setTask(connection, new DisconnectTcpIpTask());
+                mRuntime.disconnect(connection);
                 break;
             case Connection.TYPE_USB:
                 Log.i(TAG, "Usb not implemented yet.");
@@ -192,662 +276,121 @@ public class ConnectionService extends Service {
      * @param data The data to send.
      */
     public void send(Connection connection, byte[] data) {
-
         if(connection == null) {
             Log.w(TAG, "Connection is null.");
             return;
         }
-
-        switch(connection.getConnectionType()) {
-            case Connection.TYPE_BLUETOOTH:
-                TransferManager.getManager(connection).postSendTask(new SendTask(connection, data));
-                break;
-            case Connection.TYPE_TCPIP:
-                TransferManager.getManager(connection).postSendTask(new SendTask(connection, data));
-                break;
-            case Connection.TYPE_USB:
-
-                break;
-            default:
-                Log.w(TAG, "Connection " + connection.toString() + " is not a valid type.");
-        }
+        connection.send(data);
     }
 
     /**
-     * Sets and executes a new active task for the given connection, interrupting any existing
-     * ones in the process.
-     * @param connection The connection to set this task for.
-     * @param task       The task to assign to the connection.
+     * Queues data to be sent over the given connection, returning a future
+     * that completes once the data has been written.
+     * @param connection The connection to send data over.
+     * @param data The data to send.
+     * @return A SendFuture that completes when the data is written or fails.
      */
-    private void setTask(Connection connection, AsyncTask<Connection, Void, Boolean> task) {
-
-        //Null safety check connection and task.
+    public SendFuture sendAsync(Connection connection, byte[] data) {
         if(connection == null) {
             Log.w(TAG, "Connection is null.");
-            return;
-        }
-        if(task == null) {
-            Log.w(TAG, "Task is null.");
-            return;
-        }
-
-        synchronized(mTasks) {
-            //If the connection already has a task running, cancel it and remove it.
-            if (mTasks.containsKey(connection)) {
-                AsyncTask<Connection, Void, Boolean> asyncTask = mTasks.get(connection);
-                //Null safety check the existing task.
-                if (asyncTask != null) {
-                    asyncTask.cancel(true);
-                }
-
-                //Remove the connection/task entry from the map.
-                mTasks.remove(connection);
-            }
-
-            //Add and launch the new task for the connection.
-            mTasks.put(connection, task);
-            task.execute(connection);
+            SendFuture future = new SendFuture(null, data == null ? 0 : data.length);
+            future.fail(new NullPointerException("Connection is null!"));
+            return future;
         }
+        return connection.sendAsync(data);
     }
 
     /**
-     * Opens an asynchronous task that does not run on the UI thread
-     * to handle opening BluetoothConnections.
-     * Usage: new ConnectBluetoothTask(myBluetoothConnection).execute();
+     * Queues data to be sent over the given connection unless that would take
+     * the connection's outbound queue past its high watermark.
+     * @param connection The connection to send data over.
+     * @param data The data to send.
+     * @return True if the data was queued, false if it was rejected.
      */
-    private class ConnectBluetoothTask extends AsyncTask<Connection, Void, Boolean> {
-
-        private BluetoothConnection mConnection;
-        private BluetoothAdapter mBluetoothAdapter;
-        private BluetoothSocket mBluetoothSocket;
-        private int retryCount;
-
-        private ConnectBluetoothTask(int retry) {
-            retryCount = retry;
+    public boolean trySend(Connection connection, byte[] data) {
+        if(connection == null) {
+            Log.w(TAG, "Connection is null.");
+            return false;
         }
+        return connection.trySend(data);
+    }
 
-        public ConnectBluetoothTask() {
-            this(0);
-        }
+    @Override
+    public boolean offer(Connection connection, byte[] data, boolean bounded, SendFuture future) {
+        return mRuntime.offer(connection, data, bounded, future);
+    }
 
-        /**
-         * This method runs on a separate, non-UI thread.  Heavy lifting goes here.
-         * @return True if connecting succeeded, false if it failed.
-         */
-        protected Boolean doInBackground(Connection... params) {
+    /**
+     * Opens BluetoothConnections with an RFCOMM BluetoothSocket.
+     */
+    private class BluetoothConnector implements TransportRuntime.Connector {
 
-            //Perform connection null and type safety checks.
-            Connection temp = params[0];
-            if(temp == null) {
-                new NullPointerException("Connection is null!").printStackTrace();
-                return false;
-            }
-            if(!(temp instanceof BluetoothConnection)) {
-                new IllegalArgumentException("Connection is not a BluetoothConnection!").printStackTrace();
-                return false;
+        @Override
+        public void open(Connection connection) throws IOException {
+            if(!(connection instanceof BluetoothConnection)) {
+                throw new IllegalArgumentException("Connection is not a BluetoothConnection!");
             }
-            mConnection = (BluetoothConnection) temp;
+            BluetoothConnection bluetoothConnection = (BluetoothConnection) connection;
 
-            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+            BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
             //Check if BT is enabled
-            if(!mBluetoothAdapter.isEnabled()) {
+            if(!bluetoothAdapter.isEnabled()) {
                 new IllegalStateException("Cannot connect, Bluetooth is disabled!").printStackTrace();
             }
             System.out.println("BluetoothAdapter Enabled...");
 
             //Define a BluetoothDevice with the address from our Connection.
-            String address = mConnection.getAddress();
+            String address = bluetoothConnection.getAddress();
             BluetoothDevice device;
             if(address != null && BluetoothAdapter.checkBluetoothAddress(address)) {
-                device = mBluetoothAdapter.getRemoteDevice(address);
+                device = bluetoothAdapter.getRemoteDevice(address);
                 System.out.println("Bluetooth Device parsed from BluetoothAdapter...");
             } else {
-                new IllegalStateException("Error connecting to bluetooth! Problem with address.").printStackTrace();
-                return false;
+                throw new IOException("Error connecting to bluetooth! Problem with address.");
             }
 
             //Try to retrieve a BluetoothSocket from the BluetoothDevice.
-            try {
-                mBluetoothSocket = device.createRfcommSocketToServiceRecord(BluetoothConnection.BLUETOOTH_SERIAL_UUID);
-                System.out.println("BluetoothSocket retrieved from Bluetooth Device...");
-            } catch(IOException e) {
-                e.printStackTrace();
-                return false;
-            }
+            final BluetoothSocket socket = device.createRfcommSocketToServiceRecord(BluetoothConnection.BLUETOOTH_SERIAL_UUID);
+            System.out.println("BluetoothSocket retrieved from Bluetooth Device...");
 
             //Shouldn't need to be discovering at this point.
-            mBluetoothAdapter.cancelDiscovery();
+            bluetoothAdapter.cancelDiscovery();
+
+            //BluetoothSocket.connect() has no timeout, so close the socket if it takes too long.
+            Runnable timeout = new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println("Bluetooth connect timed out.");
+                    try {
+                        socket.close();
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            MAIN_HANDLER.postDelayed(timeout, connection.getConnectTimeoutMillis());
 
-            //Attempt to connect to the bluetooth device and receive a BluetoothSocket
+            //Attempt to connect to the bluetooth device.
             try {
-                mBluetoothSocket.connect();
-                mConnection.setBluetoothSocket(mBluetoothSocket);
-                mConnection.notifyConnect();
+                socket.connect();
+                bluetoothConnection.setBluetoothSocket(socket);
                 System.out.println("BluetoothSocket connected, success!");
             } catch(IOException e) {
-                e.printStackTrace();
                 try {
-                    mBluetoothSocket.close();
+                    socket.close();
                 } catch(IOException e2) {
                     e2.printStackTrace();
                 }
-                return false;
+                throw e;
+            } finally {
+                MAIN_HANDLER.removeCallbacks(timeout);
             }
-
-            //If we've made it this far, must have been a success.
-            return true;
         }
 
-        /**
-         * Result method that runs on the UI thread.  Background thread reports
-         * to this thread when it's finished.
-         * @param success Whether the background thread succeeded or failed.
-         */
-        @Override
-        protected void onPostExecute(Boolean success) {
-            super.onPostExecute(success);
-            if(success) {
-                System.out.println("Connected success");
-
-                //Create a TransferManager to handle actual data to/from the connection.
-                new TransferManager(mConnection);
-
-                //Notify connection that it's connected.
-                mConnection.notifyConnect();
-            } else {
-                System.out.println("Connected failed");
-                if(mBluetoothSocket.isConnected()) {
-                    System.out.println("WARNING: ConnectBluetoothTask reported error, but is connected.");
-                    mConnection.notifyConnect();
-                } else {
-                    if(retryCount < 3) {
-                        retryCount++;
-                        System.out.println("Error connecting! Retrying... (retry " + retryCount + ").");
-                        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-                        mBluetoothSocket = null;
-                        setTask(mConnection, new ConnectBluetoothTask(retryCount));
-                    } else {
-                        retryCount = 0;
-                        System.out.println("Error connecting, Aborting!");
-                        mConnection.notifyConnect();
-                    }
-                }
-            }
-        }
-    }
-
-    /**
-     * Uses an asynchronous task not on the UI thread to close BluetoothConnections.
-     * Usage: new DisconnectBluetoothTask(myBluetoothConnection).execute();
-     */
-    private class DisconnectBluetoothTask extends AsyncTask<Connection, Void, Boolean> {
-
-        private BluetoothConnection mConnection;
-
-        @Override
-        protected Boolean doInBackground(Connection... params) {
-
-            //Perform connection null and type safety checks.
-            Connection temp = params[0];
-            if(temp == null) {
-                new NullPointerException("Connection is null!").printStackTrace();
-                return false;
-            }
-            if(!(temp instanceof BluetoothConnection)) {
-                new IllegalArgumentException("Connection is not a BluetoothConnection!").printStackTrace();
-                return false;
-            }
-            mConnection = (BluetoothConnection) temp;
-
-            if(mConnection.getStatus().equals(Connection.Status.Connected)) {
-                try {
-                    mConnection.getBluetoothSocket().close();
-                    return true;
-                } catch(IOException e) {
-                    e.printStackTrace();
-                    new IllegalStateException("Error closing BT socket at disconnect!").printStackTrace();
-                }
-            }
-            return false;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean success) {
-            super.onPostExecute(success);
-            if(!mConnection.getStatus().equals(Connection.Status.Connected)) {
-
-                //Find the TransferManager for this connection and close it.
-                TransferManager manager = TransferManager.getManager(mConnection);
-                if(manager != null) {
-                    manager.close();
-                }
-
-                //Notify connection of disconnect.
-                mConnection.notifyDisconnect();
-            }
-        }
-    }
-
-    /**
-     * Uses an asynchronous task not on the UI thread to open a TCPIP connection.
-     * Usage: new ConnectTcpIpTask(myTcpIpConnection).execute();
-     * FIXME Redo the retry system. Shit's scary
-     */
-    private class ConnectTcpIpTask extends AsyncTask<Connection, Void, Boolean> {
-
-        private TcpIpConnection mConnection;
-        private Socket mSocket;
-        private int retryCount;
-
-        private ConnectTcpIpTask(int retry) {
-            retryCount = retry;
-        }
-
-        public ConnectTcpIpTask() {
-            this(0);
-        }
-
-        @Override
-        protected Boolean doInBackground(Connection... params) {
-
-            //Perform connection null and type safety checks.
-            Connection temp = params[0];
-            if(temp == null) {
-                new NullPointerException("Connection is null!").printStackTrace();
-                return false;
-            }
-            if(!(temp instanceof TcpIpConnection)) {
-                new NullPointerException("Connection is not a TCP/IP Connection!").printStackTrace();
-                return false;
-            }
-            mConnection = (TcpIpConnection) temp;
-
-            try {
-                System.out.println("Connecting to " + mConnection.getServerIp() + ":" + mConnection.getServerPort());
-                mSocket = new Socket(mConnection.getServerIp(), mConnection.getServerPort());
-                mConnection.setSocket(mSocket);
-            } catch(IOException ioe) {
-                ioe.printStackTrace();
-                return false;
-            }
-            return true;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean success) {
-            super.onPostExecute(success);
-            if(success) {
-                System.out.println("Connected success");
-
-                //Create a TransferManager to handle actual data to/from the connection.
-                new TransferManager(mConnection);
-
-                //Notify connection that it's connected.
-                mConnection.notifyConnect();
-            } else if(mSocket != null) {
-                System.out.println("Connected failed");
-                if(mSocket.isConnected()) {
-                    System.out.println("WARNING: ConnectBluetoothTask reported error, but is connected.");
-                    mConnection.notifyConnect();
-                } else {
-                    if(retryCount < 3) {
-                        retryCount++;
-                        System.out.println("Error connecting! Retrying... (retry " + retryCount + ").");
-                        mSocket = null;
-                        setTask(mConnection, new ConnectTcpIpTask());
-                    } else {
-                        retryCount = 0;
-                        System.out.println("Error connecting, Aborting!");
-                        mConnection.notifyConnect();
-                    }
-                }
-            } else {
-                System.err.println("Error, TcpIp socket is null");
-                mConnection.notifyConnect();
-            }
-        }
-    }
-
-    /**
-     * Uses an asynchronous task not on the UI thread to close a TcpIpConnection.
-     * Usage: new DisconnectTcpIpTask(myTcpIpConnection).execute();
-     */
-    private class DisconnectTcpIpTask extends AsyncTask<Connection, Void, Boolean> {
-
-        private TcpIpConnection mConnection;
-
-        @Override
-        protected Boolean doInBackground(Connection... params) {
-
-            //Perform connection null and type safety checks.
-            Connection temp = params[0];
-            if(temp == null) {
-                new NullPointerException("Connection is null!").printStackTrace();
-                return false;
-            }
-            if(!(temp instanceof TcpIpConnection)) {
-                new IllegalArgumentException("Connection is not a TCP/IP Connection").printStackTrace();
-                return false;
-            }
-            mConnection = (TcpIpConnection) temp;
-
-            if(mConnection.getStatus().equals(Connection.Status.Connected)) {
-                try {
-                    mConnection.getSocket().close();
-                    return true;
-                } catch(IOException ioe) {
-                    ioe.printStackTrace();
-                    throw new IllegalStateException("Error closing socket at disconnect!");
-                }
-            }
-            return false;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean param) {
-            super.onPostExecute(param);
-            if(!mConnection.getStatus().equals(Connection.Status.Connected)) {
-
-                //Find the TransferManager for this connection and close it.
-                TransferManager manager = TransferManager.getManager(mConnection);
-                if(manager != null) {
-                    manager.close();
-                }
-
-                //Notify connection of disconnect.
-                mConnection.notifyDisconnect();
-            }
-        }
-    }
-
-    /**
-     * Uses an asynchronous task not on the UI thread to open a UsbHostConnection.
-     * Usage: new ConnectUsbTask(myUsbHostConnection).execute();
-     */
-    private class ConnectUsbTask extends AsyncTask<Connection, Void, Boolean> {
-
-        private UsbHostConnection mConnection;
-
-        @Override
-        protected Boolean doInBackground(Connection... params) {
-
-            //Perform connection null and type safety checks.
-            Connection temp = params[0];
-            if(temp == null) {
-                new NullPointerException("Connection is null!").printStackTrace();
-                return false;
-            }
-            if(!(temp instanceof UsbHostConnection)) {
-                new IllegalArgumentException("Connection is not a UsbHostConnection!").printStackTrace();
-                return false;
-            }
-            mConnection = (UsbHostConnection) temp;
-
-            UsbDevice usbDevice = mConnection.getUsbDevice();
-            UsbInterface usbInterface = usbDevice.getInterface(0);
-            UsbDeviceConnection usbDeviceConnection = mUsbManager.openDevice(usbDevice);
-
-            //Force-claim the interface for this usb connection.  Will release at disconnect.
-            usbDeviceConnection.claimInterface(usbInterface, true);
-
-            return true;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean success) {
-            super.onPostExecute(success);
-        }
-    }
-
-    /**
-     * Uses an asynchronous task not on the UI thread to close a UsbHostConnection.
-     * Usage: new DisconnectUsbTask(myUsbHostConnection).execute();
-     */
-    private class DisconnectUsbTask extends AsyncTask<Connection, Void, Boolean> {
-
-        private UsbHostConnection mConnection;
-
-        @Override
-        protected Boolean doInBackground(Connection... params) {
-
-            //Perform connection null and type safety checks.
-            Connection temp = params[0];
-            if(temp == null) {
-                new NullPointerException("Connection is null!").printStackTrace();
-                return false;
-            }
-            if(!(temp instanceof UsbHostConnection)) {
-                new IllegalArgumentException("Connection is not a UsbHostConnection!").printStackTrace();
-                return false;
-            }
-            mConnection = (UsbHostConnection) temp;
-
-            UsbDevice usbDevice = mConnection.getUsbDevice();
-            UsbInterface usbInterface = usbDevice.getInterface(0);
-            UsbDeviceConnection usbDeviceConnection = mUsbManager.openDevice(usbDevice);
-
-            //Releases our claim on this usb connection.
-            usbDeviceConnection.releaseInterface(usbInterface);
-
-            return true;
-        }
-    }
-
-    /**
-     * A new TransferManager is created every time a new Connection is connected.
-     * The TransferManager is responsible for asynchronously watching the connection
-     * for incoming data and sending data in a nonblocking, sequence-safe manner.
-     */
-    private static class TransferManager {
-
-        public static final String HANDLER_NAME = "Send Thread";
-
-        private static final Map<Connection, TransferManager> MANAGERS = new HashMap<>();
-
-        private ReceiveTask mReceiver;
-        private HandlerThread mSendThread;
-        private Handler mSendHandler;
-
-        /**
-         * Creates a TransferManager with a new ReceiveThread based on the
-         * given connection.
-         * @param connection The connection to manage.
-         */
-        public TransferManager(Connection connection) {
-            this(connection, null);
-        }
-
-        /**
-         * Creates a TransferManager with an existing ReceiveThread based on
-         * the given connection.
-         * @param connection The connection to manage.
-         * @param receiver   The existing receiver to use.
-         */
-        public TransferManager(Connection connection, ReceiveTask receiver) {
-            if(connection == null) {
-                throw new NullPointerException("Connection is null!");
-            }
-
-            //Register this TransferManager with this connection.
-            MANAGERS.put(connection, this);
-
-            //Initialize receiver safely.
-            if(receiver == null) {
-                mReceiver = new ReceiveTask(connection);
-            } else {
-                mReceiver = receiver;
-            }
-            openReceiver();
-
-            //Initialize send thread.
-            mSendThread = new HandlerThread(HANDLER_NAME);
-            mSendThread.start();
-            mSendHandler = new Handler(mSendThread.getLooper());
-        }
-
-        /**
-         * Returns the TransferManager for the given connection.
-         * @param connection The connection to retrieve the manager of.
-         * @return The TransferManager.
-         */
-        public static TransferManager getManager(Connection connection) {
-            return MANAGERS.get(connection);
-        }
-
-        /**
-         * Launches the ReceiverThread associated with this Connection and starts
-         * listening for incoming data.
-         */
-        public void openReceiver() {
-            mReceiver.execute();
-        }
-
-        /**
-         * Posts a new SendTask to the handler queue to be asynchronously
-         * but sequentially sent.
-         * @param sendTask The SendTask to execute.
-         */
-        public void postSendTask(SendTask sendTask) {
-            System.out.println("POSTING SEND TASK");
-            if(sendTask == null) {
-                new NullPointerException("SendTask is null!").printStackTrace();
-                return;
-            }
-            mSendHandler.post(sendTask);
-        }
-
-        /**
-         * Closes the TransferManager by interrupting the ReceiveThread and all
-         * SendThreads.
-         */
-        public void close() {
-            mReceiver.cancel(true);
-            mSendThread.interrupt();
-        }
-    }
-
-    /**
-     * Uses an asynchronous task not on the UI thread to send data over a Connection.
-     * Usage: new SendTask(myConnection, myData).execute();
-     */
-    private class SendTask implements Runnable {
-
-        private Connection mConnection;
-        private byte[] mData;
-        private boolean mError = false;
-
-        public SendTask(Connection connection, byte[] data) {
-
-            //If the connection or data is null, set a flag so we skip everything in run().
-            if(connection == null) {
-                new NullPointerException("Connection is null!").printStackTrace();
-                mError = true;
-            } else if(data == null) {
-                new NullPointerException("Data is null!").printStackTrace();
-                mError = true;
-            }
-            mConnection = connection;
-            mData = data;
-        }
-
-        public void run() {
-            //If there was an error indicated in the constructor, don't try anything.
-            if(mError) {
-                return;
-            }
-
-            if(mConnection.getStatus().equals(Connection.Status.Connected)) {
-                try {
-                    mConnection.getOutputStream().write(mData);
-                } catch(IOException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                System.out.println("Connection is not connected!");
-            }
-        }
-    }
-
-    /**
-     * A ReceiveTask is spawned when a new Connection is successfully established.
-     * This task is responsible for monitoring incoming data over the given
-     * connection and notifying that connection's listeners when data is received.
-     * This functionality is implemented using an AsyncTask rather than a Thread
-     * for a specific reason. When we receive data and it's time to notify all of
-     * the listeners, those listeners may want to make UI updates. However, all
-     * threads other than the main UI thread are forbidden to touch UI objects, so
-     * the AsyncTask passes received values to methods in the UI thread which then
-     * calls all of the listeners.
-     */
-    private static class ReceiveTask extends AsyncTask<Void, byte[], Void> {
-
-        private Connection mConnection;
-        private boolean isRunning;
-
-        /**
-         * Create a new ReceiveThread that watches the given connection.
-         * @param connection The connection to receive data from.
-         */
-        public ReceiveTask(Connection connection) {
-            if(connection == null) {
-                throw new NullPointerException("Connection is null!");
-            }
-            mConnection = connection;
-            isRunning = true;
-        }
-
-        /**
-         * Wait for data to be received from the given connection.
-         * @param params Filler for AsyncTask generic requirement.
-         * @return No value. Filler for AsyncTask generic requirement.
-         */
-        @Override
-        protected Void doInBackground(Void... params) {
-            Log.v(TAG, "Begin receive task for connection " + mConnection.getName() + ".");
-            InputStream input = null;
-            while((mConnection.getStatus().equals(Connection.Status.Connected)) && isRunning) {
-
-                try {
-                    if(input == null) {
-                        input= mConnection.getInputStream();
-                        if(input == null) {
-                            throw new NullPointerException("InputStream is null.");
-                        }
-                    }
-
-                    while(input.available() > 0) {
-                        int in = input.read();
-                        if(in == -1) {
-                            throw new IOException("Input stream returned -1.");
-                        }
-                        publishProgress(new byte[]{(byte) in});
-                    }
-
-                } catch(IOException e) {
-                    //Happens if the bufferedReader's stream is closed.
-                    e.printStackTrace();
-                }
-
-                try {
-                    Thread.sleep(50);
-                } catch(InterruptedException e) {
-                    e.printStackTrace();
-                    isRunning = false;
-                }
-            }
-            return null;
-        }
-
-        /**
-         * When we receive data, we must notify the listeners from a scope
-         * within the UI thread.
-         * @param values The data received from this connection.
-         */
         @Override
-        protected void onProgressUpdate(byte[]... values) {
-            super.onProgressUpdate(values);
-            mConnection.notifyDataReceived(values[0]);
+        public void close(Connection connection) throws IOException {
+            ((BluetoothConnection) connection).getBluetoothSocket().close();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,289 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what goes over a single Connection: the bytes and messages sent
+ * and received, how much is waiting to be sent, how long connecting and
+ * sending take, and how often things go wrong.  Every Connection keeps one,
+ * returned by Connection.getStats(), and TransportRuntime.getAggregateStats()
+ * adds up those of every connection it has handled.
+ * <p/>
+ * The counters on the send and receive paths are striped, so threads
+ * sending over the same Connection at once don't slow each other down.
+ * Comparing connections' send latencies and error counts is usually the
+ * quickest way to find the slow or flaky devices among many.
+ */
+public final class ConnectionStats {
+
+    private static final long NOT_CONNECTING = Long.MIN_VALUE;
+
+    /**
+     * The connection these are the stats of, or null for an aggregate.
+     */
+    private final Connection mConnection;
+
+    private final StripedCounter mBytesSent = new StripedCounter();
+    private final StripedCounter mMessagesSent = new StripedCounter();
+    private final StripedCounter mBytesReceived = new StripedCounter();
+    private final StripedCounter mMessagesReceived = new StripedCounter();
+    private final StripedCounter mQueuedSends = new StripedCounter();
+    private final StripedCounter mSendFailures = new StripedCounter();
+
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private final AtomicLong mConnectFailures = new AtomicLong();
+    private final AtomicLong mConnectionsLost = new AtomicLong();
+
+    private final LatencyHistogram mConnectTimes = new LatencyHistogram();
+    private final LatencyHistogram mSendLatencies = new LatencyHistogram();
+
+    /**
+     * When the connect in progress began, from System.nanoTime().
+     */
+    private final AtomicLong mConnectStartNanos = new AtomicLong(NOT_CONNECTING);
+
+    /**
+     * The queued bytes of every connection in an aggregate.
+     */
+    private long mQueuedSendBytes;
+
+    ConnectionStats(Connection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * Returns the number of bytes written to the remote.
+     * @return The number of bytes sent.
+     */
+    public long getBytesSent() {
+        return mBytesSent.sum();
+    }
+
+    /**
+     * Returns the number of sends written to the remote.  Sends coalesced
+     * into a single write are each counted.
+     * @return The number of messages sent.
+     */
+    public long getMessagesSent() {
+        return mMessagesSent.sum();
+    }
+
+    /**
+     * Returns the number of bytes read from the remote.
+     * @return The number of bytes received.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.sum();
+    }
+
+    /**
+     * Returns the number of reads delivered to the listeners, before any
+     * pipeline stages or frame decoding.
+     * @return The number of messages received.
+     */
+    public long getMessagesReceived() {
+        return mMessagesReceived.sum();
+    }
+
+    /**
+     * Returns the number of sends queued that have not yet been written or
+     * dropped.
+     * @return The depth of the send queue.
+     */
+    public long getQueuedSends() {
+        return mQueuedSends.sum();
+    }
+
+    /**
+     * Returns the number of bytes queued that have not yet been written or
+     * dropped.
+     * @return The number of queued outbound bytes.
+     */
+    public long getQueuedSendBytes() {
+        return mConnection == null ? mQueuedSendBytes : mConnection.getQueuedSendBytes();
+    }
+
+    /**
+     * Returns the number of sends that were dropped rather than written,
+     * because the connection failed or was not connected.
+     * @return The number of failed sends.
+     */
+    public long getSendFailures() {
+        return mSendFailures.sum();
+    }
+
+    /**
+     * Returns the number of times the connection was established.
+     * @return The number of successful connects.
+     */
+    public long getConnects() {
+        return mConnects.get();
+    }
+
+    /**
+     * Returns the number of times the connection was established again after
+     * the first time.
+     * @return The number of reconnects.
+     */
+    public long getReconnects() {
+        return mReconnects.get();
+    }
+
+    /**
+     * Returns the number of connect attempts that failed, including those
+     * that were retried.
+     * @return The number of failed connect attempts.
+     */
+    public long getConnectFailures() {
+        return mConnectFailures.get();
+    }
+
+    /**
+     * Returns the number of times the connection was lost without being
+     * disconnected, because of an I/O error or the remote closing it.
+     * @return The number of lost connections.
+     */
+    public long getConnectionsLost() {
+        return mConnectionsLost.get();
+    }
+
+    /**
+     * Returns how long connecting took, from connect() to the connection
+     * being established, including any retries.
+     * @return The distribution of connect times.
+     */
+    public LatencyHistogram getConnectTimes() {
+        return mConnectTimes;
+    }
+
+    /**
+     * Returns how long sends took, from being queued to being written.
+     * @return The distribution of send latencies.
+     */
+    public LatencyHistogram getSendLatencies() {
+        return mSendLatencies;
+    }
+
+    /**
+     * Zeroes every counter and histogram, except for the queued sends and
+     * bytes, which still describe what is waiting to be sent.
+     */
+    public void reset() {
+        mBytesSent.reset();
+        mMessagesSent.reset();
+        mBytesReceived.reset();
+        mMessagesReceived.reset();
+        mSendFailures.reset();
+        mConnects.set(0);
+        mReconnects.set(0);
+        mConnectFailures.set(0);
+        mConnectionsLost.set(0);
+        mConnectTimes.reset();
+        mSendLatencies.reset();
+    }
+
+    /**
+     * Creates an empty ConnectionStats to add other connections' stats to.
+     * @return A ConnectionStats belonging to no connection.
+     */
+    static ConnectionStats aggregate() {
+        return new ConnectionStats(null);
+    }
+
+    /**
+     * Adds another connection's stats to these aggregate stats.
+     * @param other The stats to add.
+     */
+    void add(ConnectionStats other) {
+        mBytesSent.add(other.getBytesSent());
+        mMessagesSent.add(other.getMessagesSent());
+        mBytesReceived.add(other.getBytesReceived());
+        mMessagesReceived.add(other.getMessagesReceived());
+        mQueuedSends.add(other.getQueuedSends());
+        mQueuedSendBytes += other.getQueuedSendBytes();
+        mSendFailures.add(other.getSendFailures());
+        mConnects.addAndGet(other.getConnects());
+        mReconnects.addAndGet(other.getReconnects());
+        mConnectFailures.addAndGet(other.getConnectFailures());
+        mConnectionsLost.addAndGet(other.getConnectionsLost());
+        mConnectTimes.add(other.mConnectTimes);
+        mSendLatencies.add(other.mSendLatencies);
+    }
+
+    void onSendQueued() {
+        mQueuedSends.increment();
+    }
+
+    /**
+     * Records sends that have been written.
+     * @param count The number of sends written.
+     * @param bytes The number of bytes in them.
+     */
+    void onSendsWritten(int count, long bytes) {
+        mQueuedSends.add(-count);
+        mMessagesSent.add(count);
+        mBytesSent.add(bytes);
+    }
+
+    /**
+     * Records how long a written send waited.
+     * @param queuedNanos When the send was queued, from System.nanoTime().
+     * @param nowNanos    When it was written.
+     */
+    void onSendLatency(long queuedNanos, long nowNanos) {
+        mSendLatencies.recordNanos(nowNanos - queuedNanos);
+    }
+
+    /**
+     * Records queued sends that were dropped instead of written.
+     * @param count The number of sends dropped.
+     */
+    void onSendsFailed(int count) {
+        if (count > 0) {
+            mQueuedSends.add(-count);
+            mSendFailures.add(count);
+        }
+    }
+
+    void onReceived(int bytes) {
+        mMessagesReceived.increment();
+        mBytesReceived.add(bytes);
+    }
+
+    void onConnectStarted() {
+        mConnectStartNanos.set(System.nanoTime());
+    }
+
+    void onConnected() {
+        long started = mConnectStartNanos.getAndSet(NOT_CONNECTING);
+        if (started != NOT_CONNECTING) {
+            mConnectTimes.recordNanos(System.nanoTime() - started);
+        }
+        if (mConnects.getAndIncrement() > 0) {
+            mReconnects.incrementAndGet();
+        }
+    }
+
+    void onConnectFailed() {
+        mConnectFailures.incrementAndGet();
+    }
+
+    void onConnectionLost() {
+        mConnectionsLost.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + getBytesSent() + "B/" + getMessagesSent()
+                + " received=" + getBytesReceived() + "B/" + getMessagesReceived()
+                + " queued=" + getQueuedSendBytes() + "B/" + getQueuedSends()
+                + " sendFailures=" + getSendFailures()
+                + " connects=" + getConnects()
+                + " reconnects=" + getReconnects()
+                + " connectFailures=" + getConnectFailures()
+                + " lost=" + getConnectionsLost()
+                + " connectTimes=[" + mConnectTimes + "]"
+                + " sendLatencies=[" + mSendLatencies + "]";
+    }
+}
@@ -0,0 +1,519 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the Connections of a ConnectionModel to disk and restores them.
+ * <p/>
+ * The store keeps two files in its directory: a snapshot holding every saved
+ * Connection, and a journal that each change to the model is appended to as
+ * a single small record.  Both are read through memory-mapped buffers when
+ * the store is opened.  Once the journal grows larger than the snapshot, the
+ * store writes a new snapshot and empties the journal in the background.
+ * All writes happen on the store's own thread, so changing the model never
+ * waits on the disk.
+ * <p/>
+ * BluetoothConnections and TcpIpConnections are saved along with their name,
+ * address and UUID.  Other kinds of Connection are not saved.
+ */
+public final class ConnectionStore {
+
+    static final String SNAPSHOT_FILE = "connections.snapshot";
+    static final String JOURNAL_FILE = "connections.journal";
+
+    /**
+     * The journal is compacted once it holds this many records, or as many
+     * records as there are saved Connections, whichever is larger.
+     */
+    static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private static final int SNAPSHOT_MAGIC = 0x45435331;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte KIND_BLUETOOTH = 1;
+    private static final byte KIND_TCPIP = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mSnapshotFile;
+    private final File mJournalFile;
+
+    /**
+     * Runs every write, in order.
+     */
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ConnectionStore Writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The encoded put record of every saved Connection.  Only touched by
+     * open() and then by the writer thread.
+     */
+    private final Map<UUID, byte[]> mRecords = new LinkedHashMap<>();
+
+    private FileChannel mJournal;
+    private int mJournalRecords;
+
+    private volatile ConnectionModel mModel;
+    private volatile boolean mClosed;
+
+    /**
+     * Connections put into the model by open(), which don't need saving again
+     * when the model reports them as added.
+     */
+    private final Set<Connection> mRestored =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    private final ConnectionModel.OnModelChangedListener mModelListener = new ConnectionModel.OnModelChangedListener() {
+        @Override
+        public void onModelChanged(ConnectionModel model, ModelChangeSet changes) {
+            for (Connection connection : changes.getAdded()) {
+                save(connection);
+            }
+            for (Connection connection : changes.getChanged()) {
+                save(connection);
+            }
+            for (Connection connection : changes.getRemoved()) {
+                connection.removeOnMetadataChangedListener(mMetadataListener);
+                mRestored.remove(connection);
+                append(connection.mUUID, encodeRemove(connection.mUUID));
+            }
+        }
+    };
+
+    private final Connection.OnMetadataChangedListener mMetadataListener = new Connection.OnMetadataChangedListener() {
+        @Override
+        public void onMetadataChanged(Connection connection) {
+            ConnectionModel model = mModel;
+            if (model != null && model.get(connection.mUUID) == connection) {
+                byte[] record = encodePut(connection);
+                if (record != null) {
+                    append(connection.mUUID, record);
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructs a ConnectionStore that keeps its files in the given directory,
+     * such as Context.getFilesDir().
+     * @param directory The directory to store Connections in.
+     */
+    public ConnectionStore(File directory) {
+        if (directory == null) {
+            throw new NullPointerException("Directory is null!");
+        }
+        mSnapshotFile = new File(directory, SNAPSHOT_FILE);
+        mJournalFile = new File(directory, JOURNAL_FILE);
+    }
+
+    /**
+     * Restores the saved Connections into the given model, then saves every
+     * change made to the model from here on.  Connections that were already
+     * in the model are saved the next time they change.
+     * @param model The model to restore and save.
+     * @return The number of Connections restored.
+     * @throws IOException If the store's files cannot be read or created.
+     */
+    public synchronized int open(ConnectionModel model) throws IOException {
+        if (model == null) {
+            throw new NullPointerException("Model is null!");
+        }
+        if (mModel != null) {
+            throw new IllegalStateException("ConnectionStore is already open!");
+        }
+        if (mClosed) {
+            throw new IllegalStateException("ConnectionStore is closed!");
+        }
+
+        mRecords.clear();
+        readSnapshot();
+        long journalLength = readJournal();
+        mJournal = new RandomAccessFile(mJournalFile, "rw").getChannel();
+        mJournal.truncate(journalLength);
+        mJournal.position(journalLength);
+
+        boolean compact = mJournalRecords >= Math.max(MIN_COMPACTION_RECORDS, mRecords.size());
+        List<Connection> restored = new ArrayList<>(mRecords.size());
+        for (byte[] record : mRecords.values()) {
+            Connection connection = decode(record);
+            if (connection != null) {
+                restored.add(connection);
+            }
+        }
+
+        mModel = model;
+        mRestored.addAll(restored);
+        for (Connection connection : restored) {
+            connection.addOnMetadataChangedListener(mMetadataListener);
+        }
+        model.addOnModelChangedListener(mModelListener);
+        model.beginBatch();
+        try {
+            for (Connection connection : restored) {
+                model.put(connection.mUUID, connection);
+            }
+        } finally {
+            model.endBatch();
+        }
+        if (compact) {
+            compact();
+        }
+        return restored.size();
+    }
+
+    /**
+     * Writes a new snapshot and empties the journal in the background.  This
+     * happens automatically as the journal grows.  Does nothing once the
+     * store is closed.
+     */
+    public void compact() {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                compactNow();
+            }
+        });
+    }
+
+    /**
+     * Stops saving changes to the model, and waits for pending writes to
+     * reach the disk.  A closed store cannot be opened again.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        ConnectionModel model = mModel;
+        if (model != null) {
+            model.removeOnModelChangedListener(mModelListener);
+            for (Connection connection : model.values()) {
+                connection.removeOnMetadataChangedListener(mMetadataListener);
+            }
+        }
+        mModel = null;
+        mRestored.clear();
+        mClosed = true;
+        //Queued ahead of the shutdown, so it runs after every write already queued.
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal == null) {
+                    return;
+                }
+                try {
+                    mJournal.force(false);
+                    mJournal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                mJournal = null;
+            }
+        });
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void save(Connection connection) {
+        if (mRestored.remove(connection)) {
+            return;
+        }
+        byte[] record = encodePut(connection);
+        if (record == null) {
+            return;
+        }
+        connection.addOnMetadataChangedListener(mMetadataListener);
+        append(connection.mUUID, record);
+    }
+
+    private void append(final UUID uuid, final byte[] record) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal == null) {
+                    return;
+                }
+                if (record[0] == OP_PUT) {
+                    mRecords.put(uuid, record);
+                } else {
+                    mRecords.remove(uuid);
+                }
+                try {
+                    writeFully(mJournal, frame(record));
+                    mJournalRecords++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                if (mJournalRecords >= Math.max(MIN_COMPACTION_RECORDS, mRecords.size())) {
+                    compactNow();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a write on the writer thread.  Once the store is closed, writes
+     * are dropped, including those from a model change that was already
+     * being delivered when the listener was removed.
+     */
+    private void write(Runnable task) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            mWriter.execute(task);
+        } catch (RejectedExecutionException e) {
+            //The store was closed after the check above.
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the current records and empties the
+     * journal.  Runs on the writer thread.  A crash part way through leaves
+     * either the old snapshot and full journal, or the new snapshot and a
+     * journal whose records it already contains; both load the same way.
+     */
+    private void compactNow() {
+        if (mJournal == null) {
+            return;
+        }
+        File temp = new File(mSnapshotFile.getPath() + ".tmp");
+        try {
+            int size = 8;
+            for (byte[] record : mRecords.values()) {
+                size += record.length + 8;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(mRecords.size());
+            for (byte[] record : mRecords.values()) {
+                putFrame(buffer, record);
+            }
+            buffer.flip();
+
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                writeFully(out.getChannel(), buffer);
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mSnapshotFile)) {
+                mSnapshotFile.delete();
+                if (!temp.renameTo(mSnapshotFile)) {
+                    throw new IOException("Could not replace " + mSnapshotFile);
+                }
+            }
+            mJournal.truncate(0);
+            mJournal.position(0);
+            mJournalRecords = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        MappedByteBuffer buffer = map(mSnapshotFile);
+        if (buffer == null) {
+            return;
+        }
+        if (buffer.remaining() < 8 || buffer.getInt() != SNAPSHOT_MAGIC) {
+            System.out.println("Ignoring unrecognized connection snapshot " + mSnapshotFile);
+            return;
+        }
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] record = nextRecord(buffer);
+            if (record == null) {
+                System.out.println("Connection snapshot is damaged after " + i + " records!");
+                return;
+            }
+            apply(record);
+        }
+    }
+
+    /**
+     * Replays the journal over the snapshot's records.
+     * @return The length of the journal up to its last intact record.
+     */
+    private long readJournal() throws IOException {
+        MappedByteBuffer buffer = map(mJournalFile);
+        mJournalRecords = 0;
+        if (buffer == null) {
+            return 0;
+        }
+        byte[] record;
+        while ((record = nextRecord(buffer)) != null) {
+            apply(record);
+            mJournalRecords++;
+        }
+        return buffer.position();
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        byte op = buffer.get();
+        UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+        if (op == OP_PUT) {
+            mRecords.put(uuid, record);
+        } else {
+            mRecords.remove(uuid);
+        }
+    }
+
+    /**
+     * Reads the next framed record, leaving the buffer where it was if the
+     * record is incomplete or fails its checksum.
+     */
+    private static byte[] nextRecord(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (length < 17 || buffer.remaining() < length + 4) {
+            buffer.position(start);
+            return null;
+        }
+        byte[] record = new byte[length];
+        buffer.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, length);
+        if (buffer.getInt() != (int) crc.getValue()) {
+            buffer.position(start);
+            return null;
+        }
+        return record;
+    }
+
+    private static ByteBuffer frame(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.allocate(record.length + 8);
+        putFrame(buffer, record);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putFrame(ByteBuffer buffer, byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        buffer.putInt(record.length).put(record).putInt((int) crc.getValue());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static byte[] encodePut(Connection connection) {
+        byte kind;
+        String[] fields;
+        int port = 0;
+        if (connection instanceof BluetoothConnection) {
+            kind = KIND_BLUETOOTH;
+            fields = new String[]{connection.getName(), ((BluetoothConnection) connection).getAddress()};
+        } else if (connection instanceof TcpIpConnection) {
+            kind = KIND_TCPIP;
+            fields = new String[]{connection.getName(), ((TcpIpConnection) connection).getServerIp()};
+            port = ((TcpIpConnection) connection).getServerPort();
+        } else {
+            return null;
+        }
+
+        byte[][] encoded = new byte[fields.length][];
+        int size = 18 + (kind == KIND_TCPIP ? 4 : 0);
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i] == null ? new byte[0] : fields[i].getBytes(UTF_8);
+            size += 4 + encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(OP_PUT)
+                .putLong(connection.mUUID.getMostSignificantBits())
+                .putLong(connection.mUUID.getLeastSignificantBits())
+                .put(kind);
+        for (byte[] field : encoded) {
+            buffer.putInt(field.length).put(field);
+        }
+        if (kind == KIND_TCPIP) {
+            buffer.putInt(port);
+        }
+        return buffer.array();
+    }
+
+    static byte[] encodeRemove(UUID uuid) {
+        return ByteBuffer.allocate(17)
+                .put(OP_REMOVE)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    static Connection decode(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.get();
+        UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+        byte kind = buffer.get();
+        String name = getString(buffer);
+        switch (kind) {
+            case KIND_BLUETOOTH:
+                return new BluetoothConnection(name, getString(buffer), uuid);
+            case KIND_TCPIP:
+                String ip = getString(buffer);
+                return new TcpIpConnection(name, ip, buffer.getInt(), uuid);
+            default:
+                System.out.println("Skipping saved connection of unknown kind " + kind);
+                return null;
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String string = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+}
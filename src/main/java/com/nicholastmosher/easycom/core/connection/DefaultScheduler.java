@@ -0,0 +1,263 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Scheduler used unless another is given.  Connects and disconnects run
+ * on a bounded lifecycle pool, so a connect that hangs on an unreachable
+ * host only holds up tasks for that same connection.  Writes for every
+ * connection share a small writer pool, and each receive loop gets its own
+ * thread.  All of its threads are daemon threads that exit when idle.
+ * <p/>
+ * On a JDK with virtual threads, withVirtualThreads() gives a DefaultScheduler
+ * that runs every connect, write and receive loop on its own virtual thread
+ * instead, so a blocked connection costs no platform thread.
+ */
+public final class DefaultScheduler implements Scheduler {
+
+    /**
+     * The default number of connections that may be connecting or
+     * disconnecting at the same time.
+     */
+    public static final int DEFAULT_LIFECYCLE_PARALLELISM = 8;
+
+    /**
+     * The number of threads shared by every connection for writing outbound
+     * data, however many connections are open.
+     */
+    public static final int WRITER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final Executor mCallbackExecutor;
+    private final ThreadPoolExecutor mLifecyclePool;
+    private final ExecutorService mLifecycleExecutor;
+    private final ExecutorService mWriteExecutor;
+    private final ThreadFactory mVirtualThreadFactory;
+
+    /**
+     * Waits out delays, such as send linger times and connect retries,
+     * before handing tasks on.
+     */
+    private final ScheduledThreadPoolExecutor mTimer =
+            new ScheduledThreadPoolExecutor(1, threadFactory("Timer Thread "));
+
+    /**
+     * Creates a DefaultScheduler on platform threads.
+     * @param callbackExecutor Where status changes and received data are
+     *                         reported.  Connection.IO_THREAD reports them
+     *                         directly on the thread that produced them.
+     */
+    public DefaultScheduler(Executor callbackExecutor) {
+        this(callbackExecutor, null);
+    }
+
+    private DefaultScheduler(Executor callbackExecutor, ExecutorService virtualExecutor) {
+        if (callbackExecutor == null) {
+            throw new NullPointerException("Callback executor is null!");
+        }
+        mCallbackExecutor = callbackExecutor;
+        mTimer.setKeepAliveTime(30, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+
+        if (virtualExecutor == null) {
+            mLifecyclePool = new ThreadPoolExecutor(
+                    DEFAULT_LIFECYCLE_PARALLELISM, DEFAULT_LIFECYCLE_PARALLELISM,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    threadFactory("Lifecycle Thread "));
+            mLifecyclePool.allowCoreThreadTimeOut(true);
+            ThreadPoolExecutor writerPool = new ThreadPoolExecutor(
+                    WRITER_THREADS, WRITER_THREADS,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    threadFactory("Writer Thread "));
+            writerPool.allowCoreThreadTimeOut(true);
+            mLifecycleExecutor = mLifecyclePool;
+            mWriteExecutor = writerPool;
+            mVirtualThreadFactory = null;
+        } else {
+            mLifecyclePool = null;
+            mLifecycleExecutor = virtualExecutor;
+            mWriteExecutor = virtualExecutor;
+            mVirtualThreadFactory = VirtualThreads.factory();
+        }
+    }
+
+    /**
+     * Creates a DefaultScheduler that runs its work on virtual threads.
+     * @param callbackExecutor Where status changes and received data are
+     *                         reported.
+     * @return The new DefaultScheduler.
+     * @throws UnsupportedOperationException If this JDK has no virtual threads.
+     */
+    public static DefaultScheduler withVirtualThreads(Executor callbackExecutor) {
+        if (!isVirtualThreadSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported on this JDK!");
+        }
+        return new DefaultScheduler(callbackExecutor, VirtualThreads.newPerTaskExecutor());
+    }
+
+    /**
+     * Returns whether withVirtualThreads() can be used on this JDK.
+     * @return True if virtual threads are supported.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.SUPPORTED;
+    }
+
+    /**
+     * Returns whether this scheduler runs its work on virtual threads.
+     * @return True if it was created by withVirtualThreads().
+     */
+    public boolean usesVirtualThreads() {
+        return mVirtualThreadFactory != null;
+    }
+
+    /**
+     * Sets how many connections may be connecting or disconnecting at the
+     * same time.  Has no effect on virtual threads, which are not limited.
+     * @param parallelism The number of lifecycle threads.
+     */
+    public void setLifecycleParallelism(int parallelism) {
+        if (parallelism < 1) {
+            new IllegalArgumentException("Lifecycle parallelism must be positive!").printStackTrace();
+            return;
+        }
+        if (mLifecyclePool == null) {
+            return;
+        }
+        //The core size may never exceed the maximum size, so order matters.
+        if (parallelism > mLifecyclePool.getMaximumPoolSize()) {
+            mLifecyclePool.setMaximumPoolSize(parallelism);
+            mLifecyclePool.setCorePoolSize(parallelism);
+        } else {
+            mLifecyclePool.setCorePoolSize(parallelism);
+            mLifecyclePool.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    /**
+     * Returns how many connections may be connecting or disconnecting at the
+     * same time.
+     * @return The number of lifecycle threads, or Integer.MAX_VALUE on
+     * virtual threads.
+     */
+    public int getLifecycleParallelism() {
+        return mLifecyclePool == null ? Integer.MAX_VALUE : mLifecyclePool.getMaximumPoolSize();
+    }
+
+    /**
+     * Stops accepting new work.  Work already started runs to completion.
+     */
+    public void shutdown() {
+        mLifecycleExecutor.shutdown();
+        mWriteExecutor.shutdown();
+        mTimer.shutdown();
+    }
+
+    @Override
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    @Override
+    public Executor getLifecycleExecutor() {
+        return mLifecycleExecutor;
+    }
+
+    @Override
+    public Executor getWriteExecutor() {
+        return mWriteExecutor;
+    }
+
+    @Override
+    public Future<?> schedule(Runnable task, long delayMillis) {
+        return mTimer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Thread newThread(Runnable task, String name) {
+        Thread thread;
+        if (mVirtualThreadFactory != null) {
+            thread = mVirtualThreadFactory.newThread(task);
+            thread.setName(name);
+        } else {
+            thread = new Thread(task, name);
+            thread.setDaemon(true);
+        }
+        return thread;
+    }
+
+    /**
+     * Creates a ThreadFactory whose daemon threads are numbered with the
+     * given prefix.
+     * @param name The prefix of each thread's name.
+     * @return A ThreadFactory naming its threads.
+     */
+    static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + mCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Reaches the virtual thread API by reflection, since this library is
+     * built for JDKs and Android versions that do not have it.
+     */
+    private static final class VirtualThreads {
+
+        static final boolean SUPPORTED;
+
+        static {
+            boolean supported;
+            try {
+                Thread.class.getMethod("ofVirtual");
+                supported = true;
+            } catch (NoSuchMethodException e) {
+                supported = false;
+            }
+            SUPPORTED = supported;
+        }
+
+        /**
+         * Thread.ofVirtual().factory()
+         */
+        static ThreadFactory factory() {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (NoSuchMethodException | ClassNotFoundException
+                    | IllegalAccessException | InvocationTargetException e) {
+                throw new UnsupportedOperationException("Virtual threads are not supported on this JDK!", e);
+            }
+        }
+
+        /**
+         * Executors.newVirtualThreadPerTaskExecutor()
+         */
+        static ExecutorService newPerTaskExecutor() {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                throw new UnsupportedOperationException("Virtual threads are not supported on this JDK!", e);
+            }
+        }
+    }
+}
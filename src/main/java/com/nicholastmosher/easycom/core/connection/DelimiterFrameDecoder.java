@@ -0,0 +1,89 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes frames that each end with a delimiter, such as a newline.
+ * Listeners receive each frame without its delimiter.
+ */
+public class DelimiterFrameDecoder extends FrameDecoder {
+
+    private final byte[] mDelimiter;
+
+    /**
+     * @param delimiter      The bytes that end each frame.
+     * @param maxFrameLength The longest frame accepted, without its delimiter.
+     */
+    public DelimiterFrameDecoder(byte[] delimiter, int maxFrameLength) {
+        super(maxFrameLength + checkDelimiter(delimiter).length);
+        mDelimiter = Arrays.copyOf(delimiter, delimiter.length);
+    }
+
+    private static byte[] checkDelimiter(byte[] delimiter) {
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException("Delimiter must not be empty!");
+        }
+        return delimiter;
+    }
+
+    @Override
+    protected int frameLength(ByteBuffer buffer) {
+        int start = buffer.position();
+        int last = buffer.limit() - mDelimiter.length;
+        for (int i = start; i <= last; i++) {
+            if (matchesAt(buffer, i)) {
+                return i - start + mDelimiter.length;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds where a delimiter completes in the new data, including one that
+     * began at the end of the partial frame.
+     */
+    @Override
+    protected int bytesWanted(ByteBuffer pending, ByteBuffer in) {
+        for (int count = 1; count <= in.remaining(); count++) {
+            if (endsWithDelimiter(pending, in, count)) {
+                return count;
+            }
+        }
+        return in.remaining();
+    }
+
+    @Override
+    protected int trailerLength() {
+        return mDelimiter.length;
+    }
+
+    private boolean matchesAt(ByteBuffer buffer, int index) {
+        for (int j = 0; j < mDelimiter.length; j++) {
+            if (buffer.get(index + j) != mDelimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether the pending bytes followed by the first count bytes of
+     * the new data end with the delimiter.
+     */
+    private boolean endsWithDelimiter(ByteBuffer pending, ByteBuffer in, int count) {
+        if (pending.remaining() + count < mDelimiter.length) {
+            return false;
+        }
+        for (int j = 0; j < mDelimiter.length; j++) {
+            int back = mDelimiter.length - j;
+            byte b = back <= count
+                    ? in.get(in.position() + count - back)
+                    : pending.get(pending.limit() - (back - count));
+            if (b != mDelimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,26 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames that are all the same length.
+ */
+public class FixedLengthFrameDecoder extends FrameDecoder {
+
+    /**
+     * @param frameLength The length of every frame.
+     */
+    public FixedLengthFrameDecoder(int frameLength) {
+        super(frameLength);
+    }
+
+    @Override
+    protected int frameLength(ByteBuffer buffer) {
+        return buffer.remaining() < getMaxFrameLength() ? -1 : getMaxFrameLength();
+    }
+
+    @Override
+    protected int bytesWanted(ByteBuffer pending, ByteBuffer in) {
+        return Math.min(getMaxFrameLength() - pending.remaining(), in.remaining());
+    }
+}
@@ -0,0 +1,187 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the byte stream received over a Connection into whole frames.
+ * <p/>
+ * Received data is fed to decode() one read at a time.  A frame that lies
+ * entirely within one read is passed on as a view of that read, without
+ * copying.  Only frames that straddle reads are gathered into an internal
+ * buffer first.  Frames are only valid until the listener returns.
+ * <p/>
+ * A FrameDecoder keeps the state of a partly received frame, so each
+ * Connection needs its own instance.  If the stream turns out to be corrupt,
+ * such as a frame longer than the maximum, the decoder reports it, discards
+ * what it has gathered along with the rest of that read, and starts over.
+ */
+public abstract class FrameDecoder {
+
+    /**
+     * Receives whole frames from a FrameDecoder.
+     */
+    public interface OnFrameDecodedListener {
+        void onFrameDecoded(ByteBuffer frame);
+    }
+
+    private final int mMaxFrameLength;
+    private ByteBuffer mPending = ByteBuffer.allocate(0);
+
+    /**
+     * @param maxFrameLength The longest frame accepted, including any header
+     *                       or delimiter.
+     */
+    protected FrameDecoder(int maxFrameLength) {
+        if (maxFrameLength < 1) {
+            throw new IllegalArgumentException("Max frame length must be positive!");
+        }
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Returns the longest frame accepted, including any header or delimiter.
+     * @return The maximum frame length in bytes.
+     */
+    public int getMaxFrameLength() {
+        return mMaxFrameLength;
+    }
+
+    /**
+     * Decodes as many frames as possible from the given data, gathering any
+     * trailing partial frame for the next call.  Consumes all of the data,
+     * unless the listener throws, in which case the exception is passed on
+     * and the data after that frame is left unread.
+     * @param in       The data just received.
+     * @param listener Receives each whole frame.
+     */
+    public final void decode(ByteBuffer in, OnFrameDecodedListener listener) {
+        while (true) {
+            ByteBuffer frame;
+            try {
+                frame = nextFrame(in);
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                reset();
+                in.position(in.limit());
+                return;
+            }
+            if (frame == null) {
+                return;
+            }
+            listener.onFrameDecoded(frame);
+        }
+    }
+
+    /**
+     * Takes the next whole frame from the given data, or once there is none,
+     * gathers what is left as a partial frame.
+     * @param in The data just received.
+     * @return A read-only view of the frame, or null once the data is used up.
+     * @throws IllegalStateException If the stream is corrupt.
+     */
+    private ByteBuffer nextFrame(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            if (mPending.position() == 0) {
+                int length = frameLength(in);
+                if (length < 0) {
+                    break;
+                }
+                checkLength(length);
+                int end = in.position() + length;
+                ByteBuffer frame = in.duplicate();
+                frame.limit(end - trailerLength()).position(in.position() + headerLength());
+                in.position(end);
+                return frame.slice().asReadOnlyBuffer();
+            }
+            append(in, bytesWanted(pending(), in));
+            ByteBuffer pending = pending();
+            int length = frameLength(pending);
+            if (length < 0) {
+                checkLength(pending.remaining());
+                continue;
+            }
+            checkLength(length);
+            pending.limit(length - trailerLength()).position(headerLength());
+            mPending.clear();
+            return pending.slice().asReadOnlyBuffer();
+        }
+        if (in.hasRemaining()) {
+            checkLength(mPending.position() + in.remaining());
+            append(in, in.remaining());
+        }
+        return null;
+    }
+
+    /**
+     * Discards any partly received frame.
+     */
+    public void reset() {
+        mPending.clear();
+    }
+
+    /**
+     * Determines the length of the frame at the buffer's position.
+     * @param buffer The data starting at a frame boundary.  Must not be modified.
+     * @return The whole frame's length in bytes, including header and
+     * trailer, or -1 if more data is needed to complete it.
+     * @throws IllegalStateException If the data cannot be the start of a valid frame.
+     */
+    protected abstract int frameLength(ByteBuffer buffer);
+
+    /**
+     * Determines how many bytes of new data to add to a partial frame to
+     * complete it, or to learn more about it.
+     * @param pending The partial frame gathered so far.  Must not be modified.
+     * @param in      The newly received data.  Must not be modified.
+     * @return A count between 1 and in.remaining().
+     */
+    protected abstract int bytesWanted(ByteBuffer pending, ByteBuffer in);
+
+    /**
+     * Returns the number of bytes at the start of each frame, such as a
+     * length field, that are not passed to listeners.
+     * @return The header length in bytes.
+     */
+    protected int headerLength() {
+        return 0;
+    }
+
+    /**
+     * Returns the number of bytes at the end of each frame, such as a
+     * delimiter, that are not passed to listeners.
+     * @return The trailer length in bytes.
+     */
+    protected int trailerLength() {
+        return 0;
+    }
+
+    private void checkLength(int length) {
+        if (length > mMaxFrameLength) {
+            throw new IllegalStateException("Frame of " + length + " bytes exceeds the maximum of "
+                    + mMaxFrameLength + "!");
+        }
+    }
+
+    /**
+     * Returns a read-mode view of the partial frame.
+     */
+    private ByteBuffer pending() {
+        ByteBuffer pending = mPending.duplicate();
+        pending.flip();
+        return pending;
+    }
+
+    private void append(ByteBuffer in, int count) {
+        if (mPending.remaining() < count) {
+            int capacity = Math.max(mPending.capacity() * 2, mPending.position() + count);
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(capacity, Math.max(mMaxFrameLength, mPending.position() + count)));
+            mPending.flip();
+            grown.put(mPending);
+            mPending = grown;
+        }
+        ByteBuffer slice = in.duplicate();
+        slice.limit(in.position() + count);
+        mPending.put(slice);
+        in.position(in.position() + count);
+    }
+}
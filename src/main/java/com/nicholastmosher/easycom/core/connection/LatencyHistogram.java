@@ -0,0 +1,231 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records a distribution of durations in a fixed amount of memory, in the
+ * style of an HdrHistogram.  Durations are counted in buckets whose width
+ * grows with their magnitude, each power of two being split into 8, so a
+ * percentile is accurate to within about 6% of its value however long or
+ * short the durations are.  Durations are recorded in microseconds, from
+ * zero up to MAX_TRACKABLE_MICROS, and longer ones are counted in the last
+ * bucket.
+ * <p/>
+ * Recording is lock free and allocates nothing, apart from the buckets
+ * themselves the first time anything is recorded.  Reads are not a
+ * snapshot, so they may be slightly inconsistent with each other while
+ * durations are being recorded.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The longest duration with a bucket of its own, a little over 71 minutes.
+     */
+    public static final long MAX_TRACKABLE_MICROS = (1L << 32) - 1;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - Long.numberOfLeadingZeros(MAX_TRACKABLE_MICROS)
+            - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private volatile AtomicLongArray mCounts;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a duration measured with System.nanoTime().
+     * @param nanos The duration in nanoseconds.
+     */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    /**
+     * Records a duration.
+     * @param micros The duration in microseconds.  Negative durations are
+     *               recorded as zero.
+     */
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts().incrementAndGet(bucketOf(Math.min(micros, MAX_TRACKABLE_MICROS)));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(micros);
+
+        long min = mMin.get();
+        while (micros < min && !mMin.compareAndSet(min, micros)) {
+            min = mMin.get();
+        }
+        long max = mMax.get();
+        while (micros > max && !mMax.compareAndSet(max, micros)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     * @return The number of durations recorded.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the shortest duration recorded.
+     * @return The shortest duration in microseconds, or 0 if there are none.
+     */
+    public long getMinMicros() {
+        long min = mMin.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     * Returns the longest duration recorded.
+     * @return The longest duration in microseconds, or 0 if there are none.
+     */
+    public long getMaxMicros() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the average of the durations recorded.
+     * @return The mean duration in microseconds, or 0 if there are none.
+     */
+    public double getMeanMicros() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mTotal.get() / count;
+    }
+
+    /**
+     * Returns the duration that the given percentage of recorded durations
+     * are no longer than, such as 99 for the 99th percentile.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The duration in microseconds, or 0 if there are none.
+     */
+    public long getPercentileMicros(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            new IllegalArgumentException("Percentile must be between 0 and 100!").printStackTrace();
+            return 0;
+        }
+        AtomicLongArray counts = mCounts;
+        long count = mCount.get();
+        if (counts == null || count == 0) {
+            return 0;
+        }
+        if (percentile == 100) {
+            return getMaxMicros();
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= target) {
+                //Report the middle of the bucket, but never outside what was actually recorded.
+                long middle = lowestValueOf(bucket) + (widthOf(bucket) - 1) / 2;
+                return Math.max(getMinMicros(), Math.min(middle, getMaxMicros()));
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Forgets every duration recorded so far.  Durations recorded at the
+     * same time may be partly forgotten.
+     */
+    public void reset() {
+        AtomicLongArray counts = mCounts;
+        if (counts != null) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts.set(bucket, 0);
+            }
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(0);
+    }
+
+    /**
+     * Adds every duration recorded by another histogram to this one.
+     * @param other The histogram to add.
+     */
+    void add(LatencyHistogram other) {
+        AtomicLongArray others = other.mCounts;
+        if (others == null) {
+            return;
+        }
+        AtomicLongArray counts = counts();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            long count = others.get(bucket);
+            if (count != 0) {
+                counts.addAndGet(bucket, count);
+            }
+        }
+        mCount.addAndGet(other.mCount.get());
+        mTotal.addAndGet(other.mTotal.get());
+
+        long min = other.mMin.get();
+        long current = mMin.get();
+        while (min < current && !mMin.compareAndSet(current, min)) {
+            current = mMin.get();
+        }
+        long max = other.mMax.get();
+        current = mMax.get();
+        while (max > current && !mMax.compareAndSet(current, max)) {
+            current = mMax.get();
+        }
+    }
+
+    private AtomicLongArray counts() {
+        AtomicLongArray counts = mCounts;
+        if (counts == null) {
+            synchronized (this) {
+                counts = mCounts;
+                if (counts == null) {
+                    counts = new AtomicLongArray(BUCKETS);
+                    mCounts = counts;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Finds the bucket for a duration.  Durations below 16 each have their
+     * own bucket.  Above that, each power of two is split into SUB_BUCKETS
+     * buckets of equal width.
+     */
+    static int bucketOf(long micros) {
+        if (micros < 2 * SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(micros)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowestValueOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    private static long widthOf(int bucket) {
+        return bucket < 2 * SUB_BUCKETS ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " min=" + getMinMicros() + "us"
+                + " p50=" + getPercentileMicros(50) + "us"
+                + " p99=" + getPercentileMicros(99) + "us"
+                + " max=" + getMaxMicros() + "us";
+    }
+}
@@ -0,0 +1,87 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes frames that start with a 1, 2 or 4 byte length field giving the
+ * number of payload bytes that follow.  1 and 2 byte lengths are unsigned.
+ * Listeners receive the payload without the length field.
+ */
+public class LengthFieldFrameDecoder extends FrameDecoder {
+
+    private final int mFieldLength;
+    private final ByteOrder mByteOrder;
+
+    /**
+     * @param fieldLength      The size of the length field: 1, 2 or 4 bytes.
+     * @param byteOrder        The byte order of the length field.
+     * @param maxPayloadLength The longest payload accepted.
+     */
+    public LengthFieldFrameDecoder(int fieldLength, ByteOrder byteOrder, int maxPayloadLength) {
+        super(checkFieldLength(fieldLength) + maxPayloadLength);
+        if (byteOrder == null) {
+            throw new NullPointerException("Byte order is null!");
+        }
+        mFieldLength = fieldLength;
+        mByteOrder = byteOrder;
+    }
+
+    private static int checkFieldLength(int fieldLength) {
+        if (fieldLength != 1 && fieldLength != 2 && fieldLength != 4) {
+            throw new IllegalArgumentException("Length field must be 1, 2 or 4 bytes!");
+        }
+        return fieldLength;
+    }
+
+    @Override
+    protected int frameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < mFieldLength) {
+            return -1;
+        }
+        long length = mFieldLength + payloadLength(buffer);
+        if (length > getMaxFrameLength()) {
+            throw new IllegalStateException("Frame of " + length + " bytes exceeds the maximum of "
+                    + getMaxFrameLength() + "!");
+        }
+        return buffer.remaining() < length ? -1 : (int) length;
+    }
+
+    @Override
+    protected int bytesWanted(ByteBuffer pending, ByteBuffer in) {
+        int wanted = pending.remaining() < mFieldLength
+                ? mFieldLength - pending.remaining()
+                : (int) (mFieldLength + payloadLength(pending) - pending.remaining());
+        return Math.max(1, Math.min(wanted, in.remaining()));
+    }
+
+    @Override
+    protected int headerLength() {
+        return mFieldLength;
+    }
+
+    private long payloadLength(ByteBuffer buffer) {
+        int position = buffer.position();
+        long length;
+        switch (mFieldLength) {
+            case 1:
+                length = buffer.get(position) & 0xFF;
+                break;
+            case 2:
+                length = mByteOrder == ByteOrder.BIG_ENDIAN
+                        ? (buffer.get(position) & 0xFF) << 8 | (buffer.get(position + 1) & 0xFF)
+                        : (buffer.get(position + 1) & 0xFF) << 8 | (buffer.get(position) & 0xFF);
+                break;
+            default:
+                int b0 = buffer.get(position) & 0xFF;
+                int b1 = buffer.get(position + 1) & 0xFF;
+                int b2 = buffer.get(position + 2) & 0xFF;
+                int b3 = buffer.get(position + 3) & 0xFF;
+                length = mByteOrder == ByteOrder.BIG_ENDIAN
+                        ? (long) b0 << 24 | b1 << 16 | b2 << 8 | b3
+                        : (long) b3 << 24 | b2 << 16 | b1 << 8 | b0;
+                break;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,86 @@
+package com.nicholastmosher.easycom.core.connection;
+
+/**
+ * A thread-safe set of listeners built for frequent notification and rare
+ * modification.  Adding or removing a listener copies the backing array, so
+ * notifying listeners is a plain loop over a snapshot that never allocates
+ * and is never disturbed by listeners being added or removed mid-dispatch.
+ * <p/>
+ * Usage: for(Object listener : registry.snapshot()) ((MyListener) listener).onEvent();
+ * @param <T> The listener type.
+ */
+final class ListenerRegistry<T> {
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private volatile Object[] mListeners = EMPTY;
+
+    /**
+     * Adds a listener if an equal one is not already registered.
+     * @param listener The listener to add.
+     * @return True if the listener was added.
+     */
+    public synchronized boolean add(T listener) {
+        if (listener == null) {
+            new NullPointerException("Listener is null!").printStackTrace();
+            return false;
+        }
+        Object[] listeners = mListeners;
+        if (indexOf(listeners, listener) >= 0) {
+            return false;
+        }
+        Object[] updated = new Object[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        mListeners = updated;
+        return true;
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener The listener to remove.
+     * @return True if the listener had been registered.
+     */
+    public synchronized boolean remove(T listener) {
+        Object[] listeners = mListeners;
+        int index = indexOf(listeners, listener);
+        if (index < 0) {
+            return false;
+        }
+        if (listeners.length == 1) {
+            mListeners = EMPTY;
+            return true;
+        }
+        Object[] updated = new Object[listeners.length - 1];
+        System.arraycopy(listeners, 0, updated, 0, index);
+        System.arraycopy(listeners, index + 1, updated, index, listeners.length - index - 1);
+        mListeners = updated;
+        return true;
+    }
+
+    /**
+     * Returns the listeners registered at this moment.  The array is shared
+     * and must not be modified.
+     * @return The registered listeners.
+     */
+    public Object[] snapshot() {
+        return mListeners;
+    }
+
+    /**
+     * Tells whether no listeners are registered.
+     * @return True if there are no listeners.
+     */
+    public boolean isEmpty() {
+        return mListeners.length == 0;
+    }
+
+    private static int indexOf(Object[] listeners, Object listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,63 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The net effect of a group of changes to a ConnectionModel.  Changes to the
+ * same connection are merged, so a connection that was added and then
+ * removed in the same group does not appear at all, and one that was
+ * replaced several times appears once as changed, holding its latest version.
+ */
+public final class ModelChangeSet {
+
+    private final List<Connection> mAdded;
+    private final List<Connection> mRemoved;
+    private final List<Connection> mChanged;
+
+    ModelChangeSet(List<Connection> added, List<Connection> removed, List<Connection> changed) {
+        mAdded = Collections.unmodifiableList(added);
+        mRemoved = Collections.unmodifiableList(removed);
+        mChanged = Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * Returns the connections that were not in the model before these changes.
+     * @return The added connections.
+     */
+    public List<Connection> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * Returns the connections that are no longer in the model, as they were
+     * when they were removed.
+     * @return The removed connections.
+     */
+    public List<Connection> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * Returns the latest versions of connections that were in the model
+     * before these changes and were replaced.
+     * @return The changed connections.
+     */
+    public List<Connection> getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * Tells whether these changes had no net effect.
+     * @return True if nothing was added, removed or changed.
+     */
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ModelChangeSet(" + mAdded.size() + " added, " + mRemoved.size() + " removed, "
+                + mChanged.size() + " changed)";
+    }
+}
@@ -0,0 +1,140 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Received data held in a buffer that is recycled once nobody needs it.
+ * <p/>
+ * The buffer given to an OnBufferReceivedListener is only valid until the
+ * listener returns.  To keep it longer, call retain() during the callback and
+ * release() once finished with it.  Every retain() must be matched by exactly
+ * one release(), after which the data must not be touched again.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool mPool;
+    private final byte[] mArray;
+    private final ByteBuffer mView;
+
+    /**
+     * The view handed to the pipeline or frame decoder, kept so that a
+     * dispatch does not allocate one.  Each buffer is dispatched once per
+     * acquire, so only that dispatch uses it.
+     */
+    private final ByteBuffer mDispatchView;
+    private final AtomicInteger mReferences = new AtomicInteger();
+    private int mLength;
+
+    PooledBuffer(BufferPool pool, int capacity) {
+        mPool = pool;
+        mArray = new byte[capacity];
+        mView = ByteBuffer.wrap(mArray).asReadOnlyBuffer();
+        mDispatchView = mView.duplicate();
+    }
+
+    /**
+     * Returns a read-only view of the received bytes, positioned at the
+     * first byte.  Each call returns a new view with its own position and
+     * limit, so listeners and threads sharing a retained buffer can each
+     * read it without disturbing the others.
+     * @return The received data.
+     */
+    public ByteBuffer data() {
+        ByteBuffer view = mView.duplicate();
+        view.limit(mLength);
+        return view;
+    }
+
+    /**
+     * Returns the number of bytes received.
+     * @return The length of the data.
+     */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * Keeps this buffer from being recycled until a matching release().
+     * @return This buffer.
+     */
+    public PooledBuffer retain() {
+        int references;
+        do {
+            references = mReferences.get();
+            if (references <= 0) {
+                throw new IllegalStateException("PooledBuffer was already released!");
+            }
+        } while (!mReferences.compareAndSet(references, references + 1));
+        return this;
+    }
+
+    /**
+     * Gives up a reference to this buffer.  The buffer is recycled when the
+     * last reference is released.
+     */
+    public void release() {
+        int references = mReferences.decrementAndGet();
+        if (references == 0) {
+            if (mPool != null) {
+                mPool.recycle(this);
+            }
+        } else if (references < 0) {
+            mReferences.incrementAndGet();
+            new IllegalStateException("PooledBuffer was released too many times!").printStackTrace();
+        }
+    }
+
+    /**
+     * Copies the received bytes into a new array.
+     * @return A copy of the data.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mArray, mLength);
+    }
+
+    /**
+     * Copies data into a new buffer that is not recycled.
+     */
+    static PooledBuffer copyOf(ByteBuffer data) {
+        PooledBuffer buffer = new PooledBuffer(null, data.remaining());
+        buffer.reset();
+        data.duplicate().get(buffer.mArray);
+        buffer.setLength(buffer.mArray.length);
+        return buffer;
+    }
+
+    /**
+     * Returns this buffer's own read-only view of the received bytes,
+     * rewound to the first byte.  Unlike data(), the same view is returned
+     * every time, so it is only for the dispatch of this acquire.
+     */
+    ByteBuffer dispatchView() {
+        mDispatchView.limit(mLength).position(0);
+        return mDispatchView;
+    }
+
+    int capacity() {
+        return mArray.length;
+    }
+
+    /**
+     * The backing array that receivers read into.
+     */
+    byte[] array() {
+        return mArray;
+    }
+
+    void setLength(int length) {
+        mLength = length;
+    }
+
+    /**
+     * Prepares a buffer being handed out by the pool.
+     */
+    void reset() {
+        mLength = 0;
+        mReferences.set(1);
+    }
+}
@@ -0,0 +1,116 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.Random;
+
+/**
+ * Describes how a Connection retries a failed connect.  Each retry waits an
+ * exponentially growing delay, starting at the base delay and doubling up to
+ * the maximum delay.  Jitter randomly shortens each delay by up to the given
+ * fraction of it, so that many connections failing at once don't all retry
+ * at the same moment.
+ */
+public final class RetryPolicy {
+
+    /**
+     * Four attempts in total, retrying after roughly 0.5, 1 and 2 seconds.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(4, 500, 30000, 0.5);
+
+    /**
+     * A single attempt that is never retried.
+     */
+    public static final RetryPolicy NEVER = new RetryPolicy(1, 0, 0, 0);
+
+    private static final Random RANDOM = new Random();
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mJitter;
+
+    /**
+     * Constructs a RetryPolicy.
+     * @param maxAttempts     The total number of connect attempts, including the first.
+     * @param baseDelayMillis The delay before the first retry.
+     * @param maxDelayMillis  The cap on the delay before any retry.
+     * @param jitter          The fraction, from 0 to 1, by which each delay may be randomly shortened.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, double jitter) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("A RetryPolicy needs at least one attempt!");
+        }
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Delays must satisfy 0 <= base <= max!");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1!");
+        }
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mJitter = jitter;
+    }
+
+    /**
+     * Returns the total number of connect attempts, including the first.
+     * @return The maximum number of attempts.
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Returns the delay before the first retry.
+     * @return The base delay in milliseconds.
+     */
+    public long getBaseDelayMillis() {
+        return mBaseDelayMillis;
+    }
+
+    /**
+     * Returns the cap on the delay before any retry.
+     * @return The maximum delay in milliseconds.
+     */
+    public long getMaxDelayMillis() {
+        return mMaxDelayMillis;
+    }
+
+    /**
+     * Returns the fraction by which each delay may be randomly shortened.
+     * @return The jitter, from 0 to 1.
+     */
+    public double getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * Tells whether another attempt should be made after the given number
+     * of failed attempts.
+     * @param attempts The number of attempts made so far.
+     * @return True if the connect should be retried.
+     */
+    public boolean shouldRetry(int attempts) {
+        return attempts < mMaxAttempts;
+    }
+
+    /**
+     * Returns how long to wait before the next attempt.
+     * @param attempts The number of attempts made so far, at least 1.
+     * @return The delay before retrying, in milliseconds.
+     */
+    public long getRetryDelayMillis(int attempts) {
+        int doublings = Math.min(Math.max(attempts - 1, 0), 62);
+        long delay = mBaseDelayMillis;
+        while (doublings-- > 0 && delay < mMaxDelayMillis) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, mMaxDelayMillis);
+        return delay - (long) (delay * mJitter * RANDOM.nextDouble());
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy(" + mMaxAttempts + " attempts, " + mBaseDelayMillis + "-"
+                + mMaxDelayMillis + "ms, jitter " + mJitter + ")";
+    }
+}
@@ -0,0 +1,138 @@
+package com.nicholastmosher.easycom.core.connection;
+
+/**
+ * Estimates a Connection's round trip time from measured samples, the way
+ * TCP does (RFC 6298).  Each sample moves the smoothed round trip time an
+ * eighth of the way towards it, and the round trip variance a quarter of the
+ * way towards how far it was from the smoothed time.  The shortest and
+ * longest samples are kept as well.
+ * <p/>
+ * Every Connection has one, returned by Connection.getRttEstimator().  An
+ * RttProbe feeds it, and so can an app that times its own requests and
+ * replies.  All times are in microseconds.
+ */
+public final class RttEstimator {
+
+    /**
+     * How many round trip variances the timeout allows beyond the smoothed
+     * round trip time.
+     */
+    private static final int VARIANCE_FACTOR = 4;
+
+    private long mSamples;
+    private long mSmoothed;
+    private long mVariance;
+    private long mMin;
+    private long mMax;
+    private long mLatest;
+
+    /**
+     * Adds a measured round trip.
+     * @param micros The round trip time in microseconds.
+     */
+    public synchronized void addSample(long micros) {
+        if (micros < 0) {
+            new IllegalArgumentException("Round trip time must not be negative!").printStackTrace();
+            return;
+        }
+        if (mSamples == 0) {
+            mSmoothed = micros;
+            mVariance = micros / 2;
+            mMin = micros;
+            mMax = micros;
+        } else {
+            //The variance is updated against the old smoothed time, as RFC 6298 says.
+            mVariance += (Math.abs(mSmoothed - micros) - mVariance) / 4;
+            mSmoothed += (micros - mSmoothed) / 8;
+            mMin = Math.min(mMin, micros);
+            mMax = Math.max(mMax, micros);
+        }
+        mLatest = micros;
+        mSamples++;
+    }
+
+    /**
+     * Returns the number of samples added.
+     * @return The number of samples.
+     */
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    /**
+     * Returns the smoothed round trip time, SRTT.
+     * @return The smoothed round trip time, or 0 if there are no samples.
+     */
+    public synchronized long getSmoothedMicros() {
+        return mSmoothed;
+    }
+
+    /**
+     * Returns the round trip time variance, RTTVAR.
+     * @return The mean deviation of the round trip time, or 0 if there are no samples.
+     */
+    public synchronized long getVarianceMicros() {
+        return mVariance;
+    }
+
+    /**
+     * Returns the shortest round trip measured.
+     * @return The shortest round trip time, or 0 if there are no samples.
+     */
+    public synchronized long getMinMicros() {
+        return mMin;
+    }
+
+    /**
+     * Returns the longest round trip measured.
+     * @return The longest round trip time, or 0 if there are no samples.
+     */
+    public synchronized long getMaxMicros() {
+        return mMax;
+    }
+
+    /**
+     * Returns the most recent round trip measured.
+     * @return The latest round trip time, or 0 if there are no samples.
+     */
+    public synchronized long getLatestMicros() {
+        return mLatest;
+    }
+
+    /**
+     * Returns how long to wait for a reply before giving up on it, as TCP
+     * computes its retransmission timeout: SRTT + 4 * RTTVAR, but never
+     * less than the given floor.
+     * @param minimumMillis The shortest timeout to return, also returned
+     *                      while there are no samples.
+     * @return The timeout in milliseconds.
+     */
+    public long getTimeoutMillis(long minimumMillis) {
+        long timeoutMicros;
+        synchronized (this) {
+            if (mSamples == 0) {
+                return minimumMillis;
+            }
+            timeoutMicros = mSmoothed + VARIANCE_FACTOR * mVariance;
+        }
+        return Math.max(minimumMillis, (timeoutMicros + 999) / 1000);
+    }
+
+    /**
+     * Forgets every sample.
+     */
+    public synchronized void reset() {
+        mSamples = 0;
+        mSmoothed = 0;
+        mVariance = 0;
+        mMin = 0;
+        mMax = 0;
+        mLatest = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "srtt=" + mSmoothed + "us rttvar=" + mVariance + "us min=" + mMin
+                + "us max=" + mMax + "us samples=" + mSamples;
+    }
+}
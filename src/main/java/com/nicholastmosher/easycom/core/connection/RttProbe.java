@@ -0,0 +1,272 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures a Connection's round trip time by sending a ping frame and
+ * timing how long the remote takes to answer with a pong frame.  Each round
+ * trip is added to the connection's RttEstimator.
+ * <p/>
+ * The remote decides what the frames are: an echo server can answer a ping
+ * with the same bytes, and a device with a status command can be "pinged"
+ * with that command and its reply.  The ping is sent like any other data,
+ * through the connection's pipeline and behind anything already queued, so
+ * the round trip includes the time queued.  The pong is looked for anywhere
+ * in the received data, even when split across reads, and is still
+ * delivered to the connection's other listeners.
+ * <p/>
+ * Only one ping is in flight at a time.  Pings can be sent by hand with
+ * ping(), or every so often with start().  A periodic ping that gets no
+ * pong before the next one is due counts as lost, and one interval is
+ * skipped so that a late pong can't be mistaken for the next one's.
+ * <pre>
+ * RttProbe probe = new RttProbe(PING, PONG);
+ * connection.setRttProbe(probe);
+ * probe.start(scheduler, 1000);
+ * </pre>
+ */
+public final class RttProbe {
+
+    private static final long NOT_PINGING = Long.MIN_VALUE;
+
+    private final byte[] mPing;
+    private final byte[] mPong;
+
+    /**
+     * For each prefix of the pong, the length of the longest proper prefix
+     * that is also a suffix of it, so that a partial match can continue
+     * without rescanning (Knuth-Morris-Pratt).
+     */
+    private final int[] mPongFallback;
+
+    private volatile Connection mConnection;
+
+    /**
+     * When the ping in flight was sent, from System.nanoTime().
+     */
+    private final AtomicLong mSentNanos = new AtomicLong(NOT_PINGING);
+    private final AtomicLong mProbesSent = new AtomicLong();
+    private final AtomicLong mProbesLost = new AtomicLong();
+
+    /**
+     * How many bytes of the pong have been matched so far.  Guarded by this.
+     */
+    private int mMatched;
+
+    /**
+     * Where periodic pings are scheduled, or null if they are stopped.
+     * Guarded by this.
+     */
+    private Scheduler mScheduler;
+    private long mIntervalMillis;
+    private Future<?> mNextTick;
+
+    private final Connection.OnBufferReceivedListener mPongListener = new Connection.OnBufferReceivedListener() {
+        @Override
+        public void onBufferReceived(Connection connection, PooledBuffer buffer) {
+            long received = System.nanoTime();
+            //Scans the backing array, since a view of it would be allocated for every read.
+            byte[] data = buffer.array();
+            int length = buffer.length();
+            int pongs = 0;
+            synchronized (RttProbe.this) {
+                for (int i = 0; i < length; i++) {
+                    if (matchPong(data[i])) {
+                        pongs++;
+                    }
+                }
+            }
+            if (pongs > 0) {
+                onPong(connection, received);
+            }
+        }
+    };
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /**
+     * Constructs an RttProbe.
+     * @param ping The frame to send.
+     * @param pong The frame the remote answers it with.
+     */
+    public RttProbe(byte[] ping, byte[] pong) {
+        if (ping == null || pong == null) {
+            throw new NullPointerException("Ping or pong frame is null!");
+        }
+        if (ping.length == 0 || pong.length == 0) {
+            throw new IllegalArgumentException("Ping and pong frames must not be empty!");
+        }
+        mPing = Arrays.copyOf(ping, ping.length);
+        mPong = Arrays.copyOf(pong, pong.length);
+        mPongFallback = new int[pong.length];
+        for (int i = 1, matched = 0; i < pong.length; i++) {
+            while (matched > 0 && pong[i] != pong[matched]) {
+                matched = mPongFallback[matched - 1];
+            }
+            if (pong[i] == pong[matched]) {
+                matched++;
+            }
+            mPongFallback[i] = matched;
+        }
+    }
+
+    /**
+     * Returns the Connection this probe measures.
+     * @return The Connection, or null if the probe is not set on one.
+     */
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Sends a ping now, unless one is already in flight.
+     * @return True if a ping was sent, false if one is in flight or the
+     * connection is not connected.
+     */
+    public boolean ping() {
+        Connection connection = mConnection;
+        if (connection == null || connection.getStatus() != Connection.Status.Connected) {
+            return false;
+        }
+        final long sent = System.nanoTime();
+        if (!mSentNanos.compareAndSet(NOT_PINGING, sent)) {
+            return false;
+        }
+        mProbesSent.incrementAndGet();
+        connection.sendAsync(mPing).addOnSendCompleteListener(new SendFuture.OnSendCompleteListener() {
+            @Override
+            public void onSendComplete(SendFuture future) {
+                if (!future.isSuccess()) {
+                    mSentNanos.compareAndSet(sent, NOT_PINGING);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Starts sending a ping every interval while the connection is connected.
+     * Calling it again changes the interval.
+     * @param scheduler      Where to schedule the pings, such as the
+     *                       ConnectionService's runtime's Scheduler.
+     * @param intervalMillis The time between pings, which should be well
+     *                       above the round trip time.
+     */
+    public synchronized void start(Scheduler scheduler, long intervalMillis) {
+        if (scheduler == null) {
+            new NullPointerException("Scheduler is null!").printStackTrace();
+            return;
+        }
+        if (intervalMillis < 1) {
+            new IllegalArgumentException("Ping interval must be positive!").printStackTrace();
+            return;
+        }
+        stop();
+        mScheduler = scheduler;
+        mIntervalMillis = intervalMillis;
+        mNextTick = scheduler.schedule(mTick, intervalMillis);
+    }
+
+    /**
+     * Stops sending periodic pings.  A ping in flight is still timed.
+     */
+    public synchronized void stop() {
+        mScheduler = null;
+        if (mNextTick != null) {
+            mNextTick.cancel(false);
+            mNextTick = null;
+        }
+    }
+
+    /**
+     * Returns the number of pings sent.
+     * @return The number of pings sent.
+     */
+    public long getProbesSent() {
+        return mProbesSent.get();
+    }
+
+    /**
+     * Returns the number of periodic pings that got no pong in time.
+     * @return The number of pings lost.
+     */
+    public long getProbesLost() {
+        return mProbesLost.get();
+    }
+
+    /**
+     * Starts listening for pongs on the given connection.
+     */
+    void attach(Connection connection) {
+        mConnection = connection;
+        connection.addOnBufferReceivedListener(mPongListener);
+    }
+
+    /**
+     * Stops measuring the connection it is attached to.
+     */
+    void detach() {
+        stop();
+        Connection connection = mConnection;
+        if (connection != null) {
+            connection.removeOnBufferReceivedListener(mPongListener);
+        }
+        mConnection = null;
+        mSentNanos.set(NOT_PINGING);
+    }
+
+    /**
+     * Feeds one received byte to the pong matcher.  Guarded by this.
+     * @return True if the byte completed a pong.
+     */
+    private boolean matchPong(byte b) {
+        while (mMatched > 0 && b != mPong[mMatched]) {
+            mMatched = mPongFallback[mMatched - 1];
+        }
+        if (b == mPong[mMatched]) {
+            mMatched++;
+        }
+        if (mMatched == mPong.length) {
+            mMatched = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private void onPong(Connection connection, long receivedNanos) {
+        long sent = mSentNanos.getAndSet(NOT_PINGING);
+        if (sent != NOT_PINGING) {
+            connection.getRttEstimator().addSample((receivedNanos - sent) / 1000);
+        }
+    }
+
+    private void tick() {
+        synchronized (this) {
+            if (mScheduler == null) {
+                return;
+            }
+        }
+
+        Connection connection = mConnection;
+        if (connection == null || connection.getStatus() != Connection.Status.Connected) {
+            mSentNanos.set(NOT_PINGING);
+        } else if (mSentNanos.getAndSet(NOT_PINGING) != NOT_PINGING) {
+            mProbesLost.incrementAndGet();
+        } else {
+            ping();
+        }
+
+        synchronized (this) {
+            if (mScheduler != null) {
+                mNextTick = mScheduler.schedule(mTick, mIntervalMillis);
+            }
+        }
+    }
+}
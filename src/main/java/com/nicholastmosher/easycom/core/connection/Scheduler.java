@@ -0,0 +1,52 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Supplies the threads a TransportRuntime does its work on.  Swapping the
+ * Scheduler changes where connects, writes, reads and listener callbacks
+ * run without touching the transfer logic itself, such as the Android UI
+ * thread on a device, or virtual threads on a server.
+ */
+public interface Scheduler {
+
+    /**
+     * Returns where connection status changes are reported and, unless a
+     * Connection or listener chooses otherwise, where received data is
+     * delivered.
+     * @return The callback Executor.
+     */
+    Executor getCallbackExecutor();
+
+    /**
+     * Returns where connect and disconnect attempts run.  These block for
+     * as long as the remote takes to answer.
+     * @return The lifecycle Executor.
+     */
+    Executor getLifecycleExecutor();
+
+    /**
+     * Returns where outbound data is written.  Each connection's writes are
+     * kept in order on top of this, so it may run tasks in any order.
+     * @return The write Executor.
+     */
+    Executor getWriteExecutor();
+
+    /**
+     * Runs a task once after a delay.
+     * @param task        The task to run.
+     * @param delayMillis How long to wait first, in milliseconds.
+     * @return A Future that cancels the task if it has not yet run.
+     */
+    Future<?> schedule(Runnable task, long delayMillis);
+
+    /**
+     * Creates, but does not start, a thread for a task that blocks for as
+     * long as a connection stays open, such as a receive loop.
+     * @param task The task to run.
+     * @param name The name of the thread.
+     * @return The unstarted thread.
+     */
+    Thread newThread(Runnable task, String name);
+}
@@ -0,0 +1,716 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SelectorEngine multiplexes any number of TcpIpConnections over a small,
+ * fixed number of event loop threads using non-blocking SocketChannels.  Each
+ * connection is pinned to one event loop, which handles its connect, read and
+ * write readiness.  This replaces the receiver and send thread that each
+ * TcpIpConnection would otherwise need.
+ * <p/>
+ * Connection listeners are notified through the callback Executor given at
+ * construction, so the ConnectionService can keep delivering on the UI thread.
+ * Host names are resolved on the event loop, so connections should be given
+ * IP addresses where possible.
+ */
+final class SelectorEngine {
+
+    public static final String THREAD_NAME = "Selector Thread ";
+
+    /**
+     * The most buffers handed to a single gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * The size of the read buffer shared by every connection on an event loop.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final EventLoop[] mLoops;
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+    private final ConcurrentMap<Connection, ChannelContext> mChannels = new ConcurrentHashMap<>();
+    private final Executor mCallbackExecutor;
+    private final BufferPool mBufferPool;
+
+    /**
+     * Creates and starts a SelectorEngine with its own BufferPool.
+     * @param loopCount        The number of event loop threads to run.
+     * @param callbackExecutor The Executor that connection listeners are notified on.
+     * @throws IOException If a Selector could not be opened.
+     */
+    public SelectorEngine(int loopCount, Executor callbackExecutor) throws IOException {
+        this(loopCount, callbackExecutor, new BufferPool());
+    }
+
+    /**
+     * Creates and starts a SelectorEngine.
+     * @param loopCount        The number of event loop threads to run.
+     * @param callbackExecutor The Executor that connection listeners are notified on.
+     * @param bufferPool       The pool that received data is copied into.
+     * @throws IOException If a Selector could not be opened.
+     */
+    public SelectorEngine(int loopCount, Executor callbackExecutor, BufferPool bufferPool) throws IOException {
+        if(loopCount < 1) {
+            throw new IllegalArgumentException("Event loop count must be positive!");
+        }
+        if(callbackExecutor == null) {
+            throw new NullPointerException("Callback executor is null!");
+        }
+        if(bufferPool == null) {
+            throw new NullPointerException("Buffer pool is null!");
+        }
+        mCallbackExecutor = callbackExecutor;
+        mBufferPool = bufferPool;
+        mLoops = new EventLoop[loopCount];
+        for(int i = 0; i < loopCount; i++) {
+            mLoops[i] = new EventLoop(THREAD_NAME + i);
+        }
+        for(EventLoop loop : mLoops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Returns the number of event loop threads this engine runs.
+     * @return The number of event loop threads.
+     */
+    public int getLoopCount() {
+        return mLoops.length;
+    }
+
+    /**
+     * Tells whether the given connection is currently handled by this engine.
+     * @param connection The connection to check.
+     * @return True if this engine owns the connection's channel.
+     */
+    public boolean isManaging(Connection connection) {
+        return mChannels.containsKey(connection);
+    }
+
+    /**
+     * Begins a non-blocking connect for the given connection on one of the
+     * event loops.
+     * @param connection The connection to open.
+     */
+    public void connect(TcpIpConnection connection) {
+        EventLoop loop = mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+        final ChannelContext context = new ChannelContext(connection, loop);
+        if(mChannels.putIfAbsent(connection, context) != null) {
+            System.out.println("Connection " + connection.toString() + " is already open.");
+            return;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                context.open();
+            }
+        });
+    }
+
+    /**
+     * Queues data to be written to the given connection.  Writes are ordered
+     * and performed on the connection's event loop.  Once queued, the data is
+     * released from the connection's outbound queue accounting as it is
+     * written or dropped.
+     * @param connection The connection to write to.
+     * @param data       The data to write.
+     * @param future     The future to complete once the data is written, or null.
+     * @return True if the data was queued, false if the connection is not open.
+     */
+    public boolean send(Connection connection, byte[] data, SendFuture future) {
+        if(data == null) {
+            new NullPointerException("Data is null!").printStackTrace();
+            return false;
+        }
+        ChannelContext context = mChannels.get(connection);
+        if(context == null) {
+            System.out.println("Connection is not connected!");
+            return false;
+        }
+        context.write(new PendingWrite(ByteBuffer.wrap(data), future));
+        return true;
+    }
+
+    /**
+     * Closes the given connection's channel and notifies its listeners.
+     * @param connection The connection to close.
+     */
+    public void disconnect(Connection connection) {
+        final ChannelContext context = mChannels.get(connection);
+        if(context == null) {
+            return;
+        }
+        context.mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                context.close();
+            }
+        });
+    }
+
+    /**
+     * Closes every channel owned by this engine and stops its event loops.
+     */
+    public void shutdown() {
+        for(EventLoop loop : mLoops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * A buffer waiting to be written, along with the future to complete once
+     * it has been.
+     */
+    private static final class PendingWrite {
+
+        private final ByteBuffer mBuffer;
+        private final SendFuture mFuture;
+        private final long mQueuedNanos = System.nanoTime();
+
+        PendingWrite(ByteBuffer buffer, SendFuture future) {
+            mBuffer = buffer;
+            mFuture = future;
+        }
+    }
+
+    /**
+     * Holds the state of a single connection's channel.  Everything except
+     * write() is only ever called from the connection's event loop.
+     */
+    private final class ChannelContext {
+
+        private final TcpIpConnection mConnection;
+        private final EventLoop mLoop;
+
+        /**
+         * Buffers queued by any thread, waiting for the event loop to pick them up.
+         */
+        private final Queue<PendingWrite> mPending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Buffers owned by the event loop that have not been fully written.
+         */
+        private final ArrayDeque<PendingWrite> mWriting = new ArrayDeque<>();
+        private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+        private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+
+        private final Runnable mFlushTask = new Runnable() {
+            @Override
+            public void run() {
+                mFlushScheduled.set(false);
+                try {
+                    flush();
+                } catch(IOException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+        };
+
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private boolean mConnected;
+        private boolean mClosed;
+
+        /**
+         * The number of connect attempts made so far.
+         */
+        private int mAttempts;
+
+        /**
+         * Traces the connect attempt in progress, or null, and the tracer
+         * that began it.
+         */
+        private Object mConnectSpan;
+        private TransportTracer mConnectTracer;
+
+        ChannelContext(TcpIpConnection connection, EventLoop loop) {
+            mConnection = connection;
+            mLoop = loop;
+        }
+
+        /**
+         * Opens the channel and starts connecting it, giving up on this
+         * attempt if it takes longer than the connection's connect timeout.
+         */
+        void open() {
+            if(mClosed) {
+                return;
+            }
+            final int attempt = ++mAttempts;
+            TransportTracer tracer = Connection.getTracer();
+            mConnectTracer = tracer;
+            mConnectSpan = tracer == null ? null : tracer.beginConnect(mConnection, attempt);
+            mLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mConnected && !mClosed && mAttempts == attempt) {
+                        System.out.println("Connect to " + mConnection.toString() + " timed out.");
+                        onConnectFailed();
+                    }
+                }
+            }, mConnection.getConnectTimeoutMillis());
+
+            try {
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                mChannel.socket().setTcpNoDelay(true);
+                System.out.println("Connecting to " + mConnection.getServerIp() + ":" + mConnection.getServerPort());
+                InetSocketAddress address = new InetSocketAddress(mConnection.getServerIp(), mConnection.getServerPort());
+                if(mChannel.connect(address)) {
+                    mKey = mChannel.register(mLoop.mSelector, 0, this);
+                    onConnected();
+                } else {
+                    mKey = mChannel.register(mLoop.mSelector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch(IOException | RuntimeException e) {
+                e.printStackTrace();
+                onConnectFailed();
+            }
+        }
+
+        /**
+         * Completes a pending connect once the selector reports it ready.
+         */
+        void finishConnect() {
+            try {
+                if(mChannel.finishConnect()) {
+                    onConnected();
+                }
+            } catch(IOException e) {
+                e.printStackTrace();
+                onConnectFailed();
+            }
+        }
+
+        private void onConnected() throws IOException {
+            //If the connect was canceled in the meantime, just close the channel.
+            if(!mConnection.compareAndSetStatus(Connection.Status.Connecting, Connection.Status.Connected)) {
+                close();
+                return;
+            }
+            mConnected = true;
+            endConnectSpan(true);
+            mConnection.setSocket(mChannel.socket());
+            mKey.interestOps(SelectionKey.OP_READ);
+            flush();
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println("Connected success");
+                    mConnection.notifyConnect();
+                }
+            });
+        }
+
+        /**
+         * Abandons the current connect attempt, retrying after a delay if the
+         * connection's RetryPolicy allows it.  Data sent while connecting is
+         * kept for the next attempt.
+         */
+        private void onConnectFailed() {
+            endConnectSpan(false);
+            closeChannel();
+            mConnection.getStats().onConnectFailed();
+            RetryPolicy policy = mConnection.getRetryPolicy();
+            if(policy.shouldRetry(mAttempts)) {
+                long delay = policy.getRetryDelayMillis(mAttempts);
+                System.out.println("Error connecting! Retrying in " + delay + "ms... (retry " + mAttempts + ").");
+                mLoop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        open();
+                    }
+                }, delay);
+                return;
+            }
+
+            mClosed = true;
+            dropWrites(new IllegalStateException("Connection is not connected!"));
+            mChannels.remove(mConnection, this);
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println("Error connecting, Aborting!");
+                    mConnection.notifyConnectFailed();
+                }
+            });
+        }
+
+        private void endConnectSpan(boolean success) {
+            Object span = mConnectSpan;
+            mConnectSpan = null;
+            if(span != null) {
+                mConnectTracer.endConnect(span, success);
+            }
+        }
+
+        /**
+         * Reads whatever the channel has for us, up to the connection's
+         * receive chunk size, and delivers it to the connection's listeners.
+         */
+        void read() throws IOException {
+            ByteBuffer buffer = mLoop.mReadBuffer;
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), mConnection.getReceiveChunkSize()));
+            TransportTracer tracer = Connection.getTracer();
+            Object span = tracer == null ? null : tracer.beginRead(mConnection);
+            int read = 0;
+            try {
+                read = mChannel.read(buffer);
+            } finally {
+                if(span != null) {
+                    tracer.endRead(span, Math.max(read, 0));
+                }
+            }
+            if(read == -1) {
+                mConnection.getStats().onConnectionLost();
+                close();
+                return;
+            }
+            if(read > 0) {
+                buffer.flip();
+                PooledBuffer data = mBufferPool.acquire(read);
+                try {
+                    buffer.get(data.array(), 0, read);
+                    data.setLength(read);
+                    try {
+                        mConnection.dispatchReceived(data, mCallbackExecutor);
+                    } catch(RuntimeException e) {
+                        //A listener on IO_THREAD threw; the channel itself is fine.
+                        e.printStackTrace();
+                    }
+                } finally {
+                    data.release();
+                }
+            }
+        }
+
+        /**
+         * Queues a buffer for writing.  May be called from any thread.
+         */
+        void write(PendingWrite write) {
+            mPending.add(write);
+            if(mFlushScheduled.compareAndSet(false, true)) {
+                mLoop.execute(mFlushTask);
+            }
+        }
+
+        /**
+         * Writes as much queued data as the socket will take with gathering
+         * writes, waiting for write readiness if the socket buffer fills up.
+         */
+        void flush() throws IOException {
+            if(mClosed) {
+                dropWrites(new IllegalStateException("Connection is not connected!"));
+                return;
+            }
+            if(!mConnected) {
+                return;
+            }
+            PendingWrite next;
+            while((next = mPending.poll()) != null) {
+                mWriting.add(next);
+            }
+            while(!mWriting.isEmpty()) {
+                int count = 0;
+                for(PendingWrite write : mWriting) {
+                    mGather[count++] = write.mBuffer;
+                    if(count == MAX_GATHER) break;
+                }
+                TransportTracer tracer = Connection.getTracer();
+                Object span = tracer == null ? null : tracer.beginWrite(mConnection);
+                long bytes = 0;
+                int completed = 0;
+                try {
+                    bytes = mChannel.write(mGather, 0, count);
+                    for(PendingWrite write : mWriting) {
+                        if(write.mBuffer.hasRemaining()) break;
+                        completed++;
+                    }
+                } finally {
+                    if(span != null) {
+                        tracer.endWrite(span, bytes, completed);
+                    }
+                }
+
+                ConnectionStats stats = mConnection.getStats();
+                long now = System.nanoTime();
+                for(; completed > 0; completed--) {
+                    PendingWrite written = mWriting.pollFirst();
+                    stats.onSendLatency(written.mQueuedNanos, now);
+                    stats.onSendsWritten(1, written.mBuffer.limit());
+                    if(written.mFuture != null) {
+                        written.mFuture.succeed();
+                    }
+                    releaseSendBytes(written.mBuffer.limit());
+                }
+                if(mGather[count - 1].hasRemaining()) {
+                    break;
+                }
+            }
+            for(int i = 0; i < MAX_GATHER; i++) {
+                mGather[i] = null;
+            }
+            mKey.interestOps(mWriting.isEmpty()
+                    ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Closes the channel after an I/O error, or after a listener called
+         * on the event loop threw, failing any unsent data with it.
+         */
+        void fail(Exception e) {
+            e.printStackTrace();
+            if(mConnected && !mClosed) {
+                mConnection.getStats().onConnectionLost();
+            }
+            dropWrites(e);
+            close();
+        }
+
+        /**
+         * Closes the channel, drops any unsent data and notifies the
+         * connection's listeners of the disconnect.
+         */
+        void close() {
+            if(mClosed) {
+                return;
+            }
+            mClosed = true;
+            endConnectSpan(false);
+            dropWrites(new IllegalStateException("Connection is not connected!"));
+            closeChannel();
+            mChannels.remove(mConnection, this);
+            if(mConnected) {
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mConnection.notifyDisconnect();
+                        } catch(RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Discards all unsent data, failing its futures with the given cause.
+         */
+        private void dropWrites(Throwable cause) {
+            long dropped = 0;
+            int count = 0;
+            PendingWrite next;
+            while((next = mWriting.poll()) != null || (next = mPending.poll()) != null) {
+                dropped += next.mBuffer.limit();
+                count++;
+                if(next.mFuture != null) {
+                    next.mFuture.fail(cause);
+                }
+            }
+            mConnection.getStats().onSendsFailed(count);
+            releaseSendBytes(dropped);
+        }
+
+        /**
+         * Removes sent or dropped data from the connection's outbound queue
+         * accounting.  A writability listener that throws is reported, so
+         * that it can't fail a connection whose writes succeeded.
+         */
+        private void releaseSendBytes(long length) {
+            try {
+                mConnection.releaseSendBytes(length);
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void closeChannel() {
+            if(mKey != null) {
+                mKey.cancel();
+                mKey = null;
+            }
+            if(mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+                mChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Runs a task on an event loop, reporting rather than throwing anything
+     * it throws, so that one connection's failure can't stop the loop that
+     * every other connection pinned to it depends on.
+     */
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch(RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A task scheduled to run on an event loop once its deadline passes.
+     */
+    private static final class Timer implements Comparable<Timer> {
+
+        private final long mDeadline;
+        private final long mSequence;
+        private final Runnable mTask;
+
+        Timer(long deadline, long sequence, Runnable task) {
+            mDeadline = deadline;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if(mDeadline != other.mDeadline) {
+                return mDeadline < other.mDeadline ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * A single selector thread.  Tasks submitted from other threads are
+     * queued and the selector is woken up to run them.  Timers are only
+     * ever touched from the loop itself.
+     */
+    private final class EventLoop extends Thread {
+
+        private final Selector mSelector;
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> mTimers = new PriorityQueue<>();
+        private long mTimerSequence;
+        private volatile boolean mRunning = true;
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            mTasks.add(task);
+            if(Thread.currentThread() != this) {
+                mSelector.wakeup();
+            }
+        }
+
+        /**
+         * Schedules a task to run on this loop after a delay.  Must be called
+         * from the loop itself.
+         */
+        void schedule(Runnable task, long delayMillis) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            mTimers.add(new Timer(deadline, mTimerSequence++, task));
+        }
+
+        void shutdown() {
+            mRunning = false;
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(mRunning) {
+                    Timer next = mTimers.peek();
+                    if(next == null) {
+                        mSelector.select();
+                    } else {
+                        long wait = TimeUnit.NANOSECONDS.toMillis(next.mDeadline - System.nanoTime());
+                        if(wait > 0) {
+                            mSelector.select(wait);
+                        } else {
+                            mSelector.selectNow();
+                        }
+                    }
+                    runTasks();
+                    runTimers();
+
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ChannelContext context = (ChannelContext) key.attachment();
+                        try {
+                            if(key.isValid() && key.isConnectable()) {
+                                context.finishConnect();
+                            }
+                            if(key.isValid() && key.isReadable()) {
+                                context.read();
+                            }
+                            if(key.isValid() && key.isWritable()) {
+                                context.flush();
+                            }
+                        } catch(IOException | RuntimeException e) {
+                            //Only this connection is failed, the loop keeps serving the others.
+                            context.fail(e);
+                        }
+                    }
+                }
+            } catch(IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            }
+
+            //Close every channel still owned by this loop.
+            runTasks();
+            for(ChannelContext context : mChannels.values()) {
+                if(context.mLoop == this) {
+                    context.close();
+                }
+            }
+            try {
+                mSelector.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while((task = mTasks.poll()) != null) {
+                runSafely(task);
+            }
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            Timer timer;
+            while((timer = mTimers.peek()) != null && timer.mDeadline - now <= 0) {
+                mTimers.poll();
+                runSafely(timer.mTask);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A SendFuture tracks a single piece of data sent with Connection.sendAsync().
+ * It completes successfully once the data has been written to the remote's
+ * socket, or fails with the IOException that stopped the write, or with an
+ * IllegalStateException if the Connection was not connected.
+ * <p/>
+ * Listeners are called on the thread that completes the future, which is
+ * usually the connection's send thread, so they should return quickly.  An
+ * exception thrown by a listener is reported and does not reach that thread.
+ */
+public final class SendFuture implements Future<Void> {
+
+    /*
+     * A listener setup for notifying listening parties that a send has
+     * completed, either successfully or not.
+     */
+    public interface OnSendCompleteListener {
+        void onSendComplete(SendFuture future);
+    }
+
+    private final Connection mConnection;
+    private final int mLength;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private List<OnSendCompleteListener> mListeners = new ArrayList<>();
+    private volatile Throwable mFailure;
+    private boolean mCompleted;
+
+    SendFuture(Connection connection, int length) {
+        mConnection = connection;
+        mLength = length;
+    }
+
+    /**
+     * Returns the Connection the data was sent over.
+     * @return The Connection the data was sent over.
+     */
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Returns the number of bytes being sent.
+     * @return The number of bytes being sent.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Registers a listener to be called when this send completes.  If it has
+     * already completed, the listener is called immediately.
+     * @param listener The listener to call.
+     * @return This SendFuture.
+     */
+    public SendFuture addOnSendCompleteListener(OnSendCompleteListener listener) {
+        synchronized (this) {
+            if (!mCompleted) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        listener.onSendComplete(this);
+        return this;
+    }
+
+    /**
+     * Tells whether the data was written successfully.
+     * @return True if this send completed without failing.
+     */
+    public boolean isSuccess() {
+        return isDone() && mFailure == null;
+    }
+
+    /**
+     * Returns the reason this send failed.
+     * @return The cause of the failure, or null if it has not failed.
+     */
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * Data that has been queued can't be taken back, so sends can't be canceled.
+     * @return False.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("Send did not complete in time.");
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return null;
+    }
+
+    /**
+     * Marks this send as written.
+     */
+    void succeed() {
+        complete(null);
+    }
+
+    /**
+     * Marks this send as failed.
+     * @param cause The reason the send failed.
+     */
+    void fail(Throwable cause) {
+        complete(cause);
+    }
+
+    private void complete(Throwable cause) {
+        List<OnSendCompleteListener> listeners;
+        synchronized (this) {
+            if (mCompleted) {
+                return;
+            }
+            mCompleted = true;
+            mFailure = cause;
+            listeners = mListeners;
+            mListeners = null;
+        }
+        mDone.countDown();
+        for (OnSendCompleteListener listener : listeners) {
+            try {
+                listener.onSendComplete(this);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
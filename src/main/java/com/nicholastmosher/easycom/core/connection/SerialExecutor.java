@@ -0,0 +1,91 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on top of a
+ * shared Executor.  This lets a pool of threads serve many connections while
+ * still keeping each connection's own tasks in sequence.
+ * <p/>
+ * Tasks are run in a loop by a single drain task on the Executor, never
+ * while holding this executor's lock.  With an Executor that runs tasks on
+ * the calling thread, a task that submits another one returns before the
+ * new one runs, rather than running it nested inside itself.
+ */
+final class SerialExecutor implements Executor {
+
+    private final Executor mExecutor;
+
+    /**
+     * Tasks waiting to run, and whether a drain task is scheduled or running.
+     * Guarded by this.
+     */
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mDraining;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Creates a SerialExecutor that runs its tasks on the given Executor.
+     * @param executor The Executor to run tasks on.
+     */
+    SerialExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("Executor is null!");
+        }
+        mExecutor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("Task is null!");
+        }
+        synchronized (this) {
+            mTasks.add(task);
+            if (mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        try {
+            mExecutor.execute(mDrain);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                mTasks.removeLastOccurrence(task);
+                mDraining = false;
+            }
+            throw e;
+        }
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            Runnable task;
+            while ((task = nextTask()) != null) {
+                task.run();
+            }
+            drained = true;
+        } finally {
+            if (!drained) {
+                //A task threw.  Carry on with the rest in a new drain, and let the exception reach the Executor.
+                mExecutor.execute(mDrain);
+            }
+        }
+    }
+
+    private synchronized Runnable nextTask() {
+        Runnable task = mTasks.poll();
+        if (task == null) {
+            mDraining = false;
+        }
+        return task;
+    }
+}
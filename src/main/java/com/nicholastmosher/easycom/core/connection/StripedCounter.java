@@ -0,0 +1,110 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to at once without fighting over a
+ * single cache line.  It starts out as a single AtomicLong, which is all an
+ * uncontended counter ever needs.  The first time two threads collide, it
+ * spreads further updates over a set of padded cells chosen by thread, and
+ * sum() adds them back up.
+ * <p/>
+ * Sums are not a snapshot: a sum taken while other threads are adding may
+ * or may not include their updates.
+ */
+final class StripedCounter {
+
+    /**
+     * The number of cells updates are spread over once contended.
+     */
+    private static final int STRIPES;
+
+    /**
+     * The number of longs each cell takes up, so that no two cells share a
+     * 64 byte cache line.
+     */
+    private static final int PADDING = 8;
+
+    static {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 2;
+        while (stripes < cpus && stripes < 64) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLong mBase = new AtomicLong();
+    private volatile AtomicLongArray mCells;
+
+    /**
+     * Adds the given amount to this counter.
+     * @param amount The amount to add, which may be negative.
+     */
+    void add(long amount) {
+        AtomicLongArray cells = mCells;
+        if (cells == null) {
+            long base = mBase.get();
+            if (mBase.compareAndSet(base, base + amount)) {
+                return;
+            }
+            cells = inflate();
+        }
+        cells.getAndAdd(cellIndex(), amount);
+    }
+
+    /**
+     * Adds one to this counter.
+     */
+    void increment() {
+        add(1);
+    }
+
+    /**
+     * Returns the total of everything added to this counter.
+     * @return The current sum.
+     */
+    long sum() {
+        long sum = mBase.get();
+        AtomicLongArray cells = mCells;
+        if (cells != null) {
+            for (int i = 0; i < cells.length(); i += PADDING) {
+                sum += cells.get(i);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sets this counter back to zero.  Updates made at the same time may be
+     * lost.
+     */
+    void reset() {
+        mBase.set(0);
+        AtomicLongArray cells = mCells;
+        if (cells != null) {
+            for (int i = 0; i < cells.length(); i += PADDING) {
+                cells.set(i, 0);
+            }
+        }
+    }
+
+    private synchronized AtomicLongArray inflate() {
+        AtomicLongArray cells = mCells;
+        if (cells == null) {
+            cells = new AtomicLongArray(STRIPES * PADDING);
+            mCells = cells;
+        }
+        return cells;
+    }
+
+    /**
+     * Picks the current thread's cell by scrambling its id, so that threads
+     * created one after another land in different cells.
+     */
+    private static int cellIndex() {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (id >>> 32) & (STRIPES - 1)) * PADDING;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.UUID;
 
 /**
  * Created by Nick Mosher on 9/15/15.
@@ -40,31 +41,17 @@ public class TcpIpConnection extends Connection {
     }
 
     /**
-     * Returns the current status of this Connection, verifying that the
-     * status is correct.
-     * @return The connectivity status.
+     * Constructs a TcpIpConnection with a known unique identifier, such as
+     * when restoring a saved Connection.
+     * @param name The name of this Connection.
+     * @param ip   The IP of the remote device.
+     * @param port The port to connect over.
+     * @param uuid The unique identifier of this Connection.
      */
-    @Override
-    public Status getStatus() {
-        if (mSocket != null) {
-            if (!mSocket.isConnected()) {
-                if (!mSocket.isClosed()) {
-                    try {
-                        mSocket.close();
-                    } catch (IOException ioe) {
-                        System.out.println("TCP/IP Socket not connected; error closing socket!");
-                        ioe.printStackTrace();
-                    }
-                }
-                //If we still think we're connected, set status to disconnected.
-                mStatus = (mStatus.equals(Status.Connected)) ? Status.Disconnected : mStatus;
-            } else {
-                //This is the only case in which we SHOULD be connected.
-                return (mStatus = Status.Connected);
-            }
-        }
-        //As long as the current status ISN'T 'connected', return current status.
-        return (mStatus != Status.Connected) ? mStatus : Status.Disconnected;
+    public TcpIpConnection(String name, String ip, int port, UUID uuid) {
+        super(name, uuid);
+        mServerIp = ip;
+        mServerPort = port;
     }
 
     /**
@@ -131,6 +118,15 @@ public class TcpIpConnection extends Connection {
         return mServerPort;
     }
 
+    /**
+     * Returns the remote address in "ip:port" form.
+     * @return The address of the remote (server) device.
+     */
+    @Override
+    public String getRemoteAddress() {
+        return mServerIp + ":" + mServerPort;
+    }
+
     /**
      * Sets the socket for this connection to use.
      * @param socket The socket to use to connect.
@@ -0,0 +1,673 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A new TransferManager is created every time a new Connection is connected.
+ * The TransferManager is responsible for asynchronously watching the connection
+ * for incoming data and sending data in a nonblocking, sequence-safe manner.
+ * <p/>
+ * It only needs the connection's InputStream and OutputStream, so it runs
+ * the same on Android and on a plain JVM.  Its writes, linger delays and
+ * receive threads come from the Scheduler given at construction, and
+ * listeners and connection loss are reported on its callback Executor.
+ */
+final class TransferManager {
+
+    /**
+     * Recycles the buffers that incoming data is read into, for every
+     * connection.
+     */
+    static final BufferPool BUFFER_POOL = new BufferPool();
+
+    private static final ConcurrentMap<Connection, TransferManager> MANAGERS = new ConcurrentHashMap<>();
+
+    private final Connection mConnection;
+    private final Scheduler mScheduler;
+    private final Executor mCallbackExecutor;
+    private final Receiver mReceiver;
+
+    /**
+     * Runs this connection's flushes one at a time on the shared writers.
+     */
+    private final Executor mWriter;
+    private volatile boolean mClosed;
+
+    /**
+     * SendTasks waiting to be written.  The send thread drains as many as
+     * fit into one batch and writes them with a single call.
+     */
+    private final Queue<SendTask> mPendingSends = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private byte[] mBatch = new byte[0];
+
+    /**
+     * The SendTasks whose data is in the batch currently being written, and
+     * a second list to swap in while the last batch's futures complete.
+     */
+    private List<SendTask> mBatchTasks = new ArrayList<>();
+    private List<SendTask> mSpareBatchTasks = new ArrayList<>();
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            flush();
+        }
+    };
+
+    private final Runnable mLingerTask = new Runnable() {
+        @Override
+        public void run() {
+            mWriter.execute(mFlushTask);
+        }
+    };
+
+    /**
+     * Creates a TransferManager with a new Receiver based on the given
+     * connection's ReceiveMode, and starts receiving.
+     * @param connection The connection to manage.
+     * @param scheduler  Where writes, reads and callbacks run.
+     */
+    TransferManager(Connection connection, Scheduler scheduler) {
+        if(connection == null) {
+            throw new NullPointerException("Connection is null!");
+        }
+        if(scheduler == null) {
+            throw new NullPointerException("Scheduler is null!");
+        }
+
+        mConnection = connection;
+        mScheduler = scheduler;
+        mCallbackExecutor = scheduler.getCallbackExecutor();
+        mWriter = new SerialExecutor(scheduler.getWriteExecutor());
+
+        //Register this TransferManager with this connection, retiring any stale one.
+        TransferManager stale = MANAGERS.put(connection, this);
+        if(stale != null) {
+            stale.close();
+        }
+
+        if(connection.getReceiveMode() == Connection.ReceiveMode.Polling) {
+            mReceiver = new ReceiveTask(this);
+        } else {
+            mReceiver = new ReceiveThread(this);
+        }
+        mReceiver.open();
+    }
+
+    /**
+     * Returns the TransferManager for the given connection.
+     * @param connection The connection to retrieve the manager of.
+     * @return The TransferManager, or null if the connection has none.
+     */
+    static TransferManager getManager(Connection connection) {
+        return MANAGERS.get(connection);
+    }
+
+    /**
+     * Queues data to be asynchronously but sequentially sent.  Sends queued
+     * within the connection's send linger time are coalesced into as few
+     * writes as possible.
+     * @param data   The data to send.
+     * @param future The future to complete once the data is written, or null.
+     */
+    void postSendTask(byte[] data, SendFuture future) {
+        if(data == null) {
+            new NullPointerException("Data is null!").printStackTrace();
+            return;
+        }
+        mPendingSends.add(new SendTask(data, future));
+        if(mFlushScheduled.compareAndSet(false, true)) {
+            long linger = mConnection.getSendLingerMillis();
+            if(linger > 0) {
+                mScheduler.schedule(mLingerTask, linger);
+            } else {
+                mWriter.execute(mFlushTask);
+            }
+        }
+    }
+
+    /**
+     * Runs on the write Executor.  Drains every pending SendTask, copying
+     * consecutive small ones into a single batch of up to the connection's
+     * send batch size and writing each batch at once.  Data larger than a
+     * batch is written directly.
+     */
+    private void flush() {
+        if(mClosed || !mConnection.getStatus().equals(Connection.Status.Connected)) {
+            System.out.println("Connection is not connected!");
+            dropPendingSends(new IllegalStateException("Connection is not connected!"));
+            return;
+        }
+
+        int batchSize = mConnection.getSendBatchSize();
+        if(mBatch.length != batchSize) {
+            mBatch = new byte[batchSize];
+        }
+
+        TransportTracer tracer = Connection.getTracer();
+        OutputStream output;
+        try {
+            output = mConnection.getOutputStream();
+        } catch(IllegalStateException e) {
+            failBatch(e);
+            return;
+        }
+        SendTask next;
+        while((next = mPendingSends.poll()) != null) {
+            mBatchTasks.add(next);
+            int length;
+            try {
+                if(next.mData.length >= batchSize) {
+                    length = next.mData.length;
+                    Object span = tracer == null ? null : tracer.beginWrite(mConnection);
+                    boolean written = false;
+                    try {
+                        output.write(next.mData);
+                        written = true;
+                    } finally {
+                        if(span != null) {
+                            tracer.endWrite(span, written ? length : 0, written ? 1 : 0);
+                        }
+                    }
+                } else {
+                    //Copy as many consecutive sends as will fit into this batch.
+                    length = 0;
+                    do {
+                        System.arraycopy(next.mData, 0, mBatch, length, next.mData.length);
+                        length += next.mData.length;
+                        next = mPendingSends.peek();
+                        if(next == null || length + next.mData.length > batchSize) {
+                            break;
+                        }
+                        mBatchTasks.add(mPendingSends.poll());
+                    } while(true);
+                    Object span = tracer == null ? null : tracer.beginWrite(mConnection);
+                    boolean written = false;
+                    try {
+                        output.write(mBatch, 0, length);
+                        written = true;
+                    } finally {
+                        if(span != null) {
+                            tracer.endWrite(span, written ? length : 0, written ? mBatchTasks.size() : 0);
+                        }
+                    }
+                }
+            } catch(IOException e) {
+                failBatch(e);
+                return;
+            }
+            //Listeners are called outside the try, so a throwing one can't fail a healthy connection.
+            completeBatch(length);
+        }
+        try {
+            output.flush();
+        } catch(IOException e) {
+            failBatch(e);
+        }
+    }
+
+    /**
+     * Removes the SendTasks of the batch being written, so that whatever
+     * their listeners do can't complete or fail them a second time.
+     * @return The SendTasks, to be cleared once they have been completed.
+     */
+    private List<SendTask> takeBatch() {
+        List<SendTask> batch = mBatchTasks;
+        mBatchTasks = mSpareBatchTasks;
+        mSpareBatchTasks = batch;
+        return batch;
+    }
+
+    /**
+     * Releases the SendTasks of a batch that has been written and
+     * completes their futures.
+     * @param length The number of bytes in the batch.
+     */
+    private void completeBatch(int length) {
+        List<SendTask> batch = takeBatch();
+        ConnectionStats stats = mConnection.getStats();
+        long now = System.nanoTime();
+        for(SendTask task : batch) {
+            stats.onSendLatency(task.mQueuedNanos, now);
+        }
+        stats.onSendsWritten(batch.size(), length);
+        releaseSendBytes(length);
+        for(SendTask task : batch) {
+            if(task.mFuture != null) {
+                task.mFuture.succeed();
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Fails the batch being written and every pending SendTask after a
+     * write error, and tears the connection down.
+     * @param e The error that stopped the write.
+     */
+    private void failBatch(Exception e) {
+        e.printStackTrace();
+        List<SendTask> batch = takeBatch();
+        long length = 0;
+        for(SendTask task : batch) {
+            length += task.mData.length;
+        }
+        mConnection.getStats().onSendsFailed(batch.size());
+        releaseSendBytes(length);
+        for(SendTask task : batch) {
+            failSend(task.mFuture, e);
+        }
+        batch.clear();
+        dropPendingSends(e);
+        onConnectionLost();
+    }
+
+    /**
+     * Discards every pending SendTask, removing them from the connection's
+     * outbound queue accounting and failing their futures.
+     * @param cause The reason the pending sends are being dropped.
+     */
+    private void dropPendingSends(Throwable cause) {
+        long dropped = 0;
+        int count = 0;
+        SendTask next;
+        while((next = mPendingSends.poll()) != null) {
+            dropped += next.mData.length;
+            count++;
+            failSend(next.mFuture, cause);
+        }
+        releaseSendBytes(dropped);
+        mConnection.getStats().onSendsFailed(count);
+    }
+
+    /**
+     * Removes sent or dropped data from the connection's outbound queue
+     * accounting.  A writability listener that throws is reported, so that
+     * it can't stop the futures of that data from being completed.
+     */
+    private void releaseSendBytes(long length) {
+        try {
+            mConnection.releaseSendBytes(length);
+        } catch(RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void failSend(SendFuture future, Throwable cause) {
+        if(future != null) {
+            future.fail(cause);
+        }
+    }
+
+    /**
+     * Closes the TransferManager by closing the Receiver, unregistering it
+     * from its connection and dropping any sends that were not written.
+     */
+    void close() {
+        mClosed = true;
+        MANAGERS.remove(mConnection, this);
+        mReceiver.close();
+        dropPendingSends(new IllegalStateException("Connection is not connected!"));
+    }
+
+    /**
+     * Hands received data to the connection's listeners.  A listener called
+     * on IO_THREAD that throws is reported rather than mistaken for a stream
+     * failure, and the receiver keeps reading.
+     */
+    private void dispatchReceived(PooledBuffer buffer) {
+        try {
+            mConnection.dispatchReceived(buffer, mCallbackExecutor);
+        } catch(RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Tears down a connection whose stream has failed or been closed by the
+     * remote, as discovered by a read or a write.  Runs on the callback
+     * executor.
+     */
+    private void onConnectionLost() {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(mConnection.getStatus() != Connection.Status.Connected) {
+                    return;
+                }
+                System.out.println("Connection " + mConnection.toString() + " was lost.");
+                mConnection.getStats().onConnectionLost();
+                close();
+                mConnection.notifyDisconnect();
+            }
+        });
+    }
+
+    /**
+     * Holds data waiting to be sent over a Connection, in the order it was
+     * queued.
+     */
+    private static final class SendTask {
+        private final byte[] mData;
+        private final SendFuture mFuture;
+        private final long mQueuedNanos = System.nanoTime();
+
+        SendTask(byte[] data, SendFuture future) {
+            mData = data;
+            mFuture = future;
+        }
+    }
+
+    /**
+     * A Receiver watches a single connection for incoming data and notifies
+     * that connection's listeners when data is received.
+     */
+    private interface Receiver {
+
+        /**
+         * Starts watching the connection for incoming data.
+         */
+        void open();
+
+        /**
+         * Stops watching the connection for incoming data.
+         */
+        void close();
+    }
+
+    /**
+     * A ReceiveTask periodically checks the connection's InputStream for
+     * available data on its own thread, and notifies the connection's
+     * listeners when data is received.  Received data is handed to each listener on the Executor
+     * chosen for it, which is the callback executor unless the connection or
+     * listener says otherwise.
+     */
+    private static final class ReceiveTask implements Runnable, Receiver {
+
+        public static final String THREAD_NAME = "Polling Thread";
+
+        private final TransferManager mManager;
+        private final Connection mConnection;
+        private volatile boolean isRunning;
+        private volatile Thread mThread;
+
+        /**
+         * Create a new ReceiveTask that watches the given manager's connection.
+         * @param manager The TransferManager of the connection to receive from.
+         */
+        ReceiveTask(TransferManager manager) {
+            mManager = manager;
+            mConnection = manager.mConnection;
+            isRunning = true;
+        }
+
+        /**
+         * Wait for data to be received from the given connection.
+         */
+        @Override
+        public void run() {
+            InputStream input = null;
+            while((mConnection.getStatus().equals(Connection.Status.Connected)) && isRunning) {
+
+                try {
+                    if(input == null) {
+                        input = mConnection.getInputStream();
+                        if(input == null) {
+                            throw new NullPointerException("InputStream is null.");
+                        }
+                    }
+
+                    //Read everything available in chunks, delivering each chunk at once.
+                    int available = input.available();
+                    while(available > 0) {
+                        int length = Math.min(available, mConnection.getReceiveChunkSize());
+                        PooledBuffer chunk = BUFFER_POOL.acquire(length);
+                        try {
+                            TransportTracer tracer = Connection.getTracer();
+                            Object span = tracer == null ? null : tracer.beginRead(mConnection);
+                            int read = 0;
+                            try {
+                                read = input.read(chunk.array(), 0, length);
+                            } finally {
+                                if(span != null) {
+                                    tracer.endRead(span, Math.max(read, 0));
+                                }
+                            }
+                            if(read == -1) {
+                                throw new IOException("Input stream returned -1.");
+                            }
+                            chunk.setLength(read);
+                            mManager.dispatchReceived(chunk);
+                        } finally {
+                            chunk.release();
+                        }
+                        available = input.available();
+                    }
+
+                } catch(IOException | RuntimeException e) {
+                    //Happens if the stream is closed, either by close() or by the remote.
+                    if(isRunning) {
+                        e.printStackTrace();
+                        mManager.onConnectionLost();
+                    }
+                    break;
+                }
+
+                try {
+                    Thread.sleep(50);
+                } catch(InterruptedException e) {
+                    isRunning = false;
+                }
+            }
+        }
+
+        @Override
+        public void open() {
+            Thread thread = mManager.mScheduler.newThread(this, THREAD_NAME);
+            mThread = thread;
+            thread.start();
+        }
+
+        @Override
+        public void close() {
+            isRunning = false;
+            Thread thread = mThread;
+            if(thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * A ReceiveThread is the blocking alternative to the ReceiveTask.  Rather
+     * than polling the connection for available data, it sits in a blocking
+     * read on the connection's InputStream, so data is delivered as soon as it
+     * arrives and an idle connection costs no wakeups.  Received data is handed
+     * to listeners the same way as the ReceiveTask does.  The thread
+     * ends when the InputStream is closed, which close() does for us.
+     * <p/>
+     * If the connection has a receive ring size, reads go straight into a
+     * ByteRingBuffer instead, and a second thread drains the ring and
+     * dispatches to the listeners.
+     */
+    private static final class ReceiveThread implements Runnable, Receiver {
+
+        public static final String THREAD_NAME = "Receive Thread";
+        public static final String DISPATCH_THREAD_NAME = "Dispatch Thread";
+
+        private final TransferManager mManager;
+        private final Connection mConnection;
+        private volatile InputStream mInput;
+        private volatile boolean isRunning;
+        private volatile Thread mThread;
+        private volatile ByteRingBuffer mRing;
+
+        /**
+         * Create a new ReceiveThread that watches the given manager's connection.
+         * @param manager The TransferManager of the connection to receive from.
+         */
+        ReceiveThread(TransferManager manager) {
+            mManager = manager;
+            mConnection = manager.mConnection;
+            isRunning = true;
+        }
+
+        /**
+         * Block on the connection's InputStream, delivering each read to the
+         * listeners until the stream is closed.
+         */
+        @Override
+        public void run() {
+            try {
+                InputStream input = mConnection.getInputStream();
+                if(input == null) {
+                    throw new NullPointerException("InputStream is null.");
+                }
+                mInput = input;
+
+                if(mConnection.getReceiveRingSize() > 0) {
+                    readIntoRing(input);
+                }
+                while(isRunning && mRing == null) {
+                    int length = mConnection.getReceiveChunkSize();
+                    PooledBuffer buffer = BUFFER_POOL.acquire(length);
+                    try {
+                        TransportTracer tracer = Connection.getTracer();
+                        Object span = tracer == null ? null : tracer.beginRead(mConnection);
+                        int read = 0;
+                        try {
+                            read = input.read(buffer.array(), 0, length);
+                        } finally {
+                            if(span != null) {
+                                tracer.endRead(span, Math.max(read, 0));
+                            }
+                        }
+                        if(read == -1) {
+                            break;
+                        }
+                        buffer.setLength(read);
+                        mManager.dispatchReceived(buffer);
+                    } finally {
+                        buffer.release();
+                    }
+                }
+            } catch(IOException | RuntimeException e) {
+                //Closing the stream from close() unblocks the read with an exception.
+                if(isRunning) {
+                    e.printStackTrace();
+                }
+            }
+
+            ByteRingBuffer ring = mRing;
+            if(ring != null) {
+                ring.close();
+            }
+
+            //If close() didn't stop us, the remote or the stream did.
+            if(isRunning) {
+                isRunning = false;
+                mManager.onConnectionLost();
+            }
+        }
+
+        /**
+         * Reads into a ring that a dispatch thread drains, until the stream
+         * ends or the ring is closed.
+         */
+        private void readIntoRing(InputStream input) throws IOException {
+            final ByteRingBuffer ring = new ByteRingBuffer(mConnection.getReceiveRingSize(),
+                    mConnection.getReceiveWaitStrategy());
+            mRing = ring;
+            Thread dispatcher = mManager.mScheduler.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int read;
+                        do {
+                            int length = mConnection.getReceiveChunkSize();
+                            PooledBuffer buffer = BUFFER_POOL.acquire(length);
+                            try {
+                                read = ring.read(buffer.array(), 0, length);
+                                if(read > 0) {
+                                    buffer.setLength(read);
+                                    mManager.dispatchReceived(buffer);
+                                }
+                            } finally {
+                                buffer.release();
+                            }
+                        } while(read != -1);
+                    } finally {
+                        //Never leave the reader waiting on a ring nobody drains.
+                        ring.close();
+                    }
+                }
+            }, DISPATCH_THREAD_NAME);
+            dispatcher.start();
+
+            while(isRunning) {
+                int length = ring.awaitSpace(mConnection.getReceiveChunkSize());
+                if(length == 0) {
+                    return;
+                }
+                TransportTracer tracer = Connection.getTracer();
+                Object span = tracer == null ? null : tracer.beginRead(mConnection);
+                int read = 0;
+                try {
+                    read = ring.write(input, length);
+                } finally {
+                    if(span != null) {
+                        tracer.endRead(span, Math.max(read, 0));
+                    }
+                }
+                if(read == -1) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void open() {
+            Thread thread = mManager.mScheduler.newThread(this, THREAD_NAME);
+            mThread = thread;
+            thread.start();
+        }
+
+        /**
+         * Stops the thread by closing the connection's InputStream, which
+         * unblocks any pending read, and the ring, which unblocks a wait for
+         * the dispatch thread to make room.
+         */
+        @Override
+        public void close() {
+            isRunning = false;
+            ByteRingBuffer ring = mRing;
+            if(ring != null) {
+                ring.close();
+            }
+            InputStream input = mInput;
+            if(input != null) {
+                try {
+                    input.close();
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            Thread thread = mThread;
+            if(thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.nicholastmosher.easycom.core.connection;
+
+/**
+ * Carries out the I/O that Connections ask for: opening and closing them and
+ * writing their outbound data.  On Android the ConnectionService is the
+ * Transport and installs itself when it is created.  Anything else, such as
+ * a benchmark or test harness on a plain JVM, can install its own with
+ * Connection.setTransport().
+ */
+public interface Transport {
+
+    /**
+     * Opens the given connection, whose status is already Connecting.
+     * @param connection The connection to connect.
+     */
+    void connect(Connection connection);
+
+    /**
+     * Closes the given connection, or cancels its connect.
+     * @param connection The connection to disconnect.
+     */
+    void disconnect(Connection connection);
+
+    /**
+     * Queues data to be written over the given connection.  The data has
+     * already passed through the connection's pipeline.  Queued data is
+     * written in the order it was offered.
+     * @param connection The connection to send data over.
+     * @param data       The data to send.
+     * @param bounded    Whether to reject data that would take the
+     *                   connection's outbound queue past its high watermark.
+     * @param future     The future to complete once the data is written, or null.
+     * @return True if the data was queued, false if it was rejected or the
+     * connection is not open.
+     */
+    boolean offer(Connection connection, byte[] data, boolean bounded, SendFuture future);
+}
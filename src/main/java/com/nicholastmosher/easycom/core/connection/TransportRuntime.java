@@ -0,0 +1,540 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * The Transport that does the actual work of connecting, disconnecting,
+ * sending and receiving, in plain Java.  The ConnectionService runs one on
+ * the Android UI thread, and a server or test harness can run one directly:
+ * <pre>
+ * TransportRuntime runtime = new TransportRuntime(new DefaultScheduler(Connection.IO_THREAD));
+ * Connection.setTransport(runtime);
+ * </pre>
+ * Each type of Connection is opened and closed by the Connector registered
+ * for it.  TCP/IP is supported out of the box.  Once open, a connection's
+ * streams are transferred by a TransferManager, unless TCP/IP event loops
+ * are enabled, in which case TcpIpConnections are transferred by a shared
+ * SelectorEngine.
+ * <p/>
+ * Connects and disconnects for a single connection run one at a time, and a
+ * new one supersedes any still waiting.  Failed connects are retried as the
+ * connection's RetryPolicy says.
+ */
+public class TransportRuntime implements Transport {
+
+    /**
+     * Opens and closes the underlying socket or stream of one type of
+     * Connection.  Both methods run on the Scheduler's lifecycle Executor and
+     * may block.
+     */
+    public interface Connector {
+
+        /**
+         * Opens the connection, so that its streams can be used once this
+         * returns.
+         * @param connection The connection to open.
+         * @throws IOException If the connection could not be opened.
+         */
+        void open(Connection connection) throws IOException;
+
+        /**
+         * Closes the connection, which ends any blocking reads on its streams.
+         * @param connection The connection to close.
+         * @throws IOException If closing failed.
+         */
+        void close(Connection connection) throws IOException;
+    }
+
+    /**
+     * Opens TcpIpConnections with a blocking Socket.
+     */
+    private static final Connector TCPIP_CONNECTOR = new Connector() {
+        @Override
+        public void open(Connection connection) throws IOException {
+            TcpIpConnection tcpIpConnection = (TcpIpConnection) connection;
+            System.out.println("Connecting to " + tcpIpConnection.getServerIp() + ":" + tcpIpConnection.getServerPort());
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(tcpIpConnection.getServerIp(), tcpIpConnection.getServerPort()),
+                        connection.getConnectTimeoutMillis());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            tcpIpConnection.setSocket(socket);
+        }
+
+        @Override
+        public void close(Connection connection) throws IOException {
+            ((TcpIpConnection) connection).getSocket().close();
+        }
+    };
+
+    private final Scheduler mScheduler;
+    private final ConcurrentMap<String, Connector> mConnectors = new ConcurrentHashMap<>();
+
+    /**
+     * Allows for one task per connection to be active.  A new task for a
+     * connection cancels the one before it.  Tasks remove themselves when
+     * they finish.
+     */
+    private final Map<Connection, LifecycleTask> mTasks = new HashMap<>();
+
+    /**
+     * Each connection's lifecycle tasks run in order on its own SerialExecutor,
+     * all sharing the Scheduler's lifecycle Executor.  Guarded by mTasks.
+     */
+    private final Map<Connection, Executor> mTaskExecutors = new WeakHashMap<>();
+
+    /**
+     * Connect retries waiting out their backoff delay, so that a new task for
+     * the same connection can cancel them.  Guarded by mTasks.
+     */
+    private final Map<Connection, Future<?>> mPendingRetries = new HashMap<>();
+
+    /**
+     * Every connection this runtime has been asked to connect, for as long
+     * as something else holds on to it.  Guarded by itself.
+     */
+    private final Map<Connection, Boolean> mConnections = new WeakHashMap<>();
+
+    /**
+     * When not null, TcpIpConnections are connected and transferred over this
+     * shared NIO engine instead of a TransferManager per connection.
+     */
+    private volatile SelectorEngine mSelectorEngine;
+
+    /**
+     * Creates a TransportRuntime that does its work on the given Scheduler.
+     * @param scheduler Where connects, writes, reads and callbacks run.
+     */
+    public TransportRuntime(Scheduler scheduler) {
+        if (scheduler == null) {
+            throw new NullPointerException("Scheduler is null!");
+        }
+        mScheduler = scheduler;
+        mConnectors.put(Connection.TYPE_TCPIP, TCPIP_CONNECTOR);
+    }
+
+    /**
+     * Returns the Scheduler this runtime does its work on.
+     * @return The Scheduler.
+     */
+    public Scheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Sets how Connections of the given type are opened and closed.
+     * @param type      The type, as returned by Connection.getConnectionType().
+     * @param connector The Connector for that type, or null to remove it.
+     */
+    public void setConnector(String type, Connector connector) {
+        if (type == null) {
+            new NullPointerException("Connection type is null!").printStackTrace();
+            return;
+        }
+        if (connector == null) {
+            mConnectors.remove(type);
+        } else {
+            mConnectors.put(type, connector);
+        }
+    }
+
+    /**
+     * Chooses how TcpIpConnections are serviced.  With a positive count, every
+     * TcpIpConnection connected afterwards is multiplexed over that many shared
+     * NIO event loop threads rather than getting its own receiver thread.  A
+     * count of 0 restores the per-connection threads.  Connections open on a
+     * previous engine are closed.
+     * @param eventLoops The number of event loop threads, or 0 to disable.
+     * @throws IOException If the event loops could not be started.
+     */
+    public void setTcpIpEventLoops(int eventLoops) throws IOException {
+        if (eventLoops < 0) {
+            new IllegalArgumentException("Event loop count must not be negative!").printStackTrace();
+            return;
+        }
+        SelectorEngine previous = mSelectorEngine;
+        if (previous != null && previous.getLoopCount() == eventLoops) {
+            return;
+        }
+
+        try {
+            mSelectorEngine = (eventLoops == 0) ? null
+                    : new SelectorEngine(eventLoops, mScheduler.getCallbackExecutor(), TransferManager.BUFFER_POOL);
+        } finally {
+            if (previous != null) {
+                previous.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of NIO event loop threads TcpIpConnections are
+     * multiplexed over.
+     * @return The number of event loops, or 0 if they are disabled.
+     */
+    public int getTcpIpEventLoops() {
+        SelectorEngine engine = mSelectorEngine;
+        return engine == null ? 0 : engine.getLoopCount();
+    }
+
+    /**
+     * Returns every connection this runtime has been asked to connect that is
+     * still in use, so that their stats can be compared.
+     * @return A new list of the connections.
+     */
+    public List<Connection> getConnections() {
+        synchronized (mConnections) {
+            return new ArrayList<>(mConnections.keySet());
+        }
+    }
+
+    /**
+     * Adds up the stats of every connection this runtime has been asked to
+     * connect that is still in use.  The result is a copy, which is not
+     * updated afterwards.
+     * @return The combined stats.
+     */
+    public ConnectionStats getAggregateStats() {
+        ConnectionStats aggregate = ConnectionStats.aggregate();
+        for (Connection connection : getConnections()) {
+            aggregate.add(connection.getStats());
+        }
+        return aggregate;
+    }
+
+    /**
+     * Stops the TCP/IP event loops, closing the connections open on them.
+     */
+    public void shutdown() {
+        SelectorEngine engine = mSelectorEngine;
+        mSelectorEngine = null;
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Returns the engine handling the given TcpIpConnection, if it is being
+     * handled by a SelectorEngine.
+     * @param connection The connection to look up.
+     * @return The SelectorEngine managing the connection, or null.
+     */
+    private SelectorEngine getSelectorEngine(Connection connection) {
+        SelectorEngine engine = mSelectorEngine;
+        return (engine != null && engine.isManaging(connection)) ? engine : null;
+    }
+
+    @Override
+    public void connect(Connection connection) {
+        if (connection == null) {
+            new NullPointerException("Connection is null!").printStackTrace();
+            return;
+        }
+        synchronized (mConnections) {
+            mConnections.put(connection, Boolean.TRUE);
+        }
+
+        SelectorEngine engine = mSelectorEngine;
+        if (engine != null && connection instanceof TcpIpConnection) {
+            engine.connect((TcpIpConnection) connection);
+            return;
+        }
+        Connector connector = getConnector(connection);
+        if (connector != null) {
+            setTask(connection, new ConnectTask(connection, connector, 1));
+        }
+    }
+
+    @Override
+    public void disconnect(Connection connection) {
+        if (connection == null) {
+            new NullPointerException("Connection is null!").printStackTrace();
+            return;
+        }
+
+        SelectorEngine engine = getSelectorEngine(connection);
+        if (engine != null) {
+            engine.disconnect(connection);
+            return;
+        }
+        Connector connector = getConnector(connection);
+        if (connector != null) {
+            setTask(connection, new DisconnectTask(connection, connector));
+        }
+    }
+
+    /**
+     * Accounts for the data in the connection's outbound queue and hands it
+     * to whichever engine is transferring the connection.
+     */
+    @Override
+    public boolean offer(Connection connection, byte[] data, boolean bounded, SendFuture future) {
+        if (connection == null) {
+            new NullPointerException("Connection is null!").printStackTrace();
+            failSend(future, new NullPointerException("Connection is null!"));
+            return false;
+        }
+        if (data == null) {
+            new NullPointerException("Data is null!").printStackTrace();
+            failSend(future, new NullPointerException("Data is null!"));
+            return false;
+        }
+        if (!connection.offerSendBytes(data.length, bounded)) {
+            return false;
+        }
+
+        boolean queued = false;
+        SelectorEngine engine = getSelectorEngine(connection);
+        if (engine != null) {
+            queued = engine.send(connection, data, future);
+        } else {
+            TransferManager manager = TransferManager.getManager(connection);
+            if (manager != null) {
+                manager.postSendTask(data, future);
+                queued = true;
+            }
+        }
+
+        if (!queued) {
+            System.out.println("Connection " + connection.toString() + " is not connected.");
+            connection.releaseSendBytes(data.length);
+            connection.getStats().onSendsFailed(1);
+            failSend(future, new IllegalStateException("Connection is not connected!"));
+        }
+        return queued;
+    }
+
+    private static void failSend(SendFuture future, Throwable cause) {
+        if (future != null) {
+            future.fail(cause);
+        }
+    }
+
+    private Connector getConnector(Connection connection) {
+        Connector connector = mConnectors.get(connection.getConnectionType());
+        if (connector == null) {
+            new IllegalArgumentException("No Connector for connection type "
+                    + connection.getConnectionType() + "!").printStackTrace();
+        }
+        return connector;
+    }
+
+    /**
+     * Sets and executes a new active task for the given connection, canceling
+     * any existing one and any connect retry that is waiting.
+     * @param connection The connection to set this task for.
+     * @param task       The task to assign to the connection.
+     */
+    private void setTask(Connection connection, LifecycleTask task) {
+        synchronized (mTasks) {
+            Future<?> retry = mPendingRetries.remove(connection);
+            if (retry != null) {
+                retry.cancel(false);
+            }
+
+            LifecycleTask previous = mTasks.put(connection, task);
+            if (previous != null) {
+                previous.mCanceled = true;
+            }
+
+            Executor executor = mTaskExecutors.get(connection);
+            if (executor == null) {
+                executor = new SerialExecutor(mScheduler.getLifecycleExecutor());
+                mTaskExecutors.put(connection, executor);
+            }
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Removes a finished task, unless it has already been replaced.
+     */
+    private void finishTask(LifecycleTask task) {
+        synchronized (mTasks) {
+            if (mTasks.get(task.mConnection) == task) {
+                mTasks.remove(task.mConnection);
+            }
+        }
+    }
+
+    /**
+     * Schedules another connect attempt after a failed one, waiting as long as
+     * the connection's RetryPolicy says to, or gives up if it has no attempts
+     * left.
+     * @param connection The connection that failed to connect.
+     * @param connector  The Connector to make the next attempt with.
+     * @param attempts   The number of attempts made so far.
+     */
+    private void retryConnect(final Connection connection, Connector connector, int attempts) {
+        RetryPolicy policy = connection.getRetryPolicy();
+        if (!policy.shouldRetry(attempts)) {
+            System.out.println("Error connecting, Aborting!");
+            connection.notifyConnectFailed();
+            return;
+        }
+
+        long delay = policy.getRetryDelayMillis(attempts);
+        System.out.println("Error connecting! Retrying in " + delay + "ms... (retry " + attempts + ").");
+        final ConnectTask retry = new ConnectTask(connection, connector, attempts + 1);
+        synchronized (mTasks) {
+            mPendingRetries.put(connection, mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mTasks) {
+                        if (mPendingRetries.remove(connection) == null) {
+                            return;
+                        }
+                        setTask(connection, retry);
+                    }
+                }
+            }, delay));
+        }
+    }
+
+    /**
+     * A connect or disconnect attempt, which runs on the lifecycle Executor
+     * and then reports back on the callback Executor.
+     */
+    private abstract class LifecycleTask implements Runnable {
+        final Connection mConnection;
+        final Connector mConnector;
+        volatile boolean mCanceled;
+
+        LifecycleTask(Connection connection, Connector connector) {
+            mConnection = connection;
+            mConnector = connector;
+        }
+
+        /**
+         * Closes the connection, reporting rather than throwing any failure.
+         */
+        boolean closeQuietly() {
+            try {
+                mConnector.close(mConnection);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Opens a connection with its Connector, then starts transferring it.
+     */
+    private final class ConnectTask extends LifecycleTask {
+        private final int mAttempt;
+
+        ConnectTask(Connection connection, Connector connector, int attempt) {
+            super(connection, connector);
+            mAttempt = attempt;
+        }
+
+        @Override
+        public void run() {
+            if (mCanceled) {
+                return;
+            }
+            TransportTracer tracer = Connection.getTracer();
+            Object span = tracer == null ? null : tracer.beginConnect(mConnection, mAttempt);
+            boolean opened;
+            try {
+                mConnector.open(mConnection);
+                opened = true;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                opened = false;
+            }
+            if (span != null) {
+                tracer.endConnect(span, opened);
+            }
+
+            final boolean success = opened;
+            mScheduler.getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish(success);
+                }
+            });
+        }
+
+        private void finish(boolean success) {
+            finishTask(this);
+
+            //If this task was canceled after its socket connected, nobody else will close it.
+            if (mCanceled) {
+                if (success) {
+                    closeQuietly();
+                }
+                return;
+            }
+
+            if (success) {
+                System.out.println("Connected success");
+
+                //Mark the connection connected before the TransferManager starts using it.
+                if (!mConnection.compareAndSetStatus(Connection.Status.Connecting, Connection.Status.Connected)) {
+                    closeQuietly();
+                    return;
+                }
+
+                //Create a TransferManager to handle actual data to/from the connection.
+                new TransferManager(mConnection, mScheduler);
+
+                //Notify connection that it's connected.
+                mConnection.notifyConnect();
+            } else {
+                System.out.println("Connected failed");
+                mConnection.getStats().onConnectFailed();
+                retryConnect(mConnection, mConnector, mAttempt);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection with its Connector and stops transferring it.
+     */
+    private final class DisconnectTask extends LifecycleTask {
+
+        DisconnectTask(Connection connection, Connector connector) {
+            super(connection, connector);
+        }
+
+        @Override
+        public void run() {
+            if (mConnection.getStatus().equals(Connection.Status.Connected)) {
+                closeQuietly();
+            }
+
+            mScheduler.getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    finishTask(DisconnectTask.this);
+
+                    //Find the TransferManager for this connection and close it.
+                    TransferManager manager = TransferManager.getManager(mConnection);
+                    if (manager != null) {
+                        manager.close();
+                    }
+
+                    //Notify connection of disconnect.
+                    mConnection.notifyDisconnect();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.nicholastmosher.easycom.core.connection;
+
+/**
+ * Traces the work done for every Connection: connect attempts, writes,
+ * reads and calls to receive listeners.  Install one with
+ * Connection.setTracer().  On a JDK with Flight Recorder, the JfrTracer in
+ * the jvm build turns each of them into an event, so that a continuous
+ * recording shows where the time goes.
+ * <p/>
+ * Each begin method returns a span, which is handed back to the matching
+ * end method once the work is done, however it ended.  A tracer that isn't
+ * interested in the work returns null, and the end method is then not
+ * called.  With no tracer
+ * installed, tracing costs a single volatile read.
+ * <p/>
+ * Begin and end methods are called on the I/O threads and must be quick.
+ */
+public interface TransportTracer {
+
+    /**
+     * Called before an attempt to open a connection.
+     * @param connection The connection being opened.
+     * @param attempt    The number of this attempt, starting at 1.
+     * @return A span to pass to endConnect(), or null.
+     */
+    Object beginConnect(Connection connection, int attempt);
+
+    /**
+     * Called once a connect attempt has succeeded or failed.
+     * @param span    The span returned by beginConnect().
+     * @param success Whether the connection was opened.
+     */
+    void endConnect(Object span, boolean success);
+
+    /**
+     * Called before a single write to a connection.
+     * @param connection The connection being written to.
+     * @return A span to pass to endWrite(), or null.
+     */
+    Object beginWrite(Connection connection);
+
+    /**
+     * Called once a write has returned or failed.
+     * @param span  The span returned by beginWrite().
+     * @param bytes The number of bytes written, 0 if the write failed.
+     * @param sends The number of sends that were completed by the write.
+     */
+    void endWrite(Object span, long bytes, int sends);
+
+    /**
+     * Called before a single read from a connection, which may block until
+     * data arrives.
+     * @param connection The connection being read from.
+     * @return A span to pass to endRead(), or null.
+     */
+    Object beginRead(Connection connection);
+
+    /**
+     * Called once a read has returned or failed.
+     * @param span  The span returned by beginRead().
+     * @param bytes The number of bytes read, 0 if the read returned no data,
+     *              ended the stream or failed.
+     */
+    void endRead(Object span, int bytes);
+
+    /**
+     * Called before received data is handed to a single listener.
+     * @param connection The connection the data was received over.
+     * @param listener   The listener about to be called.
+     * @param bytes      The number of bytes handed to it.
+     * @return A span to pass to endDispatch(), or null.
+     */
+    Object beginDispatch(Connection connection, Object listener, int bytes);
+
+    /**
+     * Called once a listener has returned.
+     * @param span The span returned by beginDispatch().
+     */
+    void endDispatch(Object span);
+}
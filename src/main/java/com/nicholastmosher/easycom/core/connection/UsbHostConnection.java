@@ -25,7 +25,7 @@ public class UsbHostConnection extends Connection {
     public Status getStatus() {
         //FIXME Add implementation for USB Host connections. Until then throw unsupported.
         throw new UnsupportedOperationException("USB Host Connections are not yet supported.");
-//        return mStatus;
+//        return super.getStatus();
     }
 
     @Override
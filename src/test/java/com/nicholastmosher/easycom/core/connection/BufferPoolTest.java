@@ -0,0 +1,74 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquire_roundsUpToSizeClass() throws Exception {
+        BufferPool pool = new BufferPool();
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.acquire(1).capacity());
+        assertEquals(1024, pool.acquire(1000).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1).capacity());
+    }
+
+    @Test
+    public void release_recyclesOnlyAfterLastReference() throws Exception {
+        BufferPool pool = new BufferPool();
+        PooledBuffer buffer = pool.acquire(100);
+        buffer.retain();
+        buffer.release();
+        assertNotSame(buffer, pool.acquire(100));
+        buffer.release();
+        assertSame(buffer, pool.acquire(100));
+    }
+
+    @Test
+    public void data_isReadOnlyViewOfReceivedBytes() throws Exception {
+        PooledBuffer buffer = new BufferPool().acquire(4);
+        buffer.array()[0] = 7;
+        buffer.array()[1] = 8;
+        buffer.setLength(2);
+        assertTrue(buffer.data().isReadOnly());
+        assertEquals(2, buffer.data().remaining());
+        assertEquals(8, buffer.data().get(1));
+        assertArrayEquals(new byte[]{7, 8}, buffer.toByteArray());
+    }
+
+    @Test
+    public void data_returnsIndependentViews() throws Exception {
+        PooledBuffer buffer = new BufferPool().acquire(4);
+        buffer.array()[0] = 7;
+        buffer.array()[1] = 8;
+        buffer.setLength(2);
+        ByteBuffer first = buffer.data();
+        assertEquals(7, first.get());
+        ByteBuffer second = buffer.data();
+        assertEquals(0, second.position());
+        assertEquals(1, first.position());
+        assertEquals(8, first.get());
+        assertEquals(7, second.get());
+    }
+
+    @Test
+    public void dispatchView_isReusedAndRewoundForEachAcquire() throws Exception {
+        BufferPool pool = new BufferPool();
+        PooledBuffer buffer = pool.acquire(4);
+        buffer.setLength(3);
+        ByteBuffer view = buffer.dispatchView();
+        assertTrue(view.isReadOnly());
+        view.position(3);
+        buffer.release();
+
+        assertSame(buffer, pool.acquire(4));
+        buffer.setLength(2);
+        assertSame(view, buffer.dispatchView());
+        assertEquals(0, view.position());
+        assertEquals(2, view.remaining());
+    }
+}
@@ -0,0 +1,149 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ByteRingBufferTest {
+
+    /**
+     * Writes the bytes the way the receiver does, waiting for space and then
+     * reading from a stream into it.
+     * @return False if the ring stopped before everything was written.
+     */
+    private static boolean write(ByteRingBuffer ring, byte[] data, int length) {
+        ByteArrayInputStream input = new ByteArrayInputStream(data, 0, length);
+        try {
+            while (input.available() > 0) {
+                int space = ring.awaitSpace(input.available());
+                if (space == 0) {
+                    return false;
+                }
+                ring.write(input, space);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return true;
+    }
+
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() throws Exception {
+        assertEquals(1024, new ByteRingBuffer(1000, Connection.WaitStrategy.Park).capacity());
+        assertEquals(16, new ByteRingBuffer(16, Connection.WaitStrategy.Park).capacity());
+    }
+
+    @Test
+    public void read_drainsRemainingBytesAfterClose() throws Exception {
+        ByteRingBuffer ring = new ByteRingBuffer(8, Connection.WaitStrategy.BusySpin);
+        assertTrue(write(ring, new byte[]{1, 2, 3}, 3));
+        ring.close();
+        byte[] out = new byte[8];
+        assertEquals(3, ring.read(out, 0, out.length));
+        assertEquals(3, out[2]);
+        assertEquals(-1, ring.read(out, 0, out.length));
+        assertEquals(0, ring.awaitSpace(1));
+    }
+
+    @Test
+    public void writeFromStream_readsStraightIntoFreeSpace() throws Exception {
+        ByteRingBuffer ring = new ByteRingBuffer(8, Connection.WaitStrategy.BusySpin);
+        ByteArrayInputStream input = new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+        assertEquals(6, ring.awaitSpace(6));
+        assertEquals(6, ring.write(input, 6));
+        byte[] out = new byte[8];
+        assertEquals(6, ring.read(out, 0, out.length));
+        assertEquals(6, out[5]);
+
+        //Only the space up to the end of the array is offered at once.
+        assertEquals(2, ring.awaitSpace(100));
+        assertEquals(2, ring.write(input, 2));
+        assertEquals(6, ring.awaitSpace(100));
+        assertEquals(2, ring.write(input, 6));
+        assertEquals(-1, ring.write(input, ring.awaitSpace(100)));
+        assertEquals(2, ring.read(out, 0, out.length));
+        assertEquals(8, out[1]);
+        assertEquals(2, ring.read(out, 0, out.length));
+        assertEquals(10, out[1]);
+    }
+
+    @Test
+    public void waits_endOnCloseOrInterrupt() throws Exception {
+        for (Connection.WaitStrategy strategy : new Connection.WaitStrategy[]{
+                Connection.WaitStrategy.Yield, Connection.WaitStrategy.Park}) {
+            final ByteRingBuffer ring = new ByteRingBuffer(4, strategy);
+            assertTrue(write(ring, new byte[4], 4));
+            final AtomicBoolean written = new AtomicBoolean(true);
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    written.set(write(ring, new byte[1], 1));
+                }
+            });
+            producer.start();
+            Thread.sleep(50);
+            producer.interrupt();
+            producer.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(producer.isAlive());
+            assertFalse(written.get());
+
+            final ByteRingBuffer empty = new ByteRingBuffer(4, strategy);
+            final int[] read = new int[1];
+            Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read[0] = empty.read(new byte[4], 0, 4);
+                }
+            });
+            consumer.start();
+            Thread.sleep(50);
+            empty.close();
+            consumer.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(consumer.isAlive());
+            assertEquals(-1, read[0]);
+        }
+    }
+
+    @Test
+    public void transfer_keepsOrderAcrossWraparound() throws Exception {
+        //BusySpin is left out since it starves the producer on a single core.
+        for (Connection.WaitStrategy strategy : new Connection.WaitStrategy[]{
+                Connection.WaitStrategy.Yield, Connection.WaitStrategy.Park}) {
+            final ByteRingBuffer ring = new ByteRingBuffer(64, strategy);
+            final int total = 100000;
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] chunk = new byte[37];
+                    for (int sent = 0; sent < total; ) {
+                        int length = Math.min(chunk.length, total - sent);
+                        for (int i = 0; i < length; i++) {
+                            chunk[i] = (byte) (sent + i);
+                        }
+                        write(ring, chunk, length);
+                        sent += length;
+                    }
+                    ring.close();
+                }
+            });
+            producer.start();
+
+            byte[] buffer = new byte[50];
+            int received = 0;
+            int read;
+            while ((read = ring.read(buffer, 0, buffer.length)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    assertEquals((byte) (received + i), buffer[i]);
+                }
+                received += read;
+            }
+            producer.join();
+            assertEquals(total, received);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ConnectionModelTest {
+
+    @Test
+    public void put_replacesPreviousVersion() throws Exception {
+        ConnectionModel model = new ConnectionModel();
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        assertNull(model.put(connection.mUUID, connection));
+        assertSame(connection, model.put(connection.mUUID, connection));
+        assertEquals(1, model.size());
+        assertSame(connection, model.get(connection.getUUID()));
+        assertSame(connection, model.get(connection.getUUID().toUpperCase()));
+        String missing = UUID.randomUUID().toString();
+        assertNull(model.get(missing));
+        assertNull(model.get(missing.toUpperCase()));
+    }
+
+    @Test
+    public void indexes_trackTypeAddressAndStatus() throws Exception {
+        ConnectionModel model = new ConnectionModel();
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        model.put(connection.mUUID, connection);
+        assertTrue(model.getByType(Connection.TYPE_TCPIP).contains(connection));
+        assertTrue(model.getByAddress("10.0.0.1:80").contains(connection));
+        assertTrue(model.getByStatus(Connection.Status.Disconnected).contains(connection));
+
+        assertSame(connection, model.remove(connection));
+        assertTrue(model.isEmpty());
+        assertTrue(model.getByType(Connection.TYPE_TCPIP).isEmpty());
+        assertTrue(model.getByAddress("10.0.0.1:80").isEmpty());
+        assertTrue(model.getByStatus(Connection.Status.Disconnected).isEmpty());
+    }
+
+    @Test
+    public void concurrentMapMethods_keepIndexes() throws Exception {
+        ConnectionModel model = new ConnectionModel();
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        assertNull(model.putIfAbsent(connection.mUUID, connection));
+        assertTrue(model.getByAddress("10.0.0.1:80").contains(connection));
+        assertSame(connection, model.get(connection.getUUID()));
+
+        TcpIpConnection moved = new TcpIpConnection("a", "10.0.0.2", 80, connection.mUUID);
+        assertSame(connection, model.putIfAbsent(moved.mUUID, moved));
+        assertSame(connection, model.replace(moved.mUUID, moved));
+        assertEquals(1, model.size());
+        assertTrue(model.getByAddress("10.0.0.1:80").isEmpty());
+        assertTrue(model.getByAddress("10.0.0.2:80").contains(moved));
+        assertEquals(1, model.getByType(Connection.TYPE_TCPIP).size());
+        assertTrue(model.getByType(Connection.TYPE_TCPIP).contains(moved));
+        assertSame(moved, model.get(connection.getUUID()));
+
+        assertFalse(model.replace(connection.mUUID, connection, connection));
+        assertFalse(model.remove(connection.mUUID, connection));
+        assertTrue(model.remove(moved.mUUID, moved));
+        assertTrue(model.isEmpty());
+        assertTrue(model.getByType(Connection.TYPE_TCPIP).isEmpty());
+        assertTrue(model.getByStatus(Connection.Status.Disconnected).isEmpty());
+        assertNull(model.get(connection.getUUID()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void views_areReadOnly() throws Exception {
+        ConnectionModel model = new ConnectionModel();
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        model.put(connection.mUUID, connection);
+        model.values().remove(connection);
+    }
+
+    @Test
+    public void batch_deliversOneMergedChangeSet() throws Exception {
+        ConnectionModel model = new ConnectionModel();
+        TcpIpConnection kept = new TcpIpConnection("kept", "10.0.0.1", 80);
+        TcpIpConnection dropped = new TcpIpConnection("dropped", "10.0.0.2", 80);
+        TcpIpConnection existing = new TcpIpConnection("existing", "10.0.0.3", 80);
+        model.put(existing.mUUID, existing);
+
+        final List<ModelChangeSet> delivered = new ArrayList<>();
+        model.addOnModelChangedListener(new ConnectionModel.OnModelChangedListener() {
+            @Override
+            public void onModelChanged(ConnectionModel model, ModelChangeSet changes) {
+                delivered.add(changes);
+            }
+        });
+
+        model.beginBatch();
+        model.put(kept.mUUID, kept);
+        model.put(dropped.mUUID, dropped);
+        model.remove(dropped);
+        model.put(existing.mUUID, existing);
+        assertTrue(delivered.isEmpty());
+        model.endBatch();
+
+        assertEquals(1, delivered.size());
+        ModelChangeSet changes = delivered.get(0);
+        assertEquals(1, changes.getAdded().size());
+        assertSame(kept, changes.getAdded().get(0));
+        assertTrue(changes.getRemoved().isEmpty());
+        assertEquals(1, changes.getChanged().size());
+        assertSame(existing, changes.getChanged().get(0));
+    }
+}
@@ -0,0 +1,88 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPipelineTest {
+
+    /**
+     * Drops the first byte of everything received.
+     */
+    private static class SkipFirstByte implements ConnectionPipeline.InboundHandler {
+        @Override
+        public void onReceived(ConnectionPipeline.StageContext context, ByteBuffer data) {
+            ByteBuffer rest = data.duplicate();
+            rest.position(rest.position() + 1);
+            context.fireReceived(rest);
+        }
+    }
+
+    private static PooledBuffer received(String text) {
+        return PooledBuffer.copyOf(ByteBuffer.wrap(text.getBytes()));
+    }
+
+    @Test
+    public void inbound_passesThroughStagesInOrder() throws Exception {
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        connection.setReceiveExecutor(Connection.IO_THREAD);
+        final List<String> delivered = new ArrayList<>();
+        connection.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+            @Override
+            public void onDataReceived(Connection connection, byte[] data) {
+                delivered.add(new String(data));
+            }
+        });
+
+        ConnectionPipeline pipeline = connection.getPipeline();
+        pipeline.addLast("skip1", new SkipFirstByte());
+        pipeline.addFirst("skip0", new SkipFirstByte());
+        assertEquals(Arrays.asList("skip0", "skip1"), pipeline.names());
+
+        connection.dispatchReceived(received("abcd"), null);
+        pipeline.remove("skip0");
+        connection.dispatchReceived(received("abcd"), null);
+        pipeline.remove("skip1");
+        connection.dispatchReceived(received("abcd"), null);
+
+        assertEquals(Arrays.asList("cd", "bcd", "abcd"), delivered);
+    }
+
+    @Test
+    public void outbound_stageMayHoldOnToData() throws Exception {
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        final List<Integer> seen = new ArrayList<>();
+        connection.getPipeline().addLast("sink", new ConnectionPipeline.OutboundHandler() {
+            @Override
+            public void onSend(ConnectionPipeline.StageContext context, ByteBuffer data) {
+                seen.add(data.remaining());
+            }
+        });
+
+        SendFuture future = connection.getPipeline().send(new byte[3]);
+        assertTrue(future.isSuccess());
+        assertEquals(Arrays.asList(3), seen);
+    }
+
+    @Test
+    public void outbound_throwingStageFailsTheSend() throws Exception {
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        final IllegalStateException bug = new IllegalStateException("Stage bug");
+        connection.getPipeline().addLast("broken", new ConnectionPipeline.OutboundHandler() {
+            @Override
+            public void onSend(ConnectionPipeline.StageContext context, ByteBuffer data) {
+                throw bug;
+            }
+        });
+
+        SendFuture future = connection.getPipeline().send(new byte[3]);
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccess());
+        assertSame(bug, future.getFailure());
+    }
+}
@@ -0,0 +1,93 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStatsTest {
+
+    @Test
+    public void histogram_bucketsAreContiguous() throws Exception {
+        int previous = -1;
+        for (long micros = 0; micros < 1 << 20; micros++) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(LatencyHistogram.lowestValueOf(bucket) <= micros);
+            previous = bucket;
+        }
+        //The last bucket holds the top eighth of the last power of two.
+        assertEquals(15L << 28,
+                LatencyHistogram.lowestValueOf(LatencyHistogram.bucketOf(LatencyHistogram.MAX_TRACKABLE_MICROS)));
+    }
+
+    @Test
+    public void histogram_percentilesAreWithinBucketError() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10000; micros++) {
+            histogram.recordMicros(micros);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(1, histogram.getMinMicros());
+        assertEquals(10000, histogram.getMaxMicros());
+        assertEquals(5000.5, histogram.getMeanMicros(), 0.001);
+        assertEquals(5000, histogram.getPercentileMicros(50), 5000 * 0.07);
+        assertEquals(9900, histogram.getPercentileMicros(99), 9900 * 0.07);
+        assertEquals(10000, histogram.getPercentileMicros(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void stripedCounter_sumsConcurrentAdds() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void aggregate_addsEveryConnection() throws Exception {
+        ConnectionStats first = new ConnectionStats(null);
+        first.onSendQueued();
+        first.onSendQueued();
+        first.onSendsWritten(1, 10);
+        first.onSendLatency(0, 2000000);
+        first.onConnected();
+        first.onConnected();
+        ConnectionStats second = new ConnectionStats(null);
+        second.onSendQueued();
+        second.onSendsFailed(1);
+        second.onReceived(7);
+        second.onConnectFailed();
+
+        ConnectionStats aggregate = ConnectionStats.aggregate();
+        aggregate.add(first);
+        aggregate.add(second);
+        assertEquals(10, aggregate.getBytesSent());
+        assertEquals(1, aggregate.getMessagesSent());
+        assertEquals(1, aggregate.getQueuedSends());
+        assertEquals(1, aggregate.getSendFailures());
+        assertEquals(7, aggregate.getBytesReceived());
+        assertEquals(2, aggregate.getConnects());
+        assertEquals(1, aggregate.getReconnects());
+        assertEquals(1, aggregate.getConnectFailures());
+        assertEquals(2000, aggregate.getSendLatencies().getMaxMicros());
+    }
+}
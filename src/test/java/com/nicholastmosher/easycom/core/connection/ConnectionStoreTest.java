@@ -0,0 +1,121 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStoreTest {
+
+    private final List<File> mDirectories = new ArrayList<>();
+    private final List<ConnectionStore> mStores = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ConnectionStore store : mStores) {
+            store.close();
+        }
+        for (File directory : mDirectories) {
+            delete(directory);
+        }
+    }
+
+    private File newDirectory() throws Exception {
+        File directory = File.createTempFile("connection-store", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        mDirectories.add(directory);
+        return directory;
+    }
+
+    /**
+     * Creates a store that is closed once the test is over.
+     */
+    private ConnectionStore newStore(File directory) {
+        ConnectionStore store = new ConnectionStore(directory);
+        mStores.add(store);
+        return store;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void open_restoresJournaledConnections() throws Exception {
+        File directory = newDirectory();
+        TcpIpConnection kept = new TcpIpConnection("kept", "10.0.0.1", 8080);
+        TcpIpConnection removed = new TcpIpConnection("removed", "10.0.0.2", 80);
+        BluetoothConnection bluetooth = new BluetoothConnection("bt", "00:11:22:33:44:55");
+
+        ConnectionModel model = new ConnectionModel();
+        ConnectionStore store = newStore(directory);
+        assertEquals(0, store.open(model));
+        model.put(kept.mUUID, kept);
+        model.put(removed.mUUID, removed);
+        model.put(bluetooth.mUUID, bluetooth);
+        model.remove(removed);
+        kept.setName("renamed");
+        store.close();
+
+        ConnectionModel restored = new ConnectionModel();
+        assertEquals(2, newStore(directory).open(restored));
+        TcpIpConnection tcp = (TcpIpConnection) restored.get(kept.getUUID());
+        assertEquals("renamed", tcp.getName());
+        assertEquals("10.0.0.1", tcp.getServerIp());
+        assertEquals(8080, tcp.getServerPort());
+        assertEquals("00:11:22:33:44:55", ((BluetoothConnection) restored.get(bluetooth.getUUID())).getAddress());
+        assertNull(restored.get(removed.getUUID()));
+    }
+
+    @Test
+    public void compact_keepsConnectionsAndEmptiesJournal() throws Exception {
+        File directory = newDirectory();
+        ConnectionModel model = new ConnectionModel();
+        ConnectionStore store = newStore(directory);
+        store.open(model);
+        for (int i = 0; i < 10; i++) {
+            TcpIpConnection connection = new TcpIpConnection("c" + i, "10.0.0." + i, 80);
+            model.put(connection.mUUID, connection);
+        }
+        store.compact();
+        store.close();
+
+        assertEquals(0, new File(directory, ConnectionStore.JOURNAL_FILE).length());
+        assertEquals(10, newStore(directory).open(new ConnectionModel()));
+    }
+
+    @Test
+    public void close_stopsSavingChanges() throws Exception {
+        File directory = newDirectory();
+        TcpIpConnection kept = new TcpIpConnection("kept", "10.0.0.1", 80);
+        ConnectionModel model = new ConnectionModel();
+        ConnectionStore store = newStore(directory);
+        store.open(model);
+        model.put(kept.mUUID, kept);
+        store.close();
+        long journalLength = new File(directory, ConnectionStore.JOURNAL_FILE).length();
+
+        //None of these may reach the closed writer.
+        TcpIpConnection late = new TcpIpConnection("late", "10.0.0.2", 80);
+        model.put(late.mUUID, late);
+        kept.setName("renamed");
+        store.compact();
+        store.close();
+
+        assertEquals(journalLength, new File(directory, ConnectionStore.JOURNAL_FILE).length());
+        ConnectionModel restored = new ConnectionModel();
+        assertEquals(1, newStore(directory).open(restored));
+        assertEquals("kept", restored.get(kept.getUUID()).getName());
+    }
+}
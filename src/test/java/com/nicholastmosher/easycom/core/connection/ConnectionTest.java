@@ -0,0 +1,57 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ConnectionTest {
+
+    private static class RecordingListener implements Connection.OnDataReceivedListener {
+        final List<byte[]> mReceived = new ArrayList<>();
+
+        @Override
+        public void onDataReceived(Connection connection, byte[] data) {
+            mReceived.add(data);
+        }
+    }
+
+    @Test
+    public void dispatchDataReceived_usesChosenExecutors() throws Exception {
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        final List<Runnable> ui = new ArrayList<>();
+        Executor uiThread = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                ui.add(runnable);
+            }
+        };
+        RecordingListener onUi = new RecordingListener();
+        RecordingListener onIo = new RecordingListener();
+        connection.addOnDataReceivedListener(onUi);
+        connection.addOnDataReceivedListener(onIo, Connection.IO_THREAD);
+
+        byte[] first = {1};
+        byte[] second = {2};
+        connection.dispatchDataReceived(first, uiThread);
+        connection.dispatchDataReceived(second, uiThread);
+
+        assertEquals(2, onIo.mReceived.size());
+        assertSame(first, onIo.mReceived.get(0));
+        assertTrue(onUi.mReceived.isEmpty());
+        for (Runnable runnable : ui) {
+            runnable.run();
+        }
+        assertEquals(2, onUi.mReceived.size());
+        assertSame(second, onUi.mReceived.get(1));
+
+        connection.removeOnDataReceivedListener(onIo);
+        connection.setReceiveExecutor(Connection.IO_THREAD);
+        connection.dispatchDataReceived(first, uiThread);
+        assertEquals(3, onUi.mReceived.size());
+        assertEquals(2, onIo.mReceived.size());
+    }
+}
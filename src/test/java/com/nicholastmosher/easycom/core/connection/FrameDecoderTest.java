@@ -0,0 +1,95 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private static class Frames implements FrameDecoder.OnFrameDecodedListener {
+        final List<String> mFrames = new ArrayList<>();
+
+        @Override
+        public void onFrameDecoded(ByteBuffer frame) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            mFrames.add(new String(bytes));
+        }
+    }
+
+    /**
+     * Feeds the data to the decoder split at each of the given offsets.
+     */
+    private static List<String> decode(FrameDecoder decoder, byte[] data, int... splits) {
+        Frames frames = new Frames();
+        int start = 0;
+        for (int split : splits) {
+            decoder.decode(ByteBuffer.wrap(data, start, split - start), frames);
+            start = split;
+        }
+        decoder.decode(ByteBuffer.wrap(data, start, data.length - start), frames);
+        return frames.mFrames;
+    }
+
+    @Test
+    public void lengthField_decodesFramesSplitAcrossReads() throws Exception {
+        byte[] big = {0, 2, 'h', 'i', 0, 3, 'y', 'o', 'u'};
+        assertEquals(Arrays.asList("hi", "you"), decode(new LengthFieldFrameDecoder(2, ByteOrder.BIG_ENDIAN, 100), big));
+        assertEquals(Arrays.asList("hi", "you"), decode(new LengthFieldFrameDecoder(2, ByteOrder.BIG_ENDIAN, 100), big, 1, 3, 5));
+
+        byte[] little = {3, 0, 0, 0, 'a', 'b', 'c', 1, 0, 0, 0, 'd'};
+        assertEquals(Arrays.asList("abc", "d"), decode(new LengthFieldFrameDecoder(4, ByteOrder.LITTLE_ENDIAN, 100), little, 2, 6, 9));
+    }
+
+    @Test
+    public void lengthField_dropsOversizedFrames() throws Exception {
+        LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder(1, ByteOrder.BIG_ENDIAN, 2);
+        assertTrue(decode(decoder, new byte[]{5, 'a', 'b'}).isEmpty());
+        assertEquals(Arrays.asList("ok"), decode(decoder, new byte[]{2, 'o', 'k'}));
+    }
+
+    @Test
+    public void throwingListener_isNotMistakenForCorruptStream() throws Exception {
+        LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder(1, ByteOrder.BIG_ENDIAN, 100);
+        //The second frame is split, so its start is gathered for the next read.
+        ByteBuffer in = ByteBuffer.wrap(new byte[]{2, 'h', 'i', 3, 'y'});
+        final IllegalStateException bug = new IllegalStateException("Listener bug");
+        try {
+            decoder.decode(in, new FrameDecoder.OnFrameDecodedListener() {
+                @Override
+                public void onFrameDecoded(ByteBuffer frame) {
+                    throw bug;
+                }
+            });
+            fail("Listener exception was swallowed");
+        } catch (IllegalStateException e) {
+            assertSame(bug, e);
+        }
+        assertEquals(3, in.position());
+
+        //The decoder was not reset, so it carries on from the same place.
+        Frames frames = new Frames();
+        decoder.decode(in, frames);
+        decoder.decode(ByteBuffer.wrap(new byte[]{'o', 'u'}), frames);
+        assertEquals(Arrays.asList("you"), frames.mFrames);
+    }
+
+    @Test
+    public void delimiter_findsDelimiterSplitAcrossReads() throws Exception {
+        byte[] data = "one\r\ntwo\r\nthree".getBytes();
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder("\r\n".getBytes(), 100);
+        assertEquals(Arrays.asList("one", "two"), decode(decoder, data, 4, 9));
+        assertEquals(Arrays.asList("three"), decode(decoder, "\r\n".getBytes()));
+    }
+
+    @Test
+    public void fixedLength_splitsEvenly() throws Exception {
+        assertEquals(Arrays.asList("abc", "def"), decode(new FixedLengthFrameDecoder(3), "abcdefg".getBytes(), 1, 4));
+    }
+}
@@ -0,0 +1,42 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ListenerRegistryTest {
+
+    @Test
+    public void add_ignoresDuplicates() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>();
+        assertTrue(registry.add("a"));
+        assertFalse(registry.add("a"));
+        assertTrue(registry.add("b"));
+        assertArrayEquals(new Object[]{"a", "b"}, registry.snapshot());
+    }
+
+    @Test
+    public void remove_keepsOrderOfRemainingListeners() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>();
+        registry.add("a");
+        registry.add("b");
+        registry.add("c");
+        assertTrue(registry.remove("b"));
+        assertFalse(registry.remove("b"));
+        assertArrayEquals(new Object[]{"a", "c"}, registry.snapshot());
+        registry.remove("a");
+        registry.remove("c");
+        assertTrue(registry.isEmpty());
+    }
+
+    @Test
+    public void snapshot_isUnaffectedByLaterChanges() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>();
+        registry.add("a");
+        Object[] snapshot = registry.snapshot();
+        registry.add("b");
+        registry.remove("a");
+        assertArrayEquals(new Object[]{"a"}, snapshot);
+        assertSame(registry.snapshot(), registry.snapshot());
+    }
+}
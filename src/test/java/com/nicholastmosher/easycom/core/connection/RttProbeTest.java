@@ -0,0 +1,110 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RttProbeTest {
+
+    private DefaultScheduler mScheduler;
+    private TransportRuntime mRuntime;
+
+    @Before
+    public void setUp() {
+        mScheduler = new DefaultScheduler(Connection.IO_THREAD);
+        mRuntime = new TransportRuntime(mScheduler);
+        Connection.setTransport(mRuntime);
+    }
+
+    @After
+    public void tearDown() {
+        Connection.setTransport(null);
+        mRuntime.shutdown();
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void estimator_smoothsLikeTcp() throws Exception {
+        RttEstimator estimator = new RttEstimator();
+        assertEquals(250, estimator.getTimeoutMillis(250));
+
+        estimator.addSample(100);
+        assertEquals(100, estimator.getSmoothedMicros());
+        assertEquals(50, estimator.getVarianceMicros());
+
+        estimator.addSample(200);
+        assertEquals(112, estimator.getSmoothedMicros());
+        assertEquals(62, estimator.getVarianceMicros());
+        assertEquals(100, estimator.getMinMicros());
+        assertEquals(200, estimator.getMaxMicros());
+        assertEquals(200, estimator.getLatestMicros());
+        //112 + 4 * 62 = 360us, rounded up to a whole millisecond.
+        assertEquals(1, estimator.getTimeoutMillis(0));
+        assertEquals(5, estimator.getTimeoutMillis(5));
+    }
+
+    @Test
+    public void probe_findsPongSplitAcrossReads() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            TcpIpConnection connection = new TcpIpConnection("probe", "127.0.0.1", server.getLocalPort());
+            connection.setReceiveExecutor(Connection.IO_THREAD);
+            final CountDownLatch connected = new CountDownLatch(1);
+            connection.addOnConnectListener(new Connection.OnConnectListener() {
+                @Override
+                public void onConnect(Connection connection) {
+                    connected.countDown();
+                }
+            });
+            RttProbe probe = new RttProbe("PING".getBytes("UTF-8"), "PONG".getBytes("UTF-8"));
+            connection.setRttProbe(probe);
+            connection.connect();
+            Socket remote = server.accept();
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+            assertTrue(probe.ping());
+            assertFalse("Only one ping may be in flight", probe.ping());
+            InputStream input = remote.getInputStream();
+            byte[] ping = new byte[4];
+            int read = 0;
+            while (read < ping.length) {
+                read += input.read(ping, read, ping.length - read);
+            }
+            assertEquals("PING", new String(ping, "UTF-8"));
+
+            //Answer with other data around a pong that arrives in two reads.
+            OutputStream output = remote.getOutputStream();
+            output.write("xxPO".getBytes("UTF-8"));
+            output.flush();
+            Thread.sleep(50);
+            output.write("NGyy".getBytes("UTF-8"));
+            output.flush();
+
+            RttEstimator estimator = connection.getRttEstimator();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (estimator.getSampleCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, estimator.getSampleCount());
+            assertTrue(estimator.getSmoothedMicros() >= 50000);
+            assertEquals(1, probe.getProbesSent());
+
+            connection.setRttProbe(null);
+            assertNull(probe.getConnection());
+            connection.disconnect();
+            remote.close();
+        } finally {
+            server.close();
+        }
+    }
+}
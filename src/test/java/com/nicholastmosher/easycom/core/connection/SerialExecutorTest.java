@@ -0,0 +1,115 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SerialExecutorTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Test
+    public void direct_runsQueuedTasksWithoutNesting() throws Exception {
+        final SerialExecutor executor = new SerialExecutor(DIRECT);
+        final List<Integer> order = new ArrayList<>();
+        final int count = 100000;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    final int value = i;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            order.add(value);
+                        }
+                    });
+                }
+                //Nothing submitted from within a task runs until it returns.
+                assertTrue(order.isEmpty());
+            }
+        });
+        assertEquals(count, order.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void execute_doesNotWaitForRunningTask() throws Exception {
+        final SerialExecutor executor = new SerialExecutor(DIRECT);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        running.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+        });
+        thread.start();
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        //Queued behind the running task rather than blocked on it.
+        assertEquals(1, ran.getCount());
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void throwingTask_doesNotStopLaterTasks() throws Exception {
+        final List<String> ran = new ArrayList<>();
+        final SerialExecutor executor = new SerialExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                try {
+                    runnable.run();
+                } catch (IllegalStateException e) {
+                    ran.add("reported");
+                }
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.add("second");
+                    }
+                });
+                throw new IllegalStateException("Task bug");
+            }
+        });
+        assertTrue(ran.contains("second"));
+        assertTrue(ran.contains("reported"));
+    }
+}
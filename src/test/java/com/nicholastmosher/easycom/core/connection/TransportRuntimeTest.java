@@ -0,0 +1,467 @@
+package com.nicholastmosher.easycom.core.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TransportRuntimeTest {
+
+    private DefaultScheduler mScheduler;
+    private TransportRuntime mRuntime;
+
+    @Before
+    public void setUp() {
+        mScheduler = new DefaultScheduler(Connection.IO_THREAD);
+        mRuntime = new TransportRuntime(mScheduler);
+        Connection.setTransport(mRuntime);
+    }
+
+    @After
+    public void tearDown() {
+        Connection.setTransport(null);
+        Connection.setTracer(null);
+        mRuntime.shutdown();
+        mScheduler.shutdown();
+    }
+
+    private static void awaitStatus(Connection connection, Connection.Status status) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connection.getStatus() != status) {
+            assertTrue("Timed out waiting for " + status, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Counts the spans it is asked to end, by kind.
+     */
+    private static final class CountingTracer implements TransportTracer {
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger writtenBytes = new AtomicInteger();
+        final AtomicInteger readBytes = new AtomicInteger();
+        final AtomicInteger openReads = new AtomicInteger();
+        final AtomicInteger openDispatches = new AtomicInteger();
+        final AtomicInteger dispatches = new AtomicInteger();
+
+        @Override
+        public Object beginConnect(Connection connection, int attempt) {
+            return connection;
+        }
+
+        @Override
+        public void endConnect(Object span, boolean success) {
+            connects.incrementAndGet();
+        }
+
+        @Override
+        public Object beginWrite(Connection connection) {
+            return connection;
+        }
+
+        @Override
+        public void endWrite(Object span, long bytes, int sends) {
+            writtenBytes.addAndGet((int) bytes);
+        }
+
+        @Override
+        public Object beginRead(Connection connection) {
+            openReads.incrementAndGet();
+            return connection;
+        }
+
+        @Override
+        public void endRead(Object span, int bytes) {
+            openReads.decrementAndGet();
+            readBytes.addAndGet(bytes);
+        }
+
+        @Override
+        public Object beginDispatch(Connection connection, Object listener, int bytes) {
+            openDispatches.incrementAndGet();
+            return connection;
+        }
+
+        @Override
+        public void endDispatch(Object span) {
+            openDispatches.decrementAndGet();
+            dispatches.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void tcpIp_sendsReceivesAndDisconnects() throws Exception {
+        CountingTracer tracer = new CountingTracer();
+        Connection.setTracer(tracer);
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            TcpIpConnection connection = new TcpIpConnection("echo", "127.0.0.1", server.getLocalPort());
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            connection.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+                @Override
+                public void onDataReceived(Connection connection, byte[] data) {
+                    synchronized (received) {
+                        received.write(data, 0, data.length);
+                        received.notifyAll();
+                    }
+                }
+            });
+            final CountDownLatch connected = new CountDownLatch(1);
+            connection.addOnConnectListener(new Connection.OnConnectListener() {
+                @Override
+                public void onConnect(Connection connection) {
+                    connected.countDown();
+                }
+            });
+            connection.connect();
+            Socket remote = server.accept();
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+            connection.sendAsync("ping".getBytes("UTF-8")).get(5, TimeUnit.SECONDS);
+            InputStream input = remote.getInputStream();
+            byte[] ping = new byte[4];
+            int read = 0;
+            while (read < ping.length) {
+                read += input.read(ping, read, ping.length - read);
+            }
+            assertEquals("ping", new String(ping, "UTF-8"));
+
+            OutputStream output = remote.getOutputStream();
+            output.write("pong".getBytes("UTF-8"));
+            output.flush();
+            synchronized (received) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (received.size() < 4 && System.currentTimeMillis() < deadline) {
+                    received.wait(100);
+                }
+                assertTrue(Arrays.equals("pong".getBytes("UTF-8"), received.toByteArray()));
+            }
+
+            connection.disconnect();
+            awaitStatus(connection, Connection.Status.Disconnected);
+            assertNull(TransferManager.getManager(connection));
+
+            ConnectionStats stats = connection.getStats();
+            assertEquals(1, stats.getConnects());
+            assertEquals(1, stats.getConnectTimes().getCount());
+            assertEquals(1, stats.getMessagesSent());
+            assertEquals(4, stats.getBytesSent());
+            assertEquals(4, stats.getBytesReceived());
+            assertEquals(0, stats.getQueuedSends());
+            assertEquals(1, mRuntime.getAggregateStats().getConnects());
+
+            assertEquals(1, tracer.connects.get());
+            assertEquals(4, tracer.writtenBytes.get());
+            assertEquals(4, tracer.readBytes.get());
+            assertTrue(tracer.dispatches.get() >= 1);
+            remote.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void receiveRing_deliversInOrderAndStopsOnDisconnect() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            TcpIpConnection connection = new TcpIpConnection("ring", "127.0.0.1", server.getLocalPort());
+            connection.setReceiveRingSize(64);
+            connection.setReceiveWaitStrategy(Connection.WaitStrategy.Park);
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            connection.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+                @Override
+                public void onDataReceived(Connection connection, byte[] data) {
+                    synchronized (received) {
+                        received.write(data, 0, data.length);
+                        received.notifyAll();
+                    }
+                }
+            }, Connection.IO_THREAD);
+            connection.connect();
+            Socket remote = server.accept();
+            awaitStatus(connection, Connection.Status.Connected);
+
+            byte[] sent = new byte[10000];
+            for (int i = 0; i < sent.length; i++) {
+                sent[i] = (byte) i;
+            }
+            OutputStream output = remote.getOutputStream();
+            output.write(sent);
+            output.flush();
+            synchronized (received) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (received.size() < sent.length && System.currentTimeMillis() < deadline) {
+                    received.wait(100);
+                }
+                assertTrue(Arrays.equals(sent, received.toByteArray()));
+            }
+            assertEquals(sent.length, connection.getStats().getBytesReceived());
+
+            connection.disconnect();
+            awaitStatus(connection, Connection.Status.Disconnected);
+            assertNull(TransferManager.getManager(connection));
+            remote.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void receivers_surviveThrowingListener() throws Exception {
+        assertReceiverSurvivesThrowingListener(Connection.ReceiveMode.Blocking, 0);
+        assertReceiverSurvivesThrowingListener(Connection.ReceiveMode.Blocking, 64);
+        assertReceiverSurvivesThrowingListener(Connection.ReceiveMode.Polling, 0);
+    }
+
+    private void assertReceiverSurvivesThrowingListener(Connection.ReceiveMode mode, int ringSize) throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            TcpIpConnection connection = new TcpIpConnection("throwing", "127.0.0.1", server.getLocalPort());
+            connection.setReceiveMode(mode);
+            connection.setReceiveRingSize(ringSize);
+            final AtomicInteger calls = new AtomicInteger();
+            final CountDownLatch second = new CountDownLatch(1);
+            connection.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+                @Override
+                public void onDataReceived(Connection connection, byte[] data) {
+                    if (calls.incrementAndGet() == 1) {
+                        //Looks like a stream failure, but isn't one.
+                        throw new IllegalStateException("Listener bug");
+                    }
+                    second.countDown();
+                }
+            }, Connection.IO_THREAD);
+            connection.connect();
+            Socket remote = server.accept();
+            awaitStatus(connection, Connection.Status.Connected);
+
+            OutputStream output = remote.getOutputStream();
+            output.write(1);
+            output.flush();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (calls.get() == 0) {
+                assertTrue("Timed out waiting for data", System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            output.write(2);
+            output.flush();
+            assertTrue(second.await(5, TimeUnit.SECONDS));
+            assertEquals(Connection.Status.Connected, connection.getStatus());
+
+            connection.disconnect();
+            awaitStatus(connection, Connection.Status.Disconnected);
+            remote.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void eventLoop_survivesThrowingListener() throws Exception {
+        mRuntime.setTcpIpEventLoops(1);
+        ServerSocket server = new ServerSocket(0, 2, InetAddress.getByName("127.0.0.1"));
+        try {
+            TcpIpConnection throwing = new TcpIpConnection("throwing", "127.0.0.1", server.getLocalPort());
+            throwing.setReceiveExecutor(Connection.IO_THREAD);
+            throwing.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+                @Override
+                public void onDataReceived(Connection connection, byte[] data) {
+                    throw new IllegalStateException("Listener bug");
+                }
+            });
+            final CountDownLatch received = new CountDownLatch(1);
+            TcpIpConnection healthy = new TcpIpConnection("healthy", "127.0.0.1", server.getLocalPort());
+            healthy.setReceiveExecutor(Connection.IO_THREAD);
+            healthy.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+                @Override
+                public void onDataReceived(Connection connection, byte[] data) {
+                    received.countDown();
+                }
+            });
+
+            throwing.connect();
+            Socket throwingRemote = server.accept();
+            awaitStatus(throwing, Connection.Status.Connected);
+            throwingRemote.getOutputStream().write(1);
+            throwingRemote.getOutputStream().flush();
+
+            healthy.connect();
+            Socket healthyRemote = server.accept();
+            awaitStatus(healthy, Connection.Status.Connected);
+            healthyRemote.getOutputStream().write(2);
+            healthyRemote.getOutputStream().flush();
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertEquals(Connection.Status.Connected, throwing.getStatus());
+
+            throwing.disconnect();
+            healthy.disconnect();
+            throwingRemote.close();
+            healthyRemote.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void send_throwingListenersDoNotFailConnection() throws Exception {
+        assertThrowingListenersDoNotFailConnection();
+    }
+
+    @Test
+    public void eventLoop_throwingListenersDoNotFailConnection() throws Exception {
+        mRuntime.setTcpIpEventLoops(1);
+        assertThrowingListenersDoNotFailConnection();
+    }
+
+    private void assertThrowingListenersDoNotFailConnection() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            TcpIpConnection connection = new TcpIpConnection("throwing", "127.0.0.1", server.getLocalPort());
+            connection.setSendWatermarks(1, 2);
+            connection.addOnWritabilityChangedListener(new Connection.OnWritabilityChangedListener() {
+                @Override
+                public void onWritabilityChanged(Connection connection, boolean writable) {
+                    //Becoming writable again is reported on the send thread.
+                    if (writable) {
+                        throw new IllegalStateException("Listener bug");
+                    }
+                }
+            });
+            connection.connect();
+            Socket remote = server.accept();
+            awaitStatus(connection, Connection.Status.Connected);
+
+            final Thread caller = Thread.currentThread();
+            SendFuture first = connection.sendAsync(new byte[4]).addOnSendCompleteListener(new SendFuture.OnSendCompleteListener() {
+                @Override
+                public void onSendComplete(SendFuture future) {
+                    //A send that has already completed calls this on the caller instead.
+                    if (Thread.currentThread() != caller) {
+                        throw new IllegalStateException("Listener bug");
+                    }
+                }
+            });
+            first.get(5, TimeUnit.SECONDS);
+            assertTrue(first.isSuccess());
+            SendFuture second = connection.sendAsync(new byte[4]);
+            second.get(5, TimeUnit.SECONDS);
+            assertTrue(second.isSuccess());
+
+            assertEquals(Connection.Status.Connected, connection.getStatus());
+            assertEquals(0, connection.getStats().getQueuedSends());
+            assertEquals(0, connection.getStats().getSendFailures());
+            assertEquals(2, connection.getStats().getMessagesSent());
+            connection.disconnect();
+            remote.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Dispatches a buffer that some listener is expected to throw from.
+     */
+    private static void dispatchThrowing(Connection connection) {
+        try {
+            connection.dispatchReceived(PooledBuffer.copyOf(ByteBuffer.wrap(new byte[4])), null);
+            fail("Listener did not throw");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Listener bug", e.getMessage());
+        }
+    }
+
+    @Test
+    public void dispatch_endsSpanWhenListenerThrows() throws Exception {
+        CountingTracer tracer = new CountingTracer();
+        Connection.setTracer(tracer);
+        TcpIpConnection connection = new TcpIpConnection("a", "10.0.0.1", 80);
+        connection.setReceiveExecutor(Connection.IO_THREAD);
+
+        Connection.OnDataReceivedListener data = new Connection.OnDataReceivedListener() {
+            @Override
+            public void onDataReceived(Connection connection, byte[] data) {
+                throw new IllegalArgumentException("Listener bug");
+            }
+        };
+        connection.addOnDataReceivedListener(data);
+        dispatchThrowing(connection);
+        connection.removeOnDataReceivedListener(data);
+        connection.addOnDataReceivedListener(data, Connection.IO_THREAD);
+        dispatchThrowing(connection);
+        connection.removeOnDataReceivedListener(data);
+
+        Connection.OnBufferReceivedListener buffer = new Connection.OnBufferReceivedListener() {
+            @Override
+            public void onBufferReceived(Connection connection, PooledBuffer buffer) {
+                throw new IllegalArgumentException("Listener bug");
+            }
+        };
+        connection.addOnBufferReceivedListener(buffer);
+        dispatchThrowing(connection);
+        connection.removeOnBufferReceivedListener(buffer);
+
+        connection.setFrameDecoder(new FixedLengthFrameDecoder(4));
+        connection.addOnFrameReceivedListener(new Connection.OnFrameReceivedListener() {
+            @Override
+            public void onFrameReceived(Connection connection, ByteBuffer frame) {
+                throw new IllegalArgumentException("Listener bug");
+            }
+        });
+        dispatchThrowing(connection);
+
+        assertEquals(0, tracer.openDispatches.get());
+        assertEquals(4, tracer.dispatches.get());
+    }
+
+    @Test
+    public void eventLoop_endsReadSpanAtEndOfStream() throws Exception {
+        CountingTracer tracer = new CountingTracer();
+        Connection.setTracer(tracer);
+        mRuntime.setTcpIpEventLoops(1);
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            TcpIpConnection connection = new TcpIpConnection("eof", "127.0.0.1", server.getLocalPort());
+            connection.connect();
+            Socket remote = server.accept();
+            awaitStatus(connection, Connection.Status.Connected);
+            remote.getOutputStream().write(new byte[3]);
+            remote.close();
+            awaitStatus(connection, Connection.Status.Disconnected);
+            assertEquals(0, tracer.openReads.get());
+            assertEquals(3, tracer.readBytes.get());
+            assertEquals(1, tracer.connects.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connect_failsAfterRetryPolicyGivesUp() throws Exception {
+        //Nothing listens on a port we just released.
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = server.getLocalPort();
+        server.close();
+
+        TcpIpConnection connection = new TcpIpConnection("refused", "127.0.0.1", port);
+        connection.setRetryPolicy(new RetryPolicy(2, 10, 10, 0));
+        connection.connect();
+        awaitStatus(connection, Connection.Status.ConnectFailed);
+        assertFalse(connection.trySend(new byte[1]));
+        assertEquals(2, connection.getStats().getConnectFailures());
+        assertEquals(1, connection.getStats().getSendFailures());
+        assertEquals(0, connection.getStats().getConnects());
+    }
+}